@@ -0,0 +1,81 @@
+package com.cm.android.winecellar.db;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Owns the one connection to the notes database for the whole process. Every
+ * {@link NotesDbAdapter} acquires it when opened and releases it when closed; the database is
+ * opened by the first acquire and closed by the last release, so adapters are cheap to open and
+ * close around single operations.
+ * <p/>
+ * The database is in write-ahead logging mode. Readers each get a connection from the
+ * platform's pool and read the last committed state, so the grid's page queries never wait for
+ * a write, and a write never waits for them.
+ * <p/>
+ * Thread safe.
+ */
+public class DatabaseManager {
+    static String TAG = "Wine Cellar::DatabaseManager";
+
+    private static DatabaseManager sDatabaseManager;
+
+    private final NotesDbAdapter.DatabaseHelper mHelper;
+    private SQLiteDatabase mDatabase;
+    private int mOpenCount;
+
+    /**
+     * @return the manager of the app's database
+     */
+    public static synchronized DatabaseManager getInstance(Context context) {
+        if (sDatabaseManager == null) {
+            sDatabaseManager = new DatabaseManager(context.getApplicationContext());
+        }
+        return sDatabaseManager;
+    }
+
+    /**
+     * Creates a manager of its own, for the database the given context resolves; for tests, which
+     * use a renaming context. The app uses {@link #getInstance(Context)}.
+     */
+    public DatabaseManager(Context context) {
+        mHelper = new NotesDbAdapter.DatabaseHelper(context);
+    }
+
+    /**
+     * Opens the database if no one else has it open.
+     *
+     * @return the database; valid until the matching {@link #release()}
+     * @throws android.database.SQLException if the database could be neither opened or created
+     */
+    public synchronized SQLiteDatabase acquire() {
+        if (mOpenCount == 0) {
+            Log.i(TAG, "acquire: opening");
+            mDatabase = mHelper.getWritableDatabase();
+        }
+        mOpenCount++;
+        return mDatabase;
+    }
+
+    /**
+     * Closes the database once every acquire has been released.
+     */
+    public synchronized void release() {
+        if (mOpenCount == 0) {
+            throw new IllegalStateException("release() without acquire()");
+        }
+        if (--mOpenCount == 0) {
+            Log.i(TAG, "release: closing");
+            mHelper.close();
+            mDatabase = null;
+        }
+    }
+
+    /**
+     * @return the number of acquires not yet released
+     */
+    public synchronized int getOpenCount() {
+        return mOpenCount;
+    }
+}
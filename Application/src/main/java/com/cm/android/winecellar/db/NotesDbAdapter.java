@@ -1,15 +1,29 @@
 package com.cm.android.winecellar.db;
 
 
-import android.content.ContentValues;
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build.VERSION_CODES;
+import android.support.v4.util.LongSparseArray;
 import android.util.Log;
 
+import com.cm.android.winecellar.util.Utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
+import java.util.regex.Pattern;
 
 //import com.vvw.config.AppConfig;
 //import com.vvw.util.Util;
@@ -40,10 +54,53 @@ public class NotesDbAdapter {
 
 
     public static final String DATABASE_NAME = "wine_cellar_db.sqlite";
-    public static final int DATABASE_VERSION = 1; //10 FIELDS
+    public static final int DATABASE_VERSION = 2; //10 FIELDS
     public static final String DATABASE_TABLE = "wine_list_" + DATABASE_VERSION;
+    /**
+     * Full text index over the wine, the text read off the label and the tasting notes, folded
+     * by {@link #foldForSearch(String)}, and kept in step with {@link #DATABASE_TABLE} by every
+     * method here that writes it. Its docid is the note's row id.
+     */
+    public static final String SEARCH_TABLE = DATABASE_TABLE + "_fts";
+    // Version 1 kept every column as text
+    private static final String DATABASE_TABLE_V1 = "wine_list_1";
+
+    /**
+     * Grid orderings for {@link #fetchGridPage(String, int, int)}. Both end on the row id so the order is
+     * total, and the grid and the detail pager always agree on positions. Each is read straight
+     * off an index, with no sort; the row id is the last key of every index.
+     */
+    public static final String ORDER_BY_UPDATED = KEY_UPDATED + " DESC, " + KEY_ROWID + " DESC";
+    public static final String ORDER_BY_RATING = KEY_RATING + " DESC, " + ORDER_BY_UPDATED;
 
-    private DatabaseHelper mDbHelper;
+    /**
+     * Just the columns needed to draw a grid cell or pick a detail page
+     */
+    public static final String[] GRID_PROJECTION = {KEY_ROWID, KEY_WINE, KEY_RATING, KEY_PICTURE};
+    // Positions of the GRID_PROJECTION columns, so rows are read without looking them up
+    private static final int GRID_ROWID = 0;
+    private static final int GRID_WINE = 1;
+    private static final int GRID_RATING = 2;
+    private static final int GRID_PICTURE = 3;
+
+    /**
+     * Every column of a note, in the order {@link #cursorToNote(Cursor)} reads them
+     */
+    private static final String NOTE_COLUMNS = KEY_ROWID + ", " + KEY_WINE + ", " + KEY_RATING
+            + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", " + KEY_PICTURE + ", " + KEY_SHARE
+            + ", " + KEY_URI + ", " + KEY_CREATED + ", " + KEY_UPDATED;
+    private static final int NOTE_ROWID = 0;
+    private static final int NOTE_WINE = 1;
+    private static final int NOTE_RATING = 2;
+    private static final int NOTE_TEXT_EXTRACT = 3;
+    private static final int NOTE_NOTES = 4;
+    private static final int NOTE_PICTURE = 5;
+    private static final int NOTE_SHARE = 6;
+    private static final int NOTE_URI = 7;
+    private static final int NOTE_CREATED = 8;
+    private static final int NOTE_UPDATED = 9;
+
+    private final DatabaseManager mDatabaseManager;
     private SQLiteDatabase mDb;
 
 
@@ -54,31 +111,143 @@ public class NotesDbAdapter {
     private static final String DATABASE_CREATE = "create table if not exists "
             + DATABASE_TABLE + " (" + KEY_ROWID + "  integer primary key,"
             + KEY_WINE + " text default null,"
-            + KEY_RATING + " text default null,"
+            + KEY_RATING + " real default null,"
             + KEY_TEXT_EXTRACT + " text default null,"
             + KEY_NOTES + " text default null,"
             + KEY_PICTURE + " text default null,"
             + KEY_SHARE + " text default null,"
             + KEY_URI + " text default null,"
-            + KEY_CREATED + " text default null,"
-            + KEY_UPDATED + " text default null);";
+            + KEY_CREATED + " integer default null,"
+            + KEY_UPDATED + " integer default null);";
+
+    /**
+     * Index creation sql statements, one for each grid ordering and one for lookups by wine
+     */
+    private static final String[] INDEX_CREATE = {
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_UPDATED + " on "
+                    + DATABASE_TABLE + " (" + KEY_UPDATED + ");",
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_RATING + " on "
+                    + DATABASE_TABLE + " (" + KEY_RATING + ", " + KEY_UPDATED + ");",
+            "create index if not exists " + DATABASE_TABLE + "_" + KEY_WINE + " on "
+                    + DATABASE_TABLE + " (" + KEY_WINE + ");"
+    };
+
+    /**
+     * Search index creation sql statement. The table is plain FTS4, which every supported
+     * release has, so it holds its own copy of the text. Its tokenizer only lower cases ASCII,
+     * so the text is folded before it is written, and the index is written from Java rather than
+     * by triggers.
+     */
+    private static final String SEARCH_CREATE = "create virtual table if not exists "
+            + SEARCH_TABLE + " using fts4(" + KEY_WINE + ", " + KEY_TEXT_EXTRACT + ", "
+            + KEY_NOTES + ");";
+
+    private static final String SEARCH_DELETE = "delete from " + SEARCH_TABLE
+            + " where docid = ?";
+    private static final String SEARCH_INSERT = "insert into " + SEARCH_TABLE + " (docid, "
+            + KEY_WINE + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ") values (?, ?, ?, ?)";
+
+    /**
+     * The text of the notes to index, read back after an update has merged it with what was
+     * stored; the row id is appended to read one note.
+     */
+    private static final String FETCH_SEARCH_TEXT = "select " + KEY_ROWID + ", " + KEY_WINE
+            + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + " from " + DATABASE_TABLE;
+    private static final String WHERE_ROWID = " where " + KEY_ROWID + " = ?";
+
+    // Left by decomposing accented letters, and dropped so "CHÂTEAU" is found as "chateau"
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{M}+");
+
+    /**
+     * How much a match in each column of {@link #SEARCH_TABLE} counts towards a note's rank,
+     * in column order. The wine names the bottle; the notes mention other wines too.
+     */
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {2.0, 1.0, 0.5};
+
+    /*
+     * The statements below are the same text on every call, with every value bound, so each
+     * connection parses them once and keeps them in its statement cache.
+     */
+
+    private static final String FETCH_NOTE = "select " + NOTE_COLUMNS + " from " + DATABASE_TABLE
+            + " where " + KEY_ROWID + " = ?";
+
+    private static final String DELETE_NOTE = "delete from " + DATABASE_TABLE + " where "
+            + KEY_ROWID + " = ?";
 
+    private static final String COUNT_NOTES = "select count(*) from " + DATABASE_TABLE;
 
-    private final Context mCtx;
+    /**
+     * Grid page query, less its order by, which is one of the two constant orderings
+     */
+    private static final String FETCH_GRID_PAGE = "select " + KEY_ROWID + ", " + KEY_WINE + ", "
+            + KEY_RATING + ", " + KEY_PICTURE + " from " + DATABASE_TABLE + " order by ";
+    private static final String LIMIT_OFFSET = " limit ? offset ?";
+    // The most variables one statement may bind on every supported release
+    private static final int MAX_SQL_VARIABLES = 999;
+
+    /**
+     * Insert statement; a note whose row id is taken is skipped, and {@link #createNote}
+     * returns -1 for it
+     */
+    private static final String INSERT_NOTE = "insert or ignore into " + DATABASE_TABLE + " ("
+            + NOTE_COLUMNS + ") values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
-    private static class DatabaseHelper extends SQLiteOpenHelper {
+    /**
+     * Update statement. A null argument keeps the column as it is, which is what
+     * {@link #updateNote} does for blank fields.
+     */
+    private static final String UPDATE_NOTE = "update " + DATABASE_TABLE + " set "
+            + KEY_WINE + " = coalesce(?, " + KEY_WINE + "), "
+            + KEY_RATING + " = coalesce(?, " + KEY_RATING + "), "
+            + KEY_TEXT_EXTRACT + " = coalesce(?, " + KEY_TEXT_EXTRACT + "), "
+            + KEY_NOTES + " = coalesce(?, " + KEY_NOTES + "), "
+            + KEY_PICTURE + " = coalesce(?, " + KEY_PICTURE + "), "
+            + KEY_SHARE + " = coalesce(?, " + KEY_SHARE + "), "
+            + KEY_URI + " = coalesce(?, " + KEY_URI + "), "
+            + KEY_UPDATED + " = ? where " + KEY_ROWID + " = ?";
 
+    /**
+     * Copies the version 1 notes into the typed table. Blank ratings and timestamps become
+     * null rather than 0.
+     */
+    private static final String MIGRATE_FROM_V1 = "insert or replace into " + DATABASE_TABLE
+            + " (" + KEY_ROWID + ", " + KEY_WINE + ", " + KEY_RATING + ", " + KEY_TEXT_EXTRACT
+            + ", " + KEY_NOTES + ", " + KEY_PICTURE + ", " + KEY_SHARE + ", " + KEY_URI + ", "
+            + KEY_CREATED + ", " + KEY_UPDATED + ") select " + KEY_ROWID + ", " + KEY_WINE + ", "
+            + castOrNull(KEY_RATING, "real") + ", " + KEY_TEXT_EXTRACT + ", " + KEY_NOTES + ", "
+            + KEY_PICTURE + ", " + KEY_SHARE + ", " + KEY_URI + ", "
+            + castOrNull(KEY_CREATED, "integer") + ", " + castOrNull(KEY_UPDATED, "integer")
+            + " from " + DATABASE_TABLE_V1 + ";";
+
+    /**
+     * Opens the database for {@link DatabaseManager}, in write-ahead logging mode
+     */
+    static class DatabaseHelper extends SQLiteOpenHelper {
+
+        @TargetApi(VERSION_CODES.JELLY_BEAN)
         DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
 
             Log.i(TAG, "DatabaseHelper");
+            if (Utils.hasJellyBean()) {
+                setWriteAheadLoggingEnabled(true);
+            }
+        }
 
+        @Override
+        public void onOpen(SQLiteDatabase db) {
+            super.onOpen(db);
+            if (!Utils.hasJellyBean() && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         @Override
         public void onCreate(SQLiteDatabase db) {
             Log.i(TAG, "DatabaseHelper::onCreate");
-            db.execSQL(DATABASE_CREATE);
+            createTable(db);
+            createSearch(db);
             Log.i(TAG, "DatabaseHelper::onCreate: Database " + DATABASE_TABLE
                     + " created");
             Log.i(TAG, "DatabaseHelper::onCreate: Seed Data Inserted");
@@ -90,15 +259,47 @@ public class NotesDbAdapter {
             Log.i(TAG, "DatabaseHelper::onUpgrade");
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
                     + newVersion);
-            db.execSQL(DATABASE_CREATE);
+            // Runs in the transaction SQLiteOpenHelper opens, so a failed upgrade leaves
+            // the old version as it was
+            createTable(db);
             Log.i(TAG, "DatabaseHelper::onUpgrade: Database " + DATABASE_TABLE
                     + " created");
             if (oldVersion == 1) {
-                //Util.onUpgradeToV7FromV6(db);
+                db.execSQL(MIGRATE_FROM_V1);
+                db.execSQL("drop table if exists " + DATABASE_TABLE_V1);
             }
+            createSearch(db);
             Log.i(TAG, "DatabaseHelper::onUpgrade: Data imported");
         }
 
+        private static void createTable(SQLiteDatabase db) {
+            db.execSQL(DATABASE_CREATE);
+            for (String indexCreate : INDEX_CREATE) {
+                db.execSQL(indexCreate);
+            }
+        }
+
+        /**
+         * Creates the search index from the notes already in the table
+         */
+        private static void createSearch(SQLiteDatabase db) {
+            db.execSQL(SEARCH_CREATE);
+            final SearchIndexWriter index = new SearchIndexWriter(db);
+            Cursor cursor = null;
+            try {
+                cursor = db.rawQuery(FETCH_SEARCH_TEXT, null);
+                while (cursor.moveToNext()) {
+                    index.insert(cursor.getLong(0), cursor.getString(1), cursor.getString(2),
+                            cursor.getString(3));
+                }
+            } finally {
+                if (cursor != null)
+                    // make sure to close the cursor
+                    cursor.close();
+                index.close();
+            }
+        }
+
     }
 
     /**
@@ -109,41 +310,52 @@ public class NotesDbAdapter {
      */
     public NotesDbAdapter(Context ctx) {
         Log.i(TAG, "NotesDbAdapter");
-        this.mCtx = ctx;
+        this.mDatabaseManager = DatabaseManager.getInstance(ctx);
+    }
+
+    /**
+     * @param databaseManager the manager of the database to use
+     */
+    public NotesDbAdapter(DatabaseManager databaseManager) {
+        Log.i(TAG, "NotesDbAdapter");
+        this.mDatabaseManager = databaseManager;
     }
 
     /**
      * Open the notes database. If it cannot be opened, try to create a new
      * instance of the database. If it cannot be created, throw an exception to
-     * signal the failure
+     * signal the failure. Shares the one connection held by {@link DatabaseManager}, so
+     * this is cheap once anyone has the database open; does nothing if already open.
      *
      * @return this (self reference, allowing this to be chained in an
      * initialization call)
      * @throws SQLException if the database could be neither opened or created
      */
-    public NotesDbAdapter open() throws SQLException {
+    public synchronized NotesDbAdapter open() throws SQLException {
 
         Log.i(TAG, "open");
 
-        mDbHelper = new DatabaseHelper(mCtx);
-        mDb = mDbHelper.getWritableDatabase();
+        if (mDb == null) {
+            mDb = mDatabaseManager.acquire();
+        }
         return this;
     }
 
     /**
-     * @return SQLiteDatabase
+     * @return SQLiteDatabase, opening this adapter if it is not open
      */
     public SQLiteDatabase getDatabase() {
         this.open();
         return this.mDb;
     }
 
-    public void close() {
+    public synchronized void close() {
 
         Log.i(TAG, "close");
 
-        if (mDbHelper != null) {
-            mDbHelper.close();
+        if (mDb != null) {
+            mDb = null;
+            mDatabaseManager.release();
         }
     }
 
@@ -157,21 +369,22 @@ public class NotesDbAdapter {
     public long createNote(Note note) {
 
         Log.i(TAG, "createNote");
-        ContentValues initialValues = new ContentValues();
-        initialValues.put(KEY_ROWID, note.id);
-        initialValues.put(KEY_WINE, note.wine);
-        initialValues.put(KEY_RATING, note.rating.trim());
-        initialValues.put(KEY_TEXT_EXTRACT, note.textExtract.trim());
-        initialValues.put(KEY_NOTES, note.notes.trim());
-        initialValues.put(KEY_PICTURE, note.picture.trim());
-        initialValues.put(KEY_SHARE, note.share.trim());
-        initialValues.put(KEY_URI, note.uri.trim());
-        initialValues.put(KEY_CREATED,
-                String.valueOf(System.currentTimeMillis()));
-        initialValues.put(KEY_UPDATED,
-                String.valueOf(System.currentTimeMillis()));
-
-        return mDb.insert(DATABASE_TABLE, null, initialValues);
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement insert = mDb.compileStatement(INSERT_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            bindInsert(insert, note, System.currentTimeMillis());
+            final long rowId = insert.executeInsert();
+            if (rowId != -1) {
+                index.insert(note);
+            }
+            mDb.setTransactionSuccessful();
+            return rowId;
+        } finally {
+            insert.close();
+            index.close();
+            mDb.endTransaction();
+        }
     }
 
     /**
@@ -184,7 +397,20 @@ public class NotesDbAdapter {
 
         Log.i(TAG, "deleteNote");
 
-        return mDb.delete(DATABASE_TABLE, KEY_ROWID + "=" + rowId, null) > 0;
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement delete = mDb.compileStatement(DELETE_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            delete.bindLong(1, rowId);
+            final boolean deleted = delete.executeUpdateDelete() > 0;
+            index.delete(rowId);
+            mDb.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            delete.close();
+            index.close();
+            mDb.endTransaction();
+        }
     }
 
 
@@ -199,27 +425,337 @@ public class NotesDbAdapter {
 
         Log.i(TAG, "fetchNote:id=" + rowId);
         Cursor cursor = null;
-        Note note = null;
         try {
-            cursor =
+            cursor = mDb.rawQuery(FETCH_NOTE, new String[]{String.valueOf(rowId)});
+            return cursor.moveToFirst() ? cursorToNote(cursor) : null;
+        } finally {
+            if (cursor != null)
+                // make sure to close the cursor
+                cursor.close();
+        }
+
+    }
+
+    /**
+     * @return the number of notes
+     */
+    public int countNotes() {
+        final SQLiteStatement count = mDb.compileStatement(COUNT_NOTES);
+        try {
+            return (int) count.simpleQueryForLong();
+        } finally {
+            count.close();
+        }
+    }
 
-                    mDb.query(false, DATABASE_TABLE, new String[]
-                                    {KEY_ROWID, KEY_WINE, KEY_RATING, KEY_TEXT_EXTRACT, KEY_NOTES, KEY_PICTURE, KEY_SHARE, KEY_URI, KEY_CREATED, KEY_UPDATED},
-                            KEY_ROWID + "=" + rowId, null, null, null, null, null);
-            if (cursor != null) {
-                cursor.moveToFirst();
+    /**
+     * Return one page of notes with only the {@link #GRID_PROJECTION} columns set
+     *
+     * @param orderBy {@link #ORDER_BY_UPDATED} or {@link #ORDER_BY_RATING}
+     * @param offset  position of the first note to return
+     * @param limit   maximum number of notes to return
+     * @return the notes, in order; empty past the end
+     */
+    public List<Note> fetchGridPage(String orderBy, int offset, int limit) {
+
+        Log.i(TAG, "fetchGridPage:offset=" + offset + " limit=" + limit);
+        Cursor cursor = null;
+        try {
+            // The limit and offset are bound, so every page shares one statement
+            cursor = mDb.rawQuery(FETCH_GRID_PAGE + orderBy + LIMIT_OFFSET,
+                    new String[]{String.valueOf(limit), String.valueOf(offset)});
+            List<Note> notes = new ArrayList<Note>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                notes.add(cursorToGridNote(cursor));
             }
-            while (!cursor.isAfterLast()) {
-                note = cursorToNote(cursor);
-                cursor.moveToNext();
+            return notes;
+        } finally {
+            if (cursor != null)
+                // make sure to close the cursor
+                cursor.close();
+        }
+    }
+
+    /**
+     * Return one page of the notes matching a search, best match first, with only the
+     * {@link #GRID_PROJECTION} columns set. Every word of the query must start a word of the
+     * wine, the label text or the notes, so "kenw 200" finds "Kenwood ... 2004"; case and
+     * accents are ignored. Ranks every match, so a caller showing many pages of one search
+     * should keep {@link #searchIds(String)} and read pages with
+     * {@link #fetchGridNotes(long[], int, int)} instead.
+     *
+     * @param query  the words to search for, as the user typed them
+     * @param limit  maximum number of notes to return
+     * @param offset position of the first note to return
+     * @return the notes, in rank order; empty past the end or if the query has no words
+     */
+    public List<Note> search(String query, int limit, int offset) {
+
+        Log.i(TAG, "search:offset=" + offset + " limit=" + limit);
+        return fetchGridNotes(searchIds(query), offset, limit);
+    }
+
+    /**
+     * Return the row ids of the notes matching a search, best match first. Notes are ranked by
+     * how often each word occurs in them against how often it occurs in the whole cellar,
+     * weighted by column; ties go to the most recently updated.
+     *
+     * @param query the words to search for, as the user typed them
+     * @return the row ids, in rank order; empty if the query has no words
+     */
+    public long[] searchIds(String query) {
+
+        Log.i(TAG, "searchIds");
+        final String match = toMatchQuery(query);
+        if (match == null) {
+            return new long[0];
+        }
+
+        // Rank every match; only their ids and match statistics are read
+        final List<SearchHit> hits = new ArrayList<SearchHit>();
+        Cursor cursor = null;
+        try {
+            cursor = mDb.rawQuery("select " + SEARCH_TABLE + ".docid, matchinfo(" + SEARCH_TABLE
+                    + "), " + DATABASE_TABLE + "." + KEY_UPDATED + " from " + SEARCH_TABLE
+                    + " join " + DATABASE_TABLE + " on " + DATABASE_TABLE + "." + KEY_ROWID
+                    + " = " + SEARCH_TABLE + ".docid where " + SEARCH_TABLE + " match ?",
+                    new String[]{match});
+            while (cursor.moveToNext()) {
+                hits.add(new SearchHit(cursor.getLong(0), rank(cursor.getBlob(1)),
+                        cursor.getLong(2)));
             }
-            return note;
         } finally {
             if (cursor != null)
                 // make sure to close the cursor
                 cursor.close();
         }
+        Collections.sort(hits);
+        final long[] rowIds = new long[hits.size()];
+        for (int i = 0; i < rowIds.length; i++) {
+            rowIds[i] = hits.get(i).rowId;
+        }
+        return rowIds;
+    }
+
+    /**
+     * Return the notes with some of the given row ids, in the same order, with only the
+     * {@link #GRID_PROJECTION} columns set. Notes deleted since the ids were read are left out.
+     *
+     * @param rowIds row ids, such as from {@link #searchIds(String)}
+     * @param offset position in rowIds of the first note to return
+     * @param limit  maximum number of notes to return
+     * @return the notes; empty past the end
+     */
+    public List<Note> fetchGridNotes(long[] rowIds, int offset, int limit) {
+
+        Log.i(TAG, "fetchGridNotes:offset=" + offset + " limit=" + limit);
+        final int end = (int) Math.min(rowIds.length, (long) offset + limit);
+        if (offset >= end) {
+            return new ArrayList<Note>(0);
+        }
+        final LongSparseArray<Note> notesById = new LongSparseArray<Note>(end - offset);
+        // SQLite before 3.32 takes at most 999 variables a statement
+        for (int start = offset; start < end; start += MAX_SQL_VARIABLES) {
+            final int chunkEnd = Math.min(end, start + MAX_SQL_VARIABLES);
+            final StringBuilder selection = new StringBuilder(KEY_ROWID).append(" in (");
+            final String[] selectionArgs = new String[chunkEnd - start];
+            for (int i = start; i < chunkEnd; i++) {
+                selection.append(i == start ? "?" : ",?");
+                selectionArgs[i - start] = String.valueOf(rowIds[i]);
+            }
+            selection.append(")");
+            Cursor cursor = null;
+            try {
+                cursor = mDb.query(DATABASE_TABLE, GRID_PROJECTION, selection.toString(),
+                        selectionArgs, null, null, null);
+                while (cursor.moveToNext()) {
+                    final Note note = cursorToGridNote(cursor);
+                    notesById.put(note.id, note);
+                }
+            } finally {
+                if (cursor != null)
+                    // make sure to close the cursor
+                    cursor.close();
+            }
+        }
+        final List<Note> notes = new ArrayList<Note>(end - offset);
+        for (int i = offset; i < end; i++) {
+            final Note note = notesById.get(rowIds[i]);
+            if (note != null) {
+                notes.add(note);
+            }
+        }
+        return notes;
+    }
+
+    /**
+     * @return the number of notes {@link #search(String, int, int)} finds for the query
+     */
+    public int countSearch(String query) {
+        final String match = toMatchQuery(query);
+        if (match == null) {
+            return 0;
+        }
+        return (int) DatabaseUtils.longForQuery(mDb, "select count(*) from " + SEARCH_TABLE
+                + " where " + SEARCH_TABLE + " match ?", new String[]{match});
+    }
+
+    /**
+     * Turns what the user typed into an FTS query that matches notes with a word starting with
+     * each of the typed words. Operators and quotes are dropped, so any input is a valid query.
+     *
+     * @return the query, or null if there are no words in it
+     */
+    public static String toMatchQuery(String query) {
+        if (query == null) {
+            return null;
+        }
+        final StringBuilder match = new StringBuilder();
+        // Folded as the index is; lower case, since the FTS operators AND, OR and NOT are upper
+        // case
+        for (String word : foldForSearch(query).split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+            }
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Folds text for the search index and queries: compatibility forms such as ligatures are
+     * replaced by plain letters, accents are dropped and everything is lower cased, so
+     * "CÔTES DU RHÔNE" is indexed as "cotes du rhone".
+     *
+     * @return the folded text, or null for null
+     */
+    public static String foldForSearch(String text) {
+        if (text == null) {
+            return null;
+        }
+        final String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.US);
+    }
+
+    /**
+     * Scores a match from its matchinfo() "pcx" statistics: for each query phrase and column,
+     * the hits in this note over the hits in all notes, times the column's weight.
+     */
+    private static double rank(byte[] matchInfo) {
+        final IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+        final int phrases = info.get(0);
+        final int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                final int stats = 2 + 3 * (phrase * columns + column);
+                final int hitsInNote = info.get(stats);
+                final int hitsInAll = info.get(stats + 1);
+                if (hitsInNote > 0 && column < SEARCH_COLUMN_WEIGHTS.length) {
+                    score += SEARCH_COLUMN_WEIGHTS[column] * hitsInNote / hitsInAll;
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Writes the folded text of notes to {@link #SEARCH_TABLE}, in the caller's transaction.
+     */
+    private static class SearchIndexWriter {
+        private final SQLiteDatabase mDb;
+        private final SQLiteStatement mDelete;
+        private final SQLiteStatement mInsert;
+
+        SearchIndexWriter(SQLiteDatabase db) {
+            mDb = db;
+            mDelete = db.compileStatement(SEARCH_DELETE);
+            mInsert = db.compileStatement(SEARCH_INSERT);
+        }
+
+        /**
+         * Indexes a note just inserted, as it was bound
+         */
+        void insert(Note note) {
+            insert(note.id, note.wine, note.textExtract, note.notes);
+        }
+
+        void insert(long rowId, String wine, String textExtract, String notes) {
+            delete(rowId);
+            mInsert.clearBindings();
+            mInsert.bindLong(1, rowId);
+            bindFolded(2, wine);
+            bindFolded(3, textExtract);
+            bindFolded(4, notes);
+            mInsert.executeInsert();
+        }
+
+        /**
+         * Indexes a note again after an update, from the text now stored
+         */
+        void update(long rowId) {
+            Cursor cursor = null;
+            try {
+                cursor = mDb.rawQuery(FETCH_SEARCH_TEXT + WHERE_ROWID,
+                        new String[]{String.valueOf(rowId)});
+                if (cursor.moveToFirst()) {
+                    insert(rowId, cursor.getString(1), cursor.getString(2), cursor.getString(3));
+                } else {
+                    delete(rowId);
+                }
+            } finally {
+                if (cursor != null)
+                    // make sure to close the cursor
+                    cursor.close();
+            }
+        }
+
+        void delete(long rowId) {
+            mDelete.bindLong(1, rowId);
+            mDelete.executeUpdateDelete();
+        }
 
+        void close() {
+            mDelete.close();
+            mInsert.close();
+        }
+
+        private void bindFolded(int index, String value) {
+            if (value == null) {
+                mInsert.bindNull(index);
+            } else {
+                mInsert.bindString(index, foldForSearch(value.trim()));
+            }
+        }
+    }
+
+    /**
+     * A note matching a search, ordered best first.
+     */
+    private static class SearchHit implements Comparable<SearchHit> {
+        final long rowId;
+        final double score;
+        final long updated;
+
+        SearchHit(long rowId, double score, long updated) {
+            this.rowId = rowId;
+            this.score = score;
+            this.updated = updated;
+        }
+
+        @Override
+        public int compareTo(SearchHit other) {
+            if (score != other.score) {
+                return score > other.score ? -1 : 1;
+            }
+            if (updated != other.updated) {
+                return updated > other.updated ? -1 : 1;
+            }
+            return rowId == other.rowId ? 0 : (rowId > other.rowId ? -1 : 1);
+        }
     }
 
     /**
@@ -329,63 +865,227 @@ public class NotesDbAdapter {
 
         Log.i(TAG, "updateNote");
 
-        ContentValues args = new ContentValues();
-
-        if ((note.rating != null) && ((!note.rating.equals("0.0")))) {
-            args.put(KEY_RATING, note.rating.trim());
-        }
-        if ((note.wine != null) && ((!note.wine.equals("")))) {
-            args.put(KEY_WINE, note.wine.trim());
+        // Blank fields and a 0.0 rating are bound as null, which keeps the stored value
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement update = mDb.compileStatement(UPDATE_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            bindUpdate(update, note, System.currentTimeMillis());
+            final boolean updated = update.executeUpdateDelete() > 0;
+            if (updated) {
+                index.update(note.id);
+            }
+            mDb.setTransactionSuccessful();
+            return updated;
+        } finally {
+            update.close();
+            index.close();
+            mDb.endTransaction();
         }
-        if ((note.textExtract != null) && ((!note.textExtract.equals("")))) {
-            args.put(KEY_TEXT_EXTRACT, note.textExtract.trim());
+    }
+
+
+    /**
+     * Create many notes in one transaction, as {@link #createNote} would one at a time. Notes
+     * whose row id is already taken are skipped. All or none are written.
+     *
+     * @return the number of notes created
+     */
+    public int createNotes(List<Note> notes) {
+
+        Log.i(TAG, "createNotes:count=" + notes.size());
+        final long now = System.currentTimeMillis();
+        int created = 0;
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement insert = mDb.compileStatement(INSERT_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            for (Note note : notes) {
+                bindInsert(insert, note, now);
+                if (insert.executeInsert() != -1) {
+                    index.insert(note);
+                    created++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            insert.close();
+            index.close();
+            mDb.endTransaction();
         }
-        if ((note.notes != null) && ((!note.notes.equals("")))) {
-            args.put(KEY_NOTES, note.notes.trim());
+        return created;
+    }
+
+    /**
+     * Update many notes in one transaction, as {@link #updateNote} would one at a time: blank
+     * fields and a rating of 0.0 leave the stored value as it is. All or none are written.
+     *
+     * @return the number of notes updated
+     */
+    public int updateNotes(List<Note> notes) {
+
+        Log.i(TAG, "updateNotes:count=" + notes.size());
+        final long now = System.currentTimeMillis();
+        int updated = 0;
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement update = mDb.compileStatement(UPDATE_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            for (Note note : notes) {
+                bindUpdate(update, note, now);
+                if (update.executeUpdateDelete() > 0) {
+                    index.update(note.id);
+                    updated++;
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            update.close();
+            index.close();
+            mDb.endTransaction();
         }
-        if ((note.picture != null) && ((!note.picture.equals("")))) {
-            args.put(KEY_PICTURE, note.picture.trim());
+        return updated;
+    }
+
+    /**
+     * Update the notes that exist and create the rest, in one transaction. Existing notes are
+     * updated as by {@link #updateNotes}, keeping their created time. For a re-sync, where most
+     * notes are usually already there. All or none are written.
+     *
+     * @return the number of notes created; the rest were updated
+     */
+    public int upsertNotes(List<Note> notes) {
+
+        Log.i(TAG, "upsertNotes:count=" + notes.size());
+        final long now = System.currentTimeMillis();
+        int created = 0;
+        mDb.beginTransactionNonExclusive();
+        final SQLiteStatement update = mDb.compileStatement(UPDATE_NOTE);
+        final SQLiteStatement insert = mDb.compileStatement(INSERT_NOTE);
+        final SearchIndexWriter index = new SearchIndexWriter(mDb);
+        try {
+            for (Note note : notes) {
+                bindUpdate(update, note, now);
+                if (update.executeUpdateDelete() > 0) {
+                    index.update(note.id);
+                } else {
+                    bindInsert(insert, note, now);
+                    if (insert.executeInsert() != -1) {
+                        index.insert(note);
+                        created++;
+                    }
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            update.close();
+            insert.close();
+            index.close();
+            mDb.endTransaction();
         }
-        if ((note.share != null) && ((!note.share.equals("")))) {
-            args.put(KEY_SHARE, note.share.trim());
+        return created;
+    }
+
+    private static void bindInsert(SQLiteStatement insert, Note note, long now) {
+        insert.clearBindings();
+        insert.bindLong(1, note.id);
+        bindTrimmed(insert, 2, note.wine);
+        bindRating(insert, 3, parseRating(note.rating));
+        bindTrimmed(insert, 4, note.textExtract);
+        bindTrimmed(insert, 5, note.notes);
+        bindTrimmed(insert, 6, note.picture);
+        bindTrimmed(insert, 7, note.share);
+        bindTrimmed(insert, 8, note.uri);
+        insert.bindLong(9, now);
+        insert.bindLong(10, now);
+    }
+
+    private static void bindUpdate(SQLiteStatement update, Note note, long now) {
+        update.clearBindings();
+        bindTrimmed(update, 1, blankToNull(note.wine));
+        bindRating(update, 2, "0.0".equals(note.rating) ? null : parseRating(note.rating));
+        bindTrimmed(update, 3, blankToNull(note.textExtract));
+        bindTrimmed(update, 4, blankToNull(note.notes));
+        bindTrimmed(update, 5, blankToNull(note.picture));
+        bindTrimmed(update, 6, blankToNull(note.share));
+        bindTrimmed(update, 7, blankToNull(note.uri));
+        update.bindLong(8, now);
+        update.bindLong(9, note.id);
+    }
+
+    private static void bindTrimmed(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value.trim());
         }
+    }
 
-        if ((note.uri != null) && ((!note.uri.equals("")))) {
-            args.put(KEY_URI, note.uri.trim());
+    private static void bindRating(SQLiteStatement statement, int index, Float rating) {
+        if (rating == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, rating);
         }
+    }
 
-        args.put(KEY_UPDATED, String.valueOf(System.currentTimeMillis()));
-        return mDb
-                .update(DATABASE_TABLE, args, KEY_ROWID + "=" + note.id, null) > 0;
+    private static String blankToNull(String value) {
+        return value == null || value.equals("") ? null : value;
     }
 
+    /**
+     * @return the rating as stored, or null if it is blank or not a number
+     */
+    private static Float parseRating(String rating) {
+        if (rating == null || rating.trim().length() == 0) {
+            return null;
+        }
+        try {
+            return Float.valueOf(rating.trim());
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "parseRating: " + rating);
+            return null;
+        }
+    }
 
-    private Note cursorToNote(Cursor cursor) {
+    private static String castOrNull(String column, String type) {
+        return "case when trim(" + column + ") = '' then null else cast(" + column + " as "
+                + type + ") end";
+    }
+
+    /**
+     * Reads a note from a row of {@link #FETCH_NOTE}, or any query of {@link #NOTE_COLUMNS}
+     */
+    private static Note cursorToNote(Cursor cursor) {
 
         Note note = new Note();
-        note.id = cursor.getLong(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_ROWID));
-        note.wine = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_WINE));
-        note.rating = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_RATING));
-        note.textExtract = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_TEXT_EXTRACT));
-        note.notes = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_NOTES));
-        note.share = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_SHARE));
-        note.picture = cursor.getString(cursor
-                .getColumnIndexOrThrow(NotesDbAdapter.KEY_PICTURE));
-        note.uri = cursor.getString(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_URI));
-        note.created = cursor.getLong(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_CREATED));
-        note.updated = cursor.getLong(cursor
-                .getColumnIndex(NotesDbAdapter.KEY_UPDATED));
+        note.id = cursor.getLong(NOTE_ROWID);
+        note.wine = cursor.getString(NOTE_WINE);
+        note.rating = cursor.getString(NOTE_RATING);
+        note.textExtract = cursor.getString(NOTE_TEXT_EXTRACT);
+        note.notes = cursor.getString(NOTE_NOTES);
+        note.share = cursor.getString(NOTE_SHARE);
+        note.picture = cursor.getString(NOTE_PICTURE);
+        note.uri = cursor.getString(NOTE_URI);
+        note.created = cursor.getLong(NOTE_CREATED);
+        note.updated = cursor.getLong(NOTE_UPDATED);
 
         return note;
 
     }
 
+    /**
+     * Reads a note from a row of a {@link #GRID_PROJECTION} query
+     */
+    private static Note cursorToGridNote(Cursor cursor) {
+
+        Note note = new Note();
+        note.id = cursor.getLong(GRID_ROWID);
+        note.wine = cursor.getString(GRID_WINE);
+        note.rating = cursor.getString(GRID_RATING);
+        note.picture = cursor.getString(GRID_PICTURE);
+
+        return note;
+    }
+
 }
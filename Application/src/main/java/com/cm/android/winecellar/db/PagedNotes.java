@@ -0,0 +1,282 @@
+package com.cm.android.winecellar.db;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Windowed view over the notes table for the grid and the detail pager. Rows are loaded a page
+ * at a time with {@link NotesDbAdapter#fetchGridPage(String, int, int)}, only for the pages
+ * around the visible positions, and at most a fixed number of pages are kept; so memory and
+ * startup cost do not depend on how many labels are in the cellar. With a search query set, the
+ * rows are the notes matching it, best match first: the matches are ranked once per refresh, by
+ * {@link NotesDbAdapter#searchIds}, and pages are read from the ranked ids.
+ * <p/>
+ * Not thread safe: all methods must be called on the main thread. Pages are queried on a
+ * background thread and the listener is called back on the main thread once they arrive.
+ */
+public class PagedNotes {
+    static String TAG = "Wine Cellar::PagedNotes";
+
+    public static final int DEFAULT_PAGE_SIZE = 60;
+    public static final int DEFAULT_PREFETCH_DISTANCE = 30;
+    public static final int DEFAULT_MAX_PAGES = 8;
+
+    /**
+     * Interface definition for a callback when the count changes or a page has been loaded.
+     * Always called on the main thread.
+     */
+    public interface OnNotesChangedListener {
+        void onNotesChanged();
+    }
+
+    private final NotesDbAdapter mDbHelper;
+    private final String mOrderBy;
+    private final int mPageSize;
+    private final int mPrefetchDistance;
+    private final LruCache<Integer, List<Note>> mPages;
+    private final Set<Integer> mLoading = new HashSet<Integer>();
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private OnNotesChangedListener mListener;
+    // Null to list every note
+    private String mQuery;
+
+    private int mCount;
+    private int mFirstVisible;
+    private int mLastVisible;
+    // Bumped on every refresh, so pages queried before it are dropped
+    private int mGeneration;
+    private volatile boolean mClosed;
+
+    // The ranked row ids of the last search, and its query; only used on the executor thread
+    private String mRankedQuery;
+    private long[] mRankedIds;
+
+    public PagedNotes(NotesDbAdapter dbHelper, String orderBy) {
+        this(dbHelper, orderBy, DEFAULT_PAGE_SIZE, DEFAULT_PREFETCH_DISTANCE, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * @param dbHelper         an open adapter, which {@link #close()} closes; the caller must not
+     *                         close it itself
+     * @param orderBy          {@link NotesDbAdapter#ORDER_BY_UPDATED} or
+     *                         {@link NotesDbAdapter#ORDER_BY_RATING}
+     * @param pageSize         number of rows per query
+     * @param prefetchDistance number of positions either side of the visible range to keep loaded
+     * @param maxPages         upper bound on the pages held in memory; raised if needed so the
+     *                         visible range plus prefetch always fits
+     */
+    public PagedNotes(NotesDbAdapter dbHelper, String orderBy, int pageSize, int prefetchDistance,
+                      int maxPages) {
+        mDbHelper = dbHelper;
+        mOrderBy = orderBy;
+        mPageSize = pageSize;
+        mPrefetchDistance = prefetchDistance;
+        mPages = new LruCache<Integer, List<Note>>(
+                Math.max(maxPages, (2 * prefetchDistance) / pageSize + 3));
+    }
+
+    public void setOnNotesChangedListener(OnNotesChangedListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Lists only the notes matching a search, or every note if the query is null or empty. Takes
+     * effect on the next {@link #refresh()}.
+     */
+    public void setQuery(String query) {
+        mQuery = query == null || query.trim().length() == 0 ? null : query;
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    /**
+     * @return the number of notes as of the last refresh
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Returns the note at the given position if its page is loaded, otherwise starts loading it.
+     *
+     * @param position position in list order
+     * @return the note with id, wine, rating and picture set, or null if not loaded yet
+     */
+    public Note get(int position) {
+        final int page = position / mPageSize;
+        final List<Note> notes = mPages.get(page);
+        if (notes == null) {
+            loadPage(page);
+            return null;
+        }
+        final int index = position % mPageSize;
+        return index < notes.size() ? notes.get(index) : null;
+    }
+
+    /**
+     * Tells the pager which positions are on screen. Pages within the prefetch distance of them
+     * are loaded, and kept ahead of everything else in the LRU order.
+     */
+    public void setVisibleRange(int first, int last) {
+        mFirstVisible = Math.max(0, first);
+        mLastVisible = Math.max(mFirstVisible, last);
+        if (mCount == 0) {
+            return;
+        }
+        final int firstPage = Math.max(0, mFirstVisible - mPrefetchDistance) / mPageSize;
+        final int lastPage = Math.min(mCount - 1, mLastVisible + mPrefetchDistance) / mPageSize;
+        for (int page = firstPage; page <= lastPage; page++) {
+            if (mPages.get(page) == null) {
+                loadPage(page);
+            }
+        }
+    }
+
+    /**
+     * Re-counts the notes and reloads the pages around the visible range in the background. The
+     * old pages stay in use until the new ones are ready, so the list does not flash empty.
+     */
+    public void refresh() {
+        if (mClosed) {
+            return;
+        }
+        final int generation = ++mGeneration;
+        mLoading.clear();
+        final int firstPage = Math.max(0, mFirstVisible - mPrefetchDistance) / mPageSize;
+        final int lastPage = (mLastVisible + mPrefetchDistance) / mPageSize;
+        final String query = mQuery;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mClosed) {
+                    return;
+                }
+                try {
+                    final int count = countNotes(query);
+                    final SparseArray<List<Note>> pages = new SparseArray<List<Note>>();
+                    for (int page = firstPage; page <= lastPage && page * mPageSize < count; page++) {
+                        pages.put(page, fetchPage(query, page));
+                    }
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mClosed || generation != mGeneration) {
+                                return;
+                            }
+                            mCount = count;
+                            mPages.evictAll();
+                            for (int i = 0; i < pages.size(); i++) {
+                                mPages.put(pages.keyAt(i), pages.valueAt(i));
+                            }
+                            notifyNotesChanged();
+                        }
+                    });
+                } catch (Throwable e) {
+                    Log.e(TAG, "refresh: error", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops background loading, and closes the NotesDbAdapter once a query still running has
+     * finished with it. Does not wait for that.
+     */
+    public void close() {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        mListener = null;
+        // Runs after the task in progress; the ones queued behind it return at once
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mDbHelper.close();
+            }
+        });
+        mExecutor.shutdown();
+    }
+
+    private void loadPage(final int page) {
+        if (mClosed || !mLoading.add(page)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final String query = mQuery;
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<Note> notes = null;
+                if (!mClosed) {
+                    try {
+                        notes = fetchPage(query, page);
+                    } catch (Throwable e) {
+                        Log.e(TAG, "loadPage: error loading page " + page, e);
+                    }
+                }
+                final List<Note> result = notes;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mClosed || generation != mGeneration) {
+                            return;
+                        }
+                        mLoading.remove(page);
+                        if (result != null) {
+                            mPages.put(page, result);
+                            notifyNotesChanged();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Counts the notes, ranking the matches of a search again as the notes may have changed.
+     * Called on the executor thread.
+     */
+    private int countNotes(String query) {
+        if (query == null) {
+            return mDbHelper.countNotes();
+        }
+        mRankedIds = mDbHelper.searchIds(query);
+        mRankedQuery = query;
+        return mRankedIds.length;
+    }
+
+    /**
+     * Called on the executor thread
+     */
+    private List<Note> fetchPage(String query, int page) {
+        if (query == null) {
+            return mDbHelper.fetchGridPage(mOrderBy, page * mPageSize, mPageSize);
+        }
+        if (!query.equals(mRankedQuery)) {
+            mRankedIds = mDbHelper.searchIds(query);
+            mRankedQuery = query;
+        }
+        return mDbHelper.fetchGridNotes(mRankedIds, page * mPageSize, mPageSize);
+    }
+
+    private void notifyNotesChanged() {
+        if (mListener != null) {
+            mListener.onNotesChanged();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.cm.android.winecellar.provider;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.cm.android.winecellar.util.Utils;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches the wine label photos on external storage, and tells listeners when photos or
+ * thumbnails are added or removed, so the grid can reload its notes. Changes are caught through a
+ * {@link FileObserver} on both directories, and through {@link #invalidate()} for callers that
+ * add or delete photos themselves.
+ * <p/>
+ * The directories are never listed: the notes table, through
+ * {@link com.cm.android.winecellar.db.PagedNotes}, is the one list of photos for the grid and
+ * the detail pager, and each note's picture names its files.
+ */
+public class ImageCatalog {
+    private static final int OBSERVED_EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE
+            | FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO;
+
+    private static ImageCatalog sImageCatalog;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final List<OnCatalogChangedListener> mListeners =
+            new CopyOnWriteArrayList<OnCatalogChangedListener>();
+
+    // Guarded by this
+    private boolean mNotifyPending;
+
+    // FileObservers stop delivering events once they are garbage collected, so hold on to them
+    private final FileObserver mImageObserver;
+    private final FileObserver mThumbnailObserver;
+
+    /**
+     * Interface definition for a callback when photos are added or removed.
+     * Always called on the main thread.
+     */
+    public interface OnCatalogChangedListener {
+        void onCatalogChanged();
+    }
+
+    private ImageCatalog(Context context) {
+        final File imageDir = Utils.getExternalImageStorageDir(context);
+        final File thumbnailDir = Utils.getExternalThumbnailStorageDir(context);
+
+        mImageObserver = new CatalogObserver(imageDir.getAbsolutePath());
+        mThumbnailObserver = new CatalogObserver(thumbnailDir.getAbsolutePath());
+        mImageObserver.startWatching();
+        mThumbnailObserver.startWatching();
+    }
+
+    public static ImageCatalog getInstance(Context context) {
+        synchronized (ImageCatalog.class) {
+            if (sImageCatalog == null) {
+                sImageCatalog = new ImageCatalog(context.getApplicationContext());
+            }
+        }
+        return sImageCatalog;
+    }
+
+    /**
+     * Tells the listeners the photos have changed. Call this after writing or deleting photos,
+     * or their notes; the FileObserver normally catches file changes too, but is not reliable on
+     * every storage implementation.
+     */
+    public void invalidate() {
+        synchronized (this) {
+            if (mNotifyPending) {
+                return;
+            }
+            mNotifyPending = true;
+        }
+        // Coalesce bursts of file events (image, then thumbnail) into one notification
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (ImageCatalog.this) {
+                    mNotifyPending = false;
+                }
+                for (OnCatalogChangedListener listener : mListeners) {
+                    listener.onCatalogChanged();
+                }
+            }
+        });
+    }
+
+    public void addOnCatalogChangedListener(OnCatalogChangedListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeOnCatalogChangedListener(OnCatalogChangedListener listener) {
+        mListeners.remove(listener);
+    }
+
+    private class CatalogObserver extends FileObserver {
+
+        CatalogObserver(String path) {
+            super(path, OBSERVED_EVENTS);
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            if (path == null) {
+                return;
+            }
+            invalidate();
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package com.cm.android.winecellar.provider;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.cm.android.winecellar.db.Note;
+import com.cm.android.winecellar.db.NotesDbAdapter;
+import com.cm.android.winecellar.util.Configuration;
+import com.cm.android.winecellar.util.DerivativeSet;
+import com.cm.android.winecellar.util.IoUtils;
+import com.cm.android.winecellar.util.ThumbnailGenerator;
+import com.cm.android.winecellar.util.Utils;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.FileContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpMediaType;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.MultipartContent;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.services.vision.v1.Vision;
+import com.google.api.services.vision.v1.VisionRequestInitializer;
+import com.google.api.services.vision.v1.model.AnnotateImageRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
+import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
+import com.google.api.services.vision.v1.model.EntityAnnotation;
+import com.google.api.services.vision.v1.model.Feature;
+import com.google.api.services.vision.v1.model.Image;
+import com.vvw.activity.lite.R;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finishes off new photos once {@link ThumbnailGenerator} has made their derivatives: the
+ * catalog is told about them, the OCR sized copy is sent to Cloud Vision for the text on the
+ * label, and the photo is uploaded with its note. Lives as long as the application, so the
+ * upload goes ahead even if the screen that took the photo is rotated or closed meanwhile.
+ * <p/>
+ * Photos are uploaded one at a time, on a background thread.
+ */
+public class LabelUploader implements ThumbnailGenerator.OnDerivativesGeneratedListener {
+    private static final String TAG = "LabelUploader";
+
+    private static LabelUploader sLabelUploader;
+
+    private final Context mContext;
+    private final String mCloudVisionApiKey;
+    private final String mApplicationName;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    private LabelUploader(Context context) {
+        mContext = context;
+        mCloudVisionApiKey = context.getResources().getString(R.string.cloud_vision_api_key);
+        mApplicationName = context.getResources().getString(R.string.app_name);
+    }
+
+    public static LabelUploader getInstance(Context context) {
+        synchronized (LabelUploader.class) {
+            if (sLabelUploader == null) {
+                sLabelUploader = new LabelUploader(context.getApplicationContext());
+            }
+        }
+        return sLabelUploader;
+    }
+
+    @Override
+    public void onDerivativesGenerated(String imagePath, DerivativeSet derivatives) {
+        if (derivatives == null) {
+            return;
+        }
+        ImageCatalog.getInstance(mContext).invalidate();
+
+        //Call Google Vision API with the OCR sized copy, or with the photo itself if it is too
+        //small to have one; the thumbnail is cropped and may be lossy WebP
+        final DerivativeSet.Derivative ocr = derivatives.get(DerivativeSet.OCR);
+        upload(imagePath, ocr != null ? ocr.file : new File(imagePath));
+    }
+
+    /**
+     * Queues a photo to have its label read and to be uploaded with its note.
+     *
+     * @param imagePath the photo, named for the row id of its note
+     * @param ocrImage  the copy of the photo to read the label from
+     */
+    public void upload(final String imagePath, final File ocrImage) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String textExtract = callCloudVision(ocrImage);
+                Log.i(TAG, "RESULT " + textExtract);
+                NotesDbAdapter dbHelper = null;
+                try {
+                    dbHelper = new NotesDbAdapter(mContext);
+                    dbHelper.open();
+                    Note newNote = new Note();
+                    newNote.id = Utils.extractRowIdFromFileName(imagePath);
+                    newNote.textExtract = textExtract;
+                    dbHelper.updateNote(newNote);
+
+                    uploadNote(dbHelper, newNote.id, imagePath);
+                } catch (Throwable e) {
+                    Log.e(TAG, "error: "
+                            + ((e.getMessage() != null) ? e.getMessage().replace(" ",
+                            "_") : ""), e);
+                } finally {
+                    if (dbHelper != null)
+                        dbHelper.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the text Cloud Vision found on the label, or a message saying the request failed
+     */
+    private String callCloudVision(File ocrImage) {
+        try {
+            // The OCR sized copy, at most the size Cloud Vision recommends, or a photo smaller
+            // than that
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            IoUtils.copy(ocrImage, byteArrayOutputStream);
+            final byte[] imageBytes = byteArrayOutputStream.toByteArray();
+
+            HttpTransport httpTransport = new NetHttpTransport();
+            JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
+
+            Vision.Builder builder = new Vision.Builder(httpTransport, jsonFactory, null);
+            builder.setVisionRequestInitializer(new
+                    VisionRequestInitializer(mCloudVisionApiKey));
+            builder.setApplicationName(mApplicationName);
+            Vision vision = builder.build();
+
+            BatchAnnotateImagesRequest batchAnnotateImagesRequest =
+                    new BatchAnnotateImagesRequest();
+            batchAnnotateImagesRequest.setRequests(new ArrayList<AnnotateImageRequest>() {{
+                AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
+
+                Image base64EncodedImage = new Image();
+
+                base64EncodedImage.encodeContent(imageBytes);
+                annotateImageRequest.setImage(base64EncodedImage);
+
+                annotateImageRequest.setFeatures(new ArrayList<Feature>() {{
+                    Feature detection = new Feature();
+                    detection.setType("TEXT_DETECTION");
+                    detection.setMaxResults(1);
+                    add(detection);
+                }});
+
+                add(annotateImageRequest);
+            }});
+
+            Vision.Images.Annotate annotateRequest =
+                    vision.images().annotate(batchAnnotateImagesRequest);
+            annotateRequest.setDisableGZipContent(true);
+            Log.d(TAG, "created Cloud Vision request object, sending request");
+
+            BatchAnnotateImagesResponse response = annotateRequest.execute();
+            return convertResponseToString(response);
+
+        } catch (GoogleJsonResponseException e) {
+            Log.d(TAG, "failed to make API request because " + e.getContent());
+        } catch (Throwable e) {
+            Log.d(TAG, "failed to make API request because of " +
+                    e.getMessage());
+        }
+        return "Cloud Vision API request failed. Check logs for details.";
+    }
+
+    private static String convertResponseToString(BatchAnnotateImagesResponse response) {
+        String message = "";
+
+        List<EntityAnnotation> labels = response.getResponses().get(0).getTextAnnotations();
+        if (labels != null) {
+            for (EntityAnnotation label : labels) {
+                message += String.format("%s", label.getDescription());
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * Uploads the photo to the Dropbox URL the server hands out, then posts the note with the
+     * photo's URI.
+     */
+    private static void uploadNote(NotesDbAdapter dbHelper, long rowId, String imagePath) {
+        try {
+            HttpTransport httpTransport = new NetHttpTransport();
+            HttpRequestFactory requestFactory =
+                    httpTransport.createRequestFactory(new BackOffInitializer());
+            GenericUrl genericUrl = new GenericUrl(Configuration.DROPBOX_URL);
+
+            HttpRequest httpGetRequest = requestFactory.buildGetRequest(genericUrl);
+            HttpResponse httpGetResponse = httpGetRequest.execute();
+            Log.i(TAG, "HTTP STATUS:: " + httpGetResponse.getStatusCode());
+
+            if (httpGetResponse.getStatusCode() != 200) {
+                return;
+            }
+            JSONObject getJson = null;
+            try {
+                String response = httpGetResponse.parseAsString();
+                Log.i(TAG, "URL:: " + response);
+                getJson = new JSONObject(response);
+            } finally {
+                httpGetResponse.disconnect();
+            }
+
+            {
+                MultipartContent content = new MultipartContent().setMediaType(
+                        new HttpMediaType("multipart/form-data")
+                                .setParameter("boundary", "__END_OF_PART__"));
+
+                MultipartContent.Part rowIdPart = new MultipartContent.Part(
+                        new ByteArrayContent(null, String.valueOf(rowId).getBytes()));
+                rowIdPart.setHeaders(new HttpHeaders().set(
+                        "Content-Disposition", "form-data; name=\"rowId\""));
+                content.addPart(rowIdPart);
+
+                FileContent fileContent = new FileContent("image/jpeg", new File(imagePath));
+                MultipartContent.Part part = new MultipartContent.Part(fileContent);
+                part.setHeaders(new HttpHeaders().set(
+                        "Content-Disposition",
+                        String.format("form-data; name=\"file\"; filename=\"%s\"", imagePath)));
+                content.addPart(part);
+
+                HttpResponse httpPostResponse = null;
+                try {
+                    httpPostResponse = requestFactory.buildPostRequest(
+                            new GenericUrl(getJson.getString("url")), content).execute();
+
+                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
+                    String response = httpPostResponse.parseAsString();
+                    Log.i(TAG, "URI:: " + response);
+                    JSONObject postJson = new JSONObject(response);
+
+                    Note updatedNote = new Note();
+                    updatedNote.id = rowId;
+                    updatedNote.uri = postJson.getString("uri");
+                    dbHelper.updateNote(updatedNote);
+                } finally {
+                    if (httpPostResponse != null) {
+                        httpPostResponse.disconnect();
+                    }
+                }
+            }
+            {
+                JSONObject jsonObject = new JSONObject();
+
+                Note note = dbHelper.fetchNote(rowId);
+                jsonObject.put("rowId", note.id);
+                jsonObject.put("wine", note.wine);
+                jsonObject.put("rating", note.rating);
+                jsonObject.put("textExtract", note.textExtract);
+                jsonObject.put("notes", note.notes);
+                jsonObject.put("uri", note.uri);
+                jsonObject.put("timeCreatedMs", note.created);
+                jsonObject.put("timeCreatedTimeZoneOffsetMs", TimeZone.getDefault()
+                        .getRawOffset());
+                jsonObject.put("timeUpdatedMs", note.updated);
+                jsonObject.put("timeUpdatedTimeZoneOffsetMs", TimeZone.getDefault()
+                        .getRawOffset());
+
+                HttpResponse httpPostResponse = null;
+                try {
+                    httpPostResponse = requestFactory.buildPostRequest(
+                            new GenericUrl(Configuration.CONTENTS_URL),
+                            new ByteArrayContent("application/json",
+                                    jsonObject.toString().getBytes())).execute();
+
+                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
+                } finally {
+                    if (httpPostResponse != null) {
+                        httpPostResponse.disconnect();
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Retries requests the server answers with 503, backing off exponentially for up to
+     * 15 minutes.
+     */
+    private static class BackOffInitializer implements HttpRequestInitializer,
+            HttpUnsuccessfulResponseHandler {
+
+        @Override
+        public boolean handleResponse(
+                HttpRequest request, HttpResponse response, boolean retrySupported) throws IOException {
+            Log.d(TAG, response.getStatusCode() + " " + response.getStatusMessage());
+            if (response.getStatusCode() == 503) {
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public void initialize(HttpRequest request) throws IOException {
+            ExponentialBackOff backoff = new ExponentialBackOff.Builder()
+                    .setInitialIntervalMillis(1000)
+                    .setMaxElapsedTimeMillis(900000)
+                    .setMaxIntervalMillis(10000)
+                    .setMultiplier(1.5)
+                    .setRandomizationFactor(0.5)
+                    .build();
+            request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(backoff));
+        }
+    }
+}
@@ -28,26 +28,38 @@ import android.support.v4.view.ViewPager;
 import android.util.DisplayMetrics;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.ViewGroup;
 import android.view.WindowManager.LayoutParams;
 
 //import com.cm.android.displayingbitmaps.BuildConfig;
 //import com.cm.android.displayingbitmaps.R;
+import com.cm.android.winecellar.db.Note;
 import com.cm.android.winecellar.db.NotesDbAdapter;
-import com.cm.android.winecellar.provider.Images;
+import com.cm.android.winecellar.db.PagedNotes;
 import com.cm.android.winecellar.util.ImageCache;
 import com.cm.android.winecellar.util.ImageFetcher;
 import com.cm.android.winecellar.util.Utils;
 import com.vvw.activity.lite.BuildConfig;
 import com.vvw.activity.lite.R;
 
-public class ImageDetailActivity extends FragmentActivity implements OnClickListener {
-    private static final String IMAGE_CACHE_DIR = "images";
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ImageDetailActivity extends FragmentActivity implements OnClickListener,
+        PagedNotes.OnNotesChangedListener {
     public static final String EXTRA_IMAGE = "extra_image";
+    public static final String EXTRA_COUNT = "extra_count";
+    public static final String EXTRA_ORDER_BY = "extra_order_by";
+    public static final String EXTRA_QUERY = "extra_query";
 
     private ImagePagerAdapter mAdapter;
     private ImageFetcher mImageFetcher;
     private ViewPager mPager;
     private NotesDbAdapter mDbHelper;
+    private PagedNotes mNotes;
+    // The item to show once the count is known, or -1
+    private int mPendingItem = -1;
 
 
     @TargetApi(VERSION_CODES.HONEYCOMB)
@@ -73,9 +85,9 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         // cache.
         final int longest = (height > width ? height : width) / 2;
 
+        // Its own memory budget, so full screen decodes never evict the grid's thumbnails
         ImageCache.ImageCacheParams cacheParams =
-                new ImageCache.ImageCacheParams(this, IMAGE_CACHE_DIR);
-        cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
+                new ImageCache.ImageCacheParams(this, ImageCache.SizeClass.DETAIL);
 
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         mImageFetcher = new ImageFetcher(this, longest);
@@ -86,12 +98,29 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
         mDbHelper = new NotesDbAdapter(this);
         mDbHelper.open();
 
-        // Set up ViewPager and backing adapter
-        mAdapter = new ImagePagerAdapter(getSupportFragmentManager(), Images.getImageUrls(ImageDetailActivity.this).size());
+        // Set up ViewPager and backing adapter, in the same order and with the same search as the
+        // grid that launched us
+        String orderBy = getIntent().getStringExtra(EXTRA_ORDER_BY);
+        if (orderBy == null) {
+            orderBy = NotesDbAdapter.ORDER_BY_UPDATED;
+        }
+        // Nothing is queried on the main thread: the pager is laid out with the grid's count, and
+        // the count and pages around the current item are loaded in the background as it moves
+        mNotes = new PagedNotes(mDbHelper, orderBy);
+        mNotes.setQuery(getIntent().getStringExtra(EXTRA_QUERY));
+        mNotes.setOnNotesChangedListener(this);
+        mAdapter = new ImagePagerAdapter(getSupportFragmentManager(),
+                getIntent().getIntExtra(EXTRA_COUNT, 0));
         mPager = (ViewPager) findViewById(R.id.pager);
         mPager.setAdapter(mAdapter);
         mPager.setPageMargin((int) getResources().getDimension(R.dimen.horizontal_page_margin));
         mPager.setOffscreenPageLimit(2);
+        mPager.setOnPageChangeListener(new ViewPager.SimpleOnPageChangeListener() {
+            @Override
+            public void onPageSelected(int position) {
+                mNotes.setVisibleRange(position, position);
+            }
+        });
 
         // Set up activity to go full screen
         getWindow().addFlags(LayoutParams.FLAG_FULLSCREEN);
@@ -123,10 +152,26 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
 //            actionBar.hide();
         }
 
-        // Set the current item based on the extra passed in to this activity
+        // Set the current item based on the extra passed in to this activity, once there is one
         final int extraCurrentItem = getIntent().getIntExtra(EXTRA_IMAGE, -1);
         if (extraCurrentItem != -1) {
-            mPager.setCurrentItem(extraCurrentItem);
+            if (extraCurrentItem < mAdapter.getCount()) {
+                mPager.setCurrentItem(extraCurrentItem);
+            } else {
+                mPendingItem = extraCurrentItem;
+            }
+        }
+        final int currentItem = Math.max(0, extraCurrentItem);
+        mNotes.setVisibleRange(currentItem, currentItem);
+        mNotes.refresh();
+    }
+
+    @Override
+    public void onNotesChanged() {
+        mAdapter.setCount(mNotes.getCount());
+        if (mPendingItem != -1 && mPendingItem < mAdapter.getCount()) {
+            mPager.setCurrentItem(mPendingItem, false);
+            mPendingItem = -1;
         }
     }
 
@@ -147,9 +192,8 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
     protected void onDestroy() {
         super.onDestroy();
         mImageFetcher.closeCache();
-        //database
-        if (mDbHelper != null)
-            mDbHelper.close();
+        //database, closed by mNotes after any query in progress
+        mNotes.close();
     }
 
 
@@ -172,11 +216,26 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
      * memory at once but create/destroy them on the fly.
      */
     private class ImagePagerAdapter extends FragmentStatePagerAdapter {
-        private final int mSize;
+        private int mSize;
+        // The position of each page that is instantiated, to check it against the reloaded notes
+        private final Map<Object, Integer> mPositions = new HashMap<Object, Integer>();
+        private final String mImageDir;
+        private final String mThumbnailDir;
 
         public ImagePagerAdapter(FragmentManager fm, int size) {
             super(fm);
             mSize = size;
+            mImageDir = Utils.getExternalImageStorageDir(ImageDetailActivity.this).getAbsolutePath();
+            mThumbnailDir = Utils.getExternalThumbnailStorageDir(ImageDetailActivity.this).getAbsolutePath();
+        }
+
+        /**
+         * Sets the number of notes, and replaces the placeholders of those that have loaded and
+         * the pages whose position now holds another note.
+         */
+        public void setCount(int size) {
+            mSize = size;
+            notifyDataSetChanged();
         }
 
         @Override
@@ -186,9 +245,50 @@ public class ImageDetailActivity extends FragmentActivity implements OnClickList
 
         @Override
         public Fragment getItem(int position) {
-            return ImageDetailFragment.newInstance(Images.getImageUrls(ImageDetailActivity.this).get(position),
-                        Images.getThumbnailUrls(ImageDetailActivity.this).get(position));
+            // Normally prefetched by onPageSelected(); a jump, or a launch, can land on a page
+            // still loading
+            final Note note = mNotes.get(position);
+            if (note == null) {
+                return ImageDetailFragment.newPlaceholder();
+            }
+            final String fileName = Utils.getPictureFileName(note.picture, note.id);
+            return ImageDetailFragment.newInstance(note.id,
+                    mImageDir + File.separator + fileName,
+                    mThumbnailDir + File.separator + fileName);
+        }
+
+        @Override
+        public Object instantiateItem(ViewGroup container, int position) {
+            final Object item = super.instantiateItem(container, position);
+            mPositions.put(item, position);
+            return item;
+        }
 
+        @Override
+        public void destroyItem(ViewGroup container, int position, Object object) {
+            mPositions.remove(object);
+            super.destroyItem(container, position, object);
+        }
+
+        @Override
+        public int getItemPosition(Object object) {
+            final ImageDetailFragment fragment = (ImageDetailFragment) object;
+            // Placeholders are made again, from their note if it has loaded
+            if (fragment.isPlaceholder()) {
+                return POSITION_NONE;
+            }
+            // Deletes, new photos and edits, which bump the sort order, move notes between
+            // positions
+            final Integer position = mPositions.get(object);
+            if (position == null || position >= mSize) {
+                return POSITION_NONE;
+            }
+            final Note note = mNotes.get(position);
+            // Not reloaded yet; checked again when it is
+            if (note == null || note.id == fragment.getBoundRowId()) {
+                return POSITION_UNCHANGED;
+            }
+            return POSITION_NONE;
         }
     }
 
@@ -44,10 +44,14 @@ import com.cm.android.winecellar.AnalyticsTrackers;
 //import com.cm.android.displayingbitmaps.R;
 import com.cm.android.winecellar.db.Note;
 import com.cm.android.winecellar.db.NotesDbAdapter;
+import com.cm.android.winecellar.provider.ImageCatalog;
 import com.cm.android.winecellar.util.AsyncTask;
 import com.cm.android.winecellar.util.Configuration;
+import com.cm.android.winecellar.util.DerivativeSet;
 import com.cm.android.winecellar.util.ImageFetcher;
+import com.cm.android.winecellar.util.ImageLoadScheduler;
 import com.cm.android.winecellar.util.ImageWorker;
+import com.cm.android.winecellar.util.TileCache;
 import com.cm.android.winecellar.util.Utils;
 import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.AdView;
@@ -99,6 +103,7 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
     private String mImageUrl;
     private String mThumbnailUrl;
     private ImageView mImageView;
+    private TiledImageView mTiledImageView;
     private ProgressBar mProgressBar;
     private ImageFetcher mImageFetcher;
     private RatingBar mRatingBar;
@@ -125,13 +130,15 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
     /**
      * Factory method to generate a new instance of the fragment given an image number.
      *
+     * @param rowId    The row id of the note
      * @param imageUrl The image url to load
      * @return A new instance of ImageDetailFragment with imageNum extras
      */
-    public static ImageDetailFragment newInstance(String imageUrl, String imageThumbnailUrl) {
+    public static ImageDetailFragment newInstance(long rowId, String imageUrl, String imageThumbnailUrl) {
         final ImageDetailFragment f = new ImageDetailFragment();
 
         final Bundle args = new Bundle();
+        args.putLong(ROW_ID, rowId);
         args.putString(IMAGE_DATA_EXTRA, imageUrl);
         args.putString(IMAGE_THUMBNAIL_DATA_EXTRA, imageThumbnailUrl);
         f.setArguments(args);
@@ -139,12 +146,33 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
         return f;
     }
 
+    /**
+     * @return a page with only a progress bar, for a note that has not loaded yet
+     */
+    public static ImageDetailFragment newPlaceholder() {
+        return newInstance(0, null, null);
+    }
+
     /**
      * Empty constructor as per the Fragment documentation
      */
     public ImageDetailFragment() {
     }
 
+    /**
+     * @return true if this page stands in for a note that had not loaded when it was made
+     */
+    public boolean isPlaceholder() {
+        return getArguments() == null || getArguments().getString(IMAGE_DATA_EXTRA) == null;
+    }
+
+    /**
+     * @return the row id of the note this page was made for, or 0 for a placeholder
+     */
+    public long getBoundRowId() {
+        return getArguments() != null ? getArguments().getLong(ROW_ID) : 0;
+    }
+
     /**
      * Populate image using a url from extras, use the convenience factory method
      * to create this fragment.
@@ -154,11 +182,13 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
         super.onCreate(savedInstanceState);
         mImageUrl = getArguments() != null ? getArguments().getString(IMAGE_DATA_EXTRA) : null;
         mThumbnailUrl = getArguments() != null ? getArguments().getString(IMAGE_THUMBNAIL_DATA_EXTRA) : null;
-        mRowId = Utils.extractRowIdFromFileName(mImageUrl);
+        mRowId = getArguments() != null && getArguments().containsKey(ROW_ID)
+                ? Long.valueOf(getArguments().getLong(ROW_ID))
+                : Utils.extractRowIdFromFileName(mImageUrl);
 
         mTracker = Utils.getAnalyticsTracker(getActivity(), AnalyticsTrackers.Target.APP);
-        //required to set the options menu
-        setHasOptionsMenu(true);
+        //required to set the options menu; a placeholder has nothing to zoom, delete or save
+        setHasOptionsMenu(!isPlaceholder());
 
         mVibrator = (Vibrator) getActivity().getSystemService(getActivity().VIBRATOR_SERVICE);
 
@@ -176,6 +206,13 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
         // Inflate and locate the main ImageView
         final View v = inflater.inflate(R.layout.image_detail_fragment, container, false);
         mImageView = (ImageView) v.findViewById(R.id.imageView);
+        mTiledImageView = (TiledImageView) v.findViewById(R.id.tiledImageView);
+        mImageView.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                toggleZoom();
+            }
+        });
         mProgressBar = (ProgressBar) v.findViewById(R.id.progressbar);
         //@author anshu:
         //Admob
@@ -216,6 +253,9 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
             }
         });
 
+        if (isPlaceholder()) {
+            return;
+        }
         mSave.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
@@ -237,7 +277,13 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
         // cache can be used over all pages in the ViewPager
         if (ImageDetailActivity.class.isInstance(getActivity())) {
             mImageFetcher = ((ImageDetailActivity) getActivity()).getImageFetcher();
-            mImageFetcher.loadImage(mImageUrl, mImageView, this);
+            // Offscreen pages the pager creates ahead of time load behind the current one; a
+            // placeholder keeps its progress bar until it is replaced
+            if (!isPlaceholder()) {
+                mImageFetcher.loadImage(mImageUrl, mImageView, this, getUserVisibleHint()
+                        ? ImageLoadScheduler.PRIORITY_VISIBLE
+                        : ImageLoadScheduler.PRIORITY_PREFETCH);
+            }
 
             //database opened and managed by over arching activity
             mDbHelper = ((ImageDetailActivity) getActivity()).getDbHelper();
@@ -254,6 +300,9 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
             ImageWorker.cancelWork(mImageView);
             mImageView.setImageDrawable(null);
         }
+        if (mTiledImageView != null) {
+            mTiledImageView.setImagePath(null);
+        }
     }
 
     @Override
@@ -268,6 +317,9 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
             case android.R.id.home:
                 NavUtils.navigateUpFromSameTask(getActivity());
                 return true;
+            case R.id.zoom_menu:
+                toggleZoom();
+                return true;
             case R.id.delete_menu:
                 deleteImage();
                 return true;
@@ -275,6 +327,23 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Switches between the details and the photo shown full screen in a {@link TiledImageView},
+     * where labels can be zoomed into and read. The tiled view only holds the photo while shown.
+     */
+    private void toggleZoom() {
+        if (isPlaceholder()) {
+            return;
+        }
+        if (mTiledImageView.getVisibility() == View.VISIBLE) {
+            mTiledImageView.setVisibility(View.GONE);
+            mTiledImageView.setImagePath(null);
+        } else {
+            mTiledImageView.setImagePath(mImageUrl);
+            mTiledImageView.setVisibility(View.VISIBLE);
+        }
+    }
+
     private void deleteImage() {
         AlertDialog.Builder builder = new AlertDialog.Builder(ImageDetailFragment.this.getActivity());
 
@@ -294,6 +363,9 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
                             File thumbnailFile = new File(mThumbnailUrl);
                             //delete thumbnail first for better ux
                             if (thumbnailFile.delete() && imageFile.delete()) {
+                                DerivativeSet.delete(mImageUrl);
+                                TileCache.getInstance().evictImage(mImageUrl);
+                                ImageCatalog.getInstance(getActivity()).invalidate();
                                 List<Object> data = new ArrayList<Object>();
                                 //delete thumbnail first
                                 data.add(mThumbnailUrl);
@@ -528,6 +600,8 @@ public class ImageDetailFragment extends Fragment implements ImageWorker.OnImage
                 File thumbnailFile = new File(mImageUrl);
                 //delete thumbnail first for better ux
                 if (thumbnailFile.delete() && imageFile.delete()) {
+                    DerivativeSet.delete(mImageUrl);
+                    TileCache.getInstance().evictImage(mImageUrl);
                     List<Object> data = new ArrayList<Object>();
                     //delete thumbnail first
                     data.add(mImageThumbnailUrl);
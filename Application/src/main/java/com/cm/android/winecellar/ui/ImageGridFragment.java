@@ -34,6 +34,7 @@ import android.os.Bundle;
 import android.os.Vibrator;
 import android.provider.MediaStore;
 import android.support.v4.app.Fragment;
+import android.util.DisplayMetrics;
 import android.util.TypedValue;
 import android.view.LayoutInflater;
 import android.view.Menu;
@@ -49,70 +50,40 @@ import android.widget.BaseAdapter;
 import android.widget.GridView;
 import android.widget.ImageView;
 import android.widget.RatingBar;
-import android.widget.Toast;
+import android.widget.SearchView;
+import android.widget.TextView;
 
 import android.util.Log;
 import com.cm.android.winecellar.AnalyticsTrackers;
 import com.cm.android.winecellar.db.Note;
 import com.cm.android.winecellar.db.NotesDbAdapter;
+import com.cm.android.winecellar.db.PagedNotes;
 import com.cm.android.winecellar.provider.AuthProvider;
-import com.cm.android.winecellar.provider.Images;
-import com.cm.android.winecellar.util.Configuration;
+import com.cm.android.winecellar.provider.ImageCatalog;
+import com.cm.android.winecellar.provider.LabelUploader;
+import com.cm.android.winecellar.util.EncodingPolicy;
 import com.cm.android.winecellar.util.ImageCache;
 import com.cm.android.winecellar.util.ImageFetcher;
 import com.cm.android.winecellar.util.ImageWorker;
+import com.cm.android.winecellar.util.ThumbnailGenerator;
 import com.cm.android.winecellar.util.Utils;
 import com.google.android.gms.ads.AdRequest;
 import com.google.android.gms.ads.AdView;
 import com.google.android.gms.analytics.HitBuilders;
 import com.google.android.gms.analytics.Tracker;
-import com.google.api.client.googleapis.json.GoogleJsonResponseException;
-import com.google.api.client.http.ByteArrayContent;
-import com.google.api.client.http.FileContent;
-import com.google.api.client.http.GenericUrl;
-import com.google.api.client.http.HttpBackOffUnsuccessfulResponseHandler;
 import com.google.api.client.http.HttpContent;
-import com.google.api.client.http.HttpHeaders;
-import com.google.api.client.http.HttpMediaType;
-import com.google.api.client.http.HttpRequest;
-import com.google.api.client.http.HttpRequestFactory;
-import com.google.api.client.http.HttpRequestInitializer;
-import com.google.api.client.http.HttpResponse;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.http.MultipartContent;
-import com.google.api.client.http.javanet.NetHttpTransport;
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.gson.GsonFactory;
-import com.google.api.client.util.ExponentialBackOff;
 
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Key;
-import com.google.api.client.util.Maps;
-import com.google.api.services.vision.v1.Vision;
-import com.google.api.services.vision.v1.VisionRequestInitializer;
-import com.google.api.services.vision.v1.model.AnnotateImageRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesRequest;
-import com.google.api.services.vision.v1.model.BatchAnnotateImagesResponse;
-import com.google.api.services.vision.v1.model.EntityAnnotation;
-import com.google.api.services.vision.v1.model.Feature;
-import com.google.api.services.vision.v1.model.Image;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 import com.vvw.activity.lite.BuildConfig;
 import com.vvw.activity.lite.R;
 
-import org.json.JSONObject;
-
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.TimeZone;
 
 import me.philio.pinentry.PinEntryView;
 
@@ -123,23 +94,27 @@ import me.philio.pinentry.PinEntryView;
  * cache is retained over configuration changes like orientation change so the images are populated
  * quickly if, for example, the user rotates the device.
  */
-public class ImageGridFragment extends Fragment implements AdapterView.OnItemClickListener {
+public class ImageGridFragment extends Fragment implements AdapterView.OnItemClickListener,
+        ImageCatalog.OnCatalogChangedListener, PagedNotes.OnNotesChangedListener {
     private static final String TAG = "ImageGridFragment";
-    private static final String IMAGE_CACHE_DIR = "thumbs";
     private static final int REQUEST_TAKE_PHOTO = 1;
+    private static final String GRID_ORDER_BY = NotesDbAdapter.ORDER_BY_UPDATED;
 
     private int mImageThumbSize;
     private int mImageThumbSpacing;
     private ImageAdapter mAdapter;
     private ImageFetcher mImageFetcher;
+    private ImageCatalog mImageCatalog;
+    private NotesDbAdapter mDbHelper;
+    private PagedNotes mNotes;
     //private Uri mImageUri;
     private PinEntryView mPinEntryView;
 
     private Tracker mTracker;
     private AdView mAdView;
+    // Whether the screen view waits for the count of notes
+    private boolean mScreenViewPending;
 
-    private static String CLOUD_VISION_API_KEY;
-    private static String APPLICATION_NAME;
     private Vibrator mVibrator;
     private GridView mGridView;
     private Bundle mExtras;
@@ -161,12 +136,30 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         mImageThumbSize = getResources().getDimensionPixelSize(R.dimen.image_thumbnail_size);
         mImageThumbSpacing = getResources().getDimensionPixelSize(R.dimen.image_thumbnail_spacing);
 
+        mImageCatalog = ImageCatalog.getInstance(getActivity());
+        mImageCatalog.addOnCatalogChangedListener(this);
+
+        //database, kept open for the lifetime of the paged notes
+        mDbHelper = new NotesDbAdapter(getActivity());
+        mDbHelper.open();
+        mNotes = new PagedNotes(mDbHelper, GRID_ORDER_BY);
+        mNotes.setOnNotesChangedListener(this);
+
         mAdapter = new ImageAdapter(getActivity());
 
-        ImageCache.ImageCacheParams cacheParams =
-                new ImageCache.ImageCacheParams(getActivity(), IMAGE_CACHE_DIR);
+        // Its own memory budget, apart from the pager's full screen images
+        ImageCache.ImageCacheParams cacheParams = new ImageCache.ImageCacheParams(getActivity(),
+                ImageCache.SizeClass.THUMBNAIL);
 
-        cacheParams.setMemCacheSizePercent(0.25f); // Set memory cache to 25% of app memory
+        cacheParams.diskCachePackFile = true; // Thumbnails are small; keep them in pack files
+        // Encoded thumbnails for re-scrolling, kept off the Java heap
+        cacheParams.encodedCacheOffHeap = true;
+        cacheParams.encodedCacheSize = 1024 * 16; // 16MB
+        // Flinging through the whole cellar should not push out the wines looked at most
+        cacheParams.memoryCachePolicy = ImageCache.MemoryCachePolicy.TINY_LFU;
+        // The admission window holds every cell on screen, in either orientation, and a row
+        // either side for the cells bound ahead of a scroll
+        cacheParams.setMemoryCacheWindow(getCellsInUse(), Utils.THUMBNAIL_SIZE);
 
         // The ImageFetcher takes care of loading images into our ImageView children asynchronously
         mImageFetcher = new ImageFetcher(getActivity(), mImageThumbSize);
@@ -184,6 +177,21 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         insertSeedData();
     }
 
+    /**
+     * @return the most grid cells on screen in either orientation, with a row above and below
+     */
+    private int getCellsInUse() {
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int cellSize = mImageThumbSize + mImageThumbSpacing;
+        final int shortSide = Math.min(metrics.widthPixels, metrics.heightPixels);
+        final int longSide = Math.max(metrics.widthPixels, metrics.heightPixels);
+        final int portrait = Math.max(1, shortSide / cellSize)
+                * ((longSide + cellSize - 1) / cellSize + 2);
+        final int landscape = Math.max(1, longSide / cellSize)
+                * ((shortSide + cellSize - 1) / cellSize + 2);
+        return Math.max(portrait, landscape);
+    }
+
     private void insertSeedData() {
         try {
             getActivity().runOnUiThread(new Runnable() {
@@ -194,7 +202,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                         FileOutputStream out2 = null;
                         Bitmap bm1 = null;
                         Bitmap bm2 = null;
-                        NotesDbAdapter dbHelper = null;
                         long rowId = Math.abs(new Random(System
                                 .currentTimeMillis()).nextLong());
 
@@ -210,7 +217,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                             bm2 = BitmapFactory.decodeResource(getResources(), R.drawable.wine_label_icon);
                             File thumbnailFile = new File(thumbnailAbsolutePath, rowId + Utils.PICTURES_EXTENSION);
                             out2 = new FileOutputStream(thumbnailFile);
-                            bm2.compress(Bitmap.CompressFormat.PNG, 100, out2);
+                            EncodingPolicy.getDefault().compress(EncodingPolicy.Tier.THUMBNAIL, bm2, out2);
 
                             Note note = new Note();
                             note.id = rowId;
@@ -222,9 +229,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                             note.share = "Y";
                             note.picture = rowId + Utils.PICTURES_EXTENSION;
 
-                            dbHelper = new NotesDbAdapter(getActivity());
-                            dbHelper.open();
-                            dbHelper.createNote(note);
+                            mDbHelper.createNote(note);
 
                             //finally
                             getActivity().getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE).edit().putString("SEED_DATA_SET", "Y").commit();
@@ -238,8 +243,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                                 out2.flush();
                                 out2.close();
                                 bm2.recycle();
-                                if (dbHelper != null)
-                                    dbHelper.close();
                             } catch (Exception e) {//do nothing}
                             }
                         }
@@ -277,6 +280,10 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             @Override
             public void onScroll(AbsListView absListView, int firstVisibleItem,
                                  int visibleItemCount, int totalItemCount) {
+                // Keep the pages around what is on screen loaded; positions exclude the top row
+                final int numColumns = mAdapter.getNumColumns();
+                mNotes.setVisibleRange(firstVisibleItem - numColumns,
+                        firstVisibleItem + visibleItemCount - 1 - numColumns);
             }
         });
 
@@ -330,10 +337,6 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         //Admob
         mAdView = (AdView) v.findViewById(R.id.adView);
 
-        //constants
-        CLOUD_VISION_API_KEY = getActivity().getResources().getString(R.string.cloud_vision_api_key);
-        APPLICATION_NAME = getActivity().getResources().getString(R.string.app_name);
-
 
         return v;
     }
@@ -343,10 +346,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         super.onStart();
         getActivity().runOnUiThread(new Runnable() {
             public void run() {
-                //GA
-                mTracker.setScreenName("ImageGrid");
-                //use count of images
-                mTracker.send(new HitBuilders.ScreenViewBuilder().setCustomMetric(1, Images.getImageUrls(getActivity()).size()).build());
+                //GA, sent with the count of notes once onResume() has counted them
+                mScreenViewPending = true;
                 //AdMob
                 AdRequest adRequest = new AdRequest.Builder().build();
                 mAdView.loadAd(adRequest);
@@ -395,375 +396,60 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                     String imageFileName = getActivity().getSharedPreferences(Utils.SHARED_PREF_NAME, Context.MODE_PRIVATE).getString("IMAGE_NAME", null);
                     String imageAbsolutePath = Utils.getExternalImageStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
                     String thumbnailAbsolutePath = Utils.getExternalThumbnailStorageDir(getActivity()).getAbsolutePath() + File.separator + imageFileName;
-                    Bitmap thumbnailBitmap = Utils.createThumbnail(getActivity(), imageAbsolutePath, thumbnailAbsolutePath, Utils.THUMBNAIL_SIZE, Utils.THUMBNAIL_SIZE);
-                    mAdapter.notifyDataSetChanged();
 
-                    //Call Google Vision API
-                    uploadImage(thumbnailAbsolutePath, thumbnailBitmap);
+                    //the note exists from the moment the photo does, so the grid can show it
+                    //right away; Cloud Vision fills in the text extract later
+                    Note note = new Note();
+                    note.id = Utils.extractRowIdFromFileName(imageFileName);
+                    //default to Y
+                    note.share = "Y";
+                    note.picture = imageFileName;
+                    createNote(note);
+
+                    //the full size photo is decoded on a worker thread; its cell fills in once
+                    //the thumbnail is written, and the other derivatives follow. The label is
+                    //then read and uploaded by the application wide uploader, so that carries
+                    //on even if this fragment goes away first
+                    ThumbnailGenerator.getInstance().generate(imageAbsolutePath,
+                            thumbnailAbsolutePath, Utils.THUMBNAIL_SIZE, Utils.THUMBNAIL_SIZE,
+                            LabelUploader.getInstance(getActivity()));
                 }
         }
     }
 
-    public void uploadImage(String imageAbsolutePath, Bitmap bitmap) {
-        try {
-
-            callCloudVision(imageAbsolutePath, bitmap);
-
-
-        } catch (Throwable e) {
-            Log.d(TAG, "Image picking failed because " + e.getMessage());
-            Toast.makeText(getActivity(), "Image picking failed because " + e.getMessage(), Toast.LENGTH_LONG).show();
-        }
-    }
-
-    private void callCloudVision(final String imageAbsolutePath, final Bitmap bitmap) throws IOException {
-        // Switch text to loading
-        // mImageDetails.setText(R.string.loading_message);
-
-        // Do the real work in an async task, because we need to use the network anyway
-        new AsyncTask<Object, Void, String>() {
+    /**
+     * Inserts a note on a background thread, then has the grid reload. Uses an adapter of its
+     * own, so it finishes even if this fragment is destroyed first.
+     */
+    private void createNote(Note note) {
+        final Context context = getActivity().getApplicationContext();
+        new AsyncTask<Note, Void, Long>() {
             @Override
-            protected String doInBackground(Object... params) {
+            protected Long doInBackground(Note... params) {
+                final NotesDbAdapter dbHelper = new NotesDbAdapter(context);
                 try {
-                    HttpTransport httpTransport = new NetHttpTransport();
-                    JsonFactory jsonFactory = GsonFactory.getDefaultInstance();
-
-                    Vision.Builder builder = new Vision.Builder(httpTransport, jsonFactory, null);
-                    builder.setVisionRequestInitializer(new
-                            VisionRequestInitializer(CLOUD_VISION_API_KEY));
-                    Vision vision = builder.build();
-                    builder.setApplicationName(APPLICATION_NAME);
-
-                    BatchAnnotateImagesRequest batchAnnotateImagesRequest =
-                            new BatchAnnotateImagesRequest();
-                    batchAnnotateImagesRequest.setRequests(new ArrayList<AnnotateImageRequest>() {{
-                        AnnotateImageRequest annotateImageRequest = new AnnotateImageRequest();
-
-                        // Add the image
-                        Image base64EncodedImage = new Image();
-                        // Convert the bitmap to a JPEG
-                        // Just in case it's a format that Android understands but Cloud Vision
-                        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-                        bitmap.compress(Bitmap.CompressFormat.JPEG, 50, byteArrayOutputStream);
-                        byte[] imageBytes = byteArrayOutputStream.toByteArray();
-
-                        // Base64 encode the JPEG
-                        base64EncodedImage.encodeContent(imageBytes);
-                        annotateImageRequest.setImage(base64EncodedImage);
-
-                        // add the features we want
-                        annotateImageRequest.setFeatures(new ArrayList<Feature>() {{
-                            Feature detection = new Feature();
-                            detection.setType("TEXT_DETECTION");
-                            detection.setMaxResults(1);
-                            add(detection);
-                        }});
-
-                        // Add the list of one thing to the request
-                        add(annotateImageRequest);
-                    }});
-
-                    Vision.Images.Annotate annotateRequest =
-                            vision.images().annotate(batchAnnotateImagesRequest);
-                    // Due to a bug: requests to Vision API containing large images fail when GZipped.
-                    annotateRequest.setDisableGZipContent(true);
-                    Log.d(TAG, "created Cloud Vision request object, sending request");
-
-                    BatchAnnotateImagesResponse response = annotateRequest.execute();
-                    return convertResponseToString(response);
-
-                } catch (GoogleJsonResponseException e) {
-                    Log.d(TAG, "failed to make API request because " + e.getContent());
-                } catch (Throwable e) {
-                    Log.d(TAG, "failed to make API request because of " +
-                            e.getMessage());
-                }
-                return "Cloud Vision API request failed. Check logs for details.";
-            }
-
-            /**
-             * @param response
-             * @return
-             */
-            private String convertResponseToString(BatchAnnotateImagesResponse response) {
-                String message = "";
-
-                List<EntityAnnotation> labels = response.getResponses().get(0).getTextAnnotations();
-                if (labels != null) {
-                    for (EntityAnnotation label : labels) {
-                        message += String.format("%s", label.getDescription());
-                    }
-                }
-
-                return message;
-            }
-
-            protected void onPostExecute(String result) {
-                //mImageDetails.setText(result);
-                Log.i(TAG, "RESULT " +
-                        result);
-                NotesDbAdapter dbHelper = null;
-                try {
-                    dbHelper = new NotesDbAdapter(getActivity());
                     dbHelper.open();
-                    Note newNote = new Note();
-                    newNote.id = Utils.extractRowIdFromFileName(imageAbsolutePath);
-                    newNote.textExtract = result;
-                    dbHelper.createNote(newNote);
-
-                    //TODO: upload to cloud
-
-                    try{
-                        HttpTransport httpTransport = new NetHttpTransport();
-                        HttpRequestFactory requestFactory = httpTransport.createRequestFactory(new MyInitializer());
-                        GenericUrl genericUrl = new GenericUrl(Configuration.DROPBOX_URL);
-
-                        //Get the upload URL from server
-                        HttpRequest httpGetRequest = requestFactory.buildGetRequest(genericUrl);
-                        HttpResponse httpGetResponse = httpGetRequest.execute();
-                        Log.i(TAG, "HTTP STATUS:: " + httpGetResponse.getStatusCode());
-
-                        if (httpGetResponse.getStatusCode() == 200) {
-                            //MyUrl myUrl = null;
-                            JSONObject getJson = null;
-
-                            try {
-                                // process the HTTP response object
-                                String response = httpGetResponse.parseAsString();
-                                Log.i(TAG, "URL:: " + response);
-                                getJson = new JSONObject(response);
-                            } finally {
-                                httpGetResponse.disconnect();
-                            }
-
-                            //upload the image
-                            {
-                                Map<String, String> parameters = Maps.newHashMap();
-                                parameters.put("rowId", String.valueOf(newNote.id));
-
-                                // Add parameters
-                                MultipartContent content = new MultipartContent().setMediaType(
-                                        new HttpMediaType("multipart/form-data")
-                                                .setParameter("boundary", "__END_OF_PART__"));
-
-                                for (String name : parameters.keySet()) {
-                                    MultipartContent.Part part = new MultipartContent.Part(
-                                            new ByteArrayContent(null, parameters.get(name).getBytes()));
-                                    part.setHeaders(new HttpHeaders().set(
-                                            "Content-Disposition", String.format("form-data; name=\"%s\"", name)));
-                                    content.addPart(part);
-                                }
-
-                                // Add file
-                                FileContent fileContent = new FileContent(
-                                        "image/jpeg", new File(imageAbsolutePath));
-                                MultipartContent.Part part = new MultipartContent.Part(fileContent);
-                                part.setHeaders(new HttpHeaders().set(
-                                        "Content-Disposition",
-                                        String.format("form-data; name=\"file\"; filename=\"%s\"", imageAbsolutePath)));
-                                content.addPart(part);
-
-                                HttpResponse httpPostResponse = null;
-
-                                try {
-                                    httpPostResponse = requestFactory.buildPostRequest(
-                                            new GenericUrl(getJson.getString("url")), content).execute();
-
-                                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-                                    // process the HTTP response object
-                                    String response = httpPostResponse.parseAsString();
-                                    Log.i(TAG, "URI:: " + response);
-                                    JSONObject postJson = new JSONObject(response);
-
-                                    //update the uri in the database
-                                    Note updatedNote = new Note();
-                                    updatedNote.id = newNote.id;
-                                    updatedNote.uri = postJson.getString("uri");
-                                    dbHelper.updateNote(updatedNote);
-
-
-                                } finally {
-                                    httpPostResponse.disconnect();
-                                }
-                            }
-                            //upload the Note Json to the server. It now has the URI to the image,and textextract
-                            {
-                                JSONObject jsonObject = new JSONObject();
-
-                                Note note = dbHelper.fetchNote(newNote.id);
-                                jsonObject.put("rowId", note.id);
-                                jsonObject.put("wine", note.wine);
-                                jsonObject.put("rating", note.rating);
-                                jsonObject.put("textExtract", note.textExtract);
-                                jsonObject.put("notes", note.notes);
-                                jsonObject.put("uri", note.uri);
-                                jsonObject.put("timeCreatedMs", note.created);
-                                jsonObject.put("timeCreatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                        .getRawOffset());
-                                jsonObject.put("timeUpdatedMs", note.updated);
-                                jsonObject.put("timeUpdatedTimeZoneOffsetMs", TimeZone.getDefault()
-                                        .getRawOffset());
-
-
-                                HttpResponse httpPostResponse = null;
-
-                                try {
-                                    httpPostResponse = requestFactory.buildPostRequest(
-                                            new GenericUrl(Configuration.CONTENTS_URL),
-                                                new ByteArrayContent("application/json", jsonObject.toString().getBytes())).execute();
-
-                                    Log.i(TAG, "HTTP STATUS:: " + httpPostResponse.getStatusCode());
-
-
-                                } finally {
-                                    httpPostResponse.disconnect();
-                                }
-                            }
-
-                        }
-
-
-                    } catch (Throwable e) {
-                        Log.e(TAG, e.getMessage(), e);
-                    }
-
-
-
-//                    long BACKOFF = Configuration.HTTP_BACKOFF_MS
-//                            + new Random().nextInt(Configuration.HTTP_BACKOFF_MS);
-//                    int MAX_ATTEMPTS = Configuration.HTTP_MAX_ATTEMPTS;
-//                    int CONNECTION_TIMEOUT = Configuration.HTTP_CONNECTION_TIMEOUT;
-//                    int SOCKET_TIMEOUT = Configuration.HTTP_SOCKET_TIMEOUT;
-//                    int[] validResponseCodes = {200};
-//
-//                    for (int j = 1; j <= MAX_ATTEMPTS; j++) {
-//                        Log.d(TAG, "Attempt #" + j + " to upload content");
-//                        try {
-//                            Log.d(TAG, "Entering");
-//                            // wait for network connectivity; will download the content list
-//                            // over cellular network
-//                            int lStatusCode = Utils.retryIfNetworkDisconnected(mConnectivityManager);
-//                            if (lStatusCode == StatusCode.NETWORK_DISCONNECTED)
-//                                break;
-//
-//                            HashMap<String, String> params = new HashMap<String, String>();
-//                            params.put("id", String.valueOf(note.id));
-//
-//                            String responseJson = HttpUtils.doHttpGet(Configuration.DROPBOX_URL, CONNECTION_TIMEOUT, SOCKET_TIMEOUT, validResponseCodes);
-//
-//                            JSONObject jsonObject = new JSONObject(responseJson);
-//                            String url = jsonObject.getString("url");
-//                            Log.d(TAG, "URL: " + url);
-//                            String uri = HttpUtils.doMultiPartHttpPost(url,
-//                                    imageAbsolutePath,
-//                                    CONNECTION_TIMEOUT,
-//                                    SOCKET_TIMEOUT, validResponseCodes);
-//                            Log.d(TAG, "URI: " + uri);
-//                            JSONObject jsonObject1 = new JSONObject();
-//                            jsonObject1.put("id", note.id);
-//                            jsonObject1.put("uri", uri);
-
-//                            HttpUtils.doHttpPost(Configuration.CONTENTS_URL, jsonObject1, "application/json", CONNECTION_TIMEOUT, SOCKET_TIMEOUT, validResponseCodes);
-
-                            // success
-//                            j = MAX_ATTEMPTS;
-//                        } catch (ClientProtocolException e) {
-//                            Log.e(TAG, e.getMessage(), e);
-//                        } catch (IOException e) {
-//                            Log.e(TAG, "IOException on attempt " + j, e);
-//                            if (j == MAX_ATTEMPTS) {
-//                                break;
-//                            }
-//                            try {
-//                                Log.d(TAG, "Sleeping for " + BACKOFF
-//                                        + " ms before retry");
-//                                Thread.sleep(BACKOFF);
-//                            } catch (InterruptedException e1) {
-//                                // Activity finished
-//                                // before we
-//                                // complete - exit.
-//                                Log.d(TAG, "Thread interrupted: abort remaining retries!");
-//                                Thread.currentThread().interrupt();
-//                            }
-//                            // increase backoff
-//                            // exponentially
-//                            BACKOFF *= 2;
-//
-//                        } catch (StatusCodeException e) {
-//                            Log.e(TAG, e.getMessage(), e);
-//                            if (e.getStatusCode() == 503) {
-//                                Log.e(TAG, "Failed to upload on attempt " + j, e);
-//                                if (j == MAX_ATTEMPTS) {
-//                                    break;
-//                                }
-//                                try {
-//                                    Log.d(TAG, "Sleeping for " + BACKOFF
-//                                            + " ms before retry");
-//                                    Thread.sleep(BACKOFF);
-//                                } catch (InterruptedException e1) {
-//                                    // Activity finished before we complete - exit.
-//                                    Log.d(TAG, "Thread interrupted: abort remaining retries!");
-//                                    Thread.currentThread().interrupt();
-//                                }
-//                                // increase backoff exponentially
-//                                BACKOFF *= 2;
-//                            } else {
-//                                break;
-//                            }
-//                        } finally {
-//                            Log.d(TAG, "Exiting");
-//
-//                        }
-//                    }
-
-
+                    return dbHelper.createNote(params[0]);
                 } catch (Throwable e) {
-                    android.util.Log.e(TAG, "error: "
-                            + ((e.getMessage() != null) ? e.getMessage().replace(" ",
-                            "_") : ""), e);
+                    Log.e(TAG, "createNote", e);
+                    return -1L;
                 } finally {
-                    if (dbHelper != null)
-                        dbHelper.close();
+                    dbHelper.close();
                 }
-
-
             }
 
-
-        }.execute();
-    }
-
-    private static class MyInitializer implements HttpRequestInitializer, HttpUnsuccessfulResponseHandler {
-
-        @Override
-        public boolean handleResponse(
-                HttpRequest request, HttpResponse response, boolean retrySupported) throws IOException {
-            Log.d(TAG, response.getStatusCode() + " " + response.getStatusMessage());
-            if(response.getStatusCode() == 503){
-                //retry
-                return true;
+            @Override
+            protected void onPostExecute(Long rowId) {
+                ImageCatalog.getInstance(context).invalidate();
             }
-            return false;
-        }
-
-        @Override
-        public void initialize(HttpRequest request) throws IOException {
-            ExponentialBackOff backoff = new ExponentialBackOff.Builder()
-                    .setInitialIntervalMillis(1000)
-                    .setMaxElapsedTimeMillis(900000)
-                    .setMaxIntervalMillis(10000)
-                    .setMultiplier(1.5)
-                    .setRandomizationFactor(0.5)
-                    .build();
-            request.setUnsuccessfulResponseHandler(new HttpBackOffUnsuccessfulResponseHandler(backoff));
-        }
+        }.executeOnExecutor(AsyncTask.SERIAL_EXECUTOR, note);
     }
 
     @Override
     public void onResume() {
         super.onResume();
         mImageFetcher.setExitTasksEarly(false);
-        mAdapter.notifyDataSetChanged();
+        mNotes.refresh();
     }
 
     @Override
@@ -777,14 +463,37 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onDestroy() {
         super.onDestroy();
+        mImageCatalog.removeOnCatalogChangedListener(this);
+        // Closes mDbHelper too, after any query in progress
+        mNotes.close();
         mImageFetcher.closeCache();
     }
 
+    @Override
+    public void onCatalogChanged() {
+        mNotes.refresh();
+    }
+
+    @Override
+    public void onNotesChanged() {
+        mAdapter.notifyDataSetChanged();
+        if (mScreenViewPending) {
+            mScreenViewPending = false;
+            //use count of notes, one per photo
+            mTracker.setScreenName("ImageGrid");
+            mTracker.send(new HitBuilders.ScreenViewBuilder()
+                    .setCustomMetric(1, mNotes.getCount()).build());
+        }
+    }
+
     @TargetApi(VERSION_CODES.JELLY_BEAN)
     @Override
     public void onItemClick(AdapterView<?> parent, View v, int position, long id) {
         final Intent i = new Intent(getActivity(), ImageDetailActivity.class);
-        i.putExtra(ImageDetailActivity.EXTRA_IMAGE, (int) id);
+        i.putExtra(ImageDetailActivity.EXTRA_IMAGE, position - mAdapter.getNumColumns());
+        i.putExtra(ImageDetailActivity.EXTRA_COUNT, mNotes.getCount());
+        i.putExtra(ImageDetailActivity.EXTRA_ORDER_BY, GRID_ORDER_BY);
+        i.putExtra(ImageDetailActivity.EXTRA_QUERY, mNotes.getQuery());
         if (Utils.hasJellyBean()) {
             // makeThumbnailScaleUpAnimation() looks kind of ugly here as the loading spinner may
             // show plus the thumbnail image in GridView is cropped. so using
@@ -800,13 +509,55 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.main_menu, menu);
+
+        // Searches the notes as the user types; closing the search lists every note again
+        final MenuItem searchItem = menu.findItem(R.id.search_menu);
+        final SearchView searchView = (SearchView) searchItem.getActionView();
+        searchView.setQueryHint(getString(R.string.search_hint));
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                searchView.clearFocus();
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                search(newText);
+                return true;
+            }
+        });
+        searchItem.setOnActionExpandListener(new MenuItem.OnActionExpandListener() {
+            @Override
+            public boolean onMenuItemActionExpand(MenuItem item) {
+                return true;
+            }
+
+            @Override
+            public boolean onMenuItemActionCollapse(MenuItem item) {
+                search(null);
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Shows only the notes matching the query, best match first, or every note if it is null or
+     * empty.
+     */
+    private void search(String query) {
+        final String previous = mNotes.getQuery();
+        mNotes.setQuery(query);
+        if (previous == null ? mNotes.getQuery() == null : previous.equals(mNotes.getQuery())) {
+            return;
+        }
+        mNotes.refresh();
+        mGridView.setSelection(0);
     }
 
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
-            case R.id.search_menu:
-                return true;
             case R.id.logout_menu:
                 logout();
                 return true;
@@ -841,10 +592,14 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
      * The main adapter that backs the GridView. This is fairly standard except the number of
      * columns in the GridView is used to create a fake top row of empty views as we use a
      * transparent ActionBar and don't want the real top row of images to start off covered by it.
+     * Cells are bound from {@link PagedNotes}; the thumbnail path is derived from the picture
+     * column, so binding does no file or database I/O. Cells whose page has not arrived yet show
+     * the placeholder until {@link #onNotesChanged()} rebinds them.
      */
     private class ImageAdapter extends BaseAdapter {
 
         private final Context mContext;
+        private final String mThumbnailDir;
         private int mItemHeight = 0;
         private int mNumColumns = 0;
         private int mActionBarHeight = 0;
@@ -853,6 +608,7 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
         public ImageAdapter(Context context) {
             super();
             mContext = context;
+            mThumbnailDir = Utils.getExternalThumbnailStorageDir(context).getAbsolutePath();
             mImageViewLayoutParams = new GridView.LayoutParams(
                     LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT);
             // Calculate ActionBar height
@@ -873,23 +629,28 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 
             // Size + number of columns for top empty row
             //return Images.imageThumbUrls.length + mNumColumns;
-            //return Images.getThumbnailUrls(getActivity()).size() + mNumColumns;
-            return Images.getThumbnailUrls(getActivity()).size() + mNumColumns;
+            return mNotes.getCount() + mNumColumns;
         }
 
         @Override
         public Object getItem(int position) {
 //            return position < mNumColumns ?
 //                    null : Images.imageThumbUrls[position - mNumColumns];
-//            return position < mNumColumns ?
-//                    null : Images.getThumbnailUrls(getActivity()).get(position - mNumColumns);
-            return position < mNumColumns ?
-                    null : Images.getThumbnailUrls(getActivity()).get(position - mNumColumns);
+            final Note note = position < mNumColumns ? null : mNotes.get(position - mNumColumns);
+            return note == null ? null : getThumbnailPath(note);
         }
 
         @Override
         public long getItemId(int position) {
-            return position < mNumColumns ? 0 : position - mNumColumns;
+            final Note note = position < mNumColumns ? null : mNotes.get(position - mNumColumns);
+            return note == null ? 0 : note.id;
+        }
+
+        /**
+         * @return thumbnail path of the note
+         */
+        private String getThumbnailPath(Note note) {
+            return mThumbnailDir + File.separator + Utils.getPictureFileName(note.picture, note.id);
         }
 
         @Override
@@ -905,7 +666,8 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 
         @Override
         public boolean hasStableIds() {
-            return true;
+            // Ids are unknown until a cell's page has loaded
+            return false;
         }
 
         @Override
@@ -926,20 +688,22 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
             View view;
             ImageView imageView;
             final RatingBar ratingBar;
+            final TextView caption;
             if (convertView == null) { // if it's not recycled, instantiate and initialize
                 //imageView = new RecyclingImageView(mContext);
                 //imageView = (RecyclingImageView)container.findViewById(R.id.grid_image);
                 view = ((LayoutInflater) getActivity().getSystemService(Context.LAYOUT_INFLATER_SERVICE)).inflate(R.layout.grid_item, container, false);
                 imageView = (RecyclingImageView) view.findViewById(R.id.grid_image);
                 imageView.setScaleType(ImageView.ScaleType.CENTER_CROP);
-                imageView.setLayoutParams(mImageViewLayoutParams);
                 ratingBar = (RatingBar) view.findViewById(R.id.grid_image_rating);
+                caption = (TextView) view.findViewById(R.id.grid_image_caption);
 
             } else { // Otherwise re-use the converted view
                 //imageView = (ImageView) convertView;
                 view = convertView;
                 imageView = (ImageView) convertView.findViewById(R.id.grid_image);
                 ratingBar = (RatingBar) convertView.findViewById(R.id.grid_image_rating);
+                caption = (TextView) convertView.findViewById(R.id.grid_image_caption);
             }
 
             // Check the height matches our calculated column width
@@ -950,16 +714,29 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
                 view.setLayoutParams(mImageViewLayoutParams);
             }
 
+            final Note note = mNotes.get(position - mNumColumns);
+            if (note == null) {
+                // Page still loading, show the placeholder
+                ImageWorker.cancelWork(imageView);
+                imageView.setImageResource(R.drawable.empty_photo);
+                ratingBar.setRating(0f);
+                caption.setVisibility(View.GONE);
+                return view;
+            }
+
+            // Bind the rating and caption straight from the loaded row
+            ratingBar.setRating(parseRating(note.rating));
+            if (note.wine != null && note.wine.length() > 0) {
+                caption.setText(note.wine);
+                caption.setVisibility(View.VISIBLE);
+            } else {
+                caption.setVisibility(View.GONE);
+            }
+
             // Finally load the image asynchronously into the ImageView, this also takes care of
             // setting a placeholder image while the background thread runs
             //mImageFetcher.loadImage(Images.imageThumbUrls[position - mNumColumns], imageView);
-            mImageFetcher.loadImage(Images.getThumbnailUrls(getActivity()).get(position - mNumColumns), imageView, new ImageWorker.OnImageLoadedListener() {
-                @Override
-                public void onImageLoaded(boolean success) {
-                    if (ratingBar != null)
-                        ratingBar.setNumStars(3);
-                }
-            });
+            mImageFetcher.loadImage(getThumbnailPath(note), imageView);
             //mImageFetcher.loadImage(Images.getThumbnailUrls(getActivity()).get(position - mNumColumns), imageView);
 
  /*           new AsyncTask<Object, Void, Void>() {
@@ -991,12 +768,20 @@ public class ImageGridFragment extends Fragment implements AdapterView.OnItemCli
 
             }.execute();
  */
-            return imageView;
+            return view;
             //END_INCLUDE(load_gridview_item)
 
 
         }
 
+        private float parseRating(String rating) {
+            try {
+                return rating != null ? Float.parseFloat(rating) : 0f;
+            } catch (NumberFormatException e) {
+                return 0f;
+            }
+        }
+
         /**
          * Sets the item height. Useful for when we know the column width so the height can be set
          * to match.
@@ -0,0 +1,501 @@
+package com.cm.android.winecellar.ui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.cm.android.common.logger.Log;
+import com.cm.android.winecellar.util.TileCache;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shows a photo at any zoom without ever decoding all of it at full resolution. The photo is cut
+ * into tiles of {@link #TILE_SIZE} decoded pixels at each level, level n being decoded with an
+ * inSampleSize of 2^n; only the tiles in view are decoded, through a {@link BitmapRegionDecoder},
+ * at the coarsest level that still has a decoded pixel for every screen pixel, or a coarser one if
+ * the tiles in view would not fit in half the shared {@link TileCache} they are kept in. Until a
+ * tile is decoded, the coarser tiles already cached and a small whole-image preview are drawn in
+ * its place, so nothing is blank while it loads. A tile that fails to decode is not asked for again
+ * until another photo is shown.
+ * <p/>
+ * Pinch to zoom, drag to pan, and double tap to toggle between the whole photo and its full
+ * resolution. Once zoomed in, drags are kept from the parent, so a ViewPager does not page.
+ */
+public class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+
+    /** The size of a tile, in decoded pixels at every level */
+    public static final int TILE_SIZE = 256;
+    // Screen pixels per photo pixel at the most zoom
+    private static final float MAX_SCALE = 2f;
+    // How many coarser levels are looked for in the cache to stand in for a missing tile
+    private static final int FALLBACK_LEVELS = 2;
+    // Decoded tiles are ARGB_8888
+    private static final int BYTES_PER_PIXEL = 4;
+    // The preview's longer side is at least this share of the screen's longer side
+    private static final float PREVIEW_SCREEN_FRACTION = 0.5f;
+
+    private static final int THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    // Newest requests first, since they are for what is in view now
+    private static final ThreadPoolExecutor sExecutor = new ThreadPoolExecutor(THREADS, THREADS,
+            KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingDeque<Runnable>() {
+        @Override
+        public boolean offer(Runnable r) {
+            return offerFirst(r);
+        }
+    }, new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, TAG + " #" + mCount.getAndIncrement());
+        }
+    });
+
+    static {
+        sExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final TileCache mTileCache = TileCache.getInstance();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    // Only touched on the main thread
+    private final Set<String> mPendingTiles = new HashSet<String>();
+    // Tiles of the current photo that could not be decoded
+    private final Set<String> mFailedTiles = new HashSet<String>();
+    private final Rect mVisible = new Rect();
+    private final Rect mTileRect = new Rect();
+    private final Rect mSrc = new Rect();
+    private final RectF mDst = new RectF();
+
+    private String mImagePath;
+    private BitmapRegionDecoder mDecoder;
+    private Bitmap mPreview;
+    private int mImageWidth;
+    private int mImageHeight;
+
+    // Screen position of a photo pixel is its position * mScale + mTranslate
+    private float mScale;
+    private float mMinScale;
+    private float mTranslateX;
+    private float mTranslateY;
+
+    // Read by the decoding threads, to drop requests for tiles no longer in view
+    private volatile int mGeneration;
+    private volatile int mWantedSampleSize;
+    private volatile Rect mWantedRect = new Rect();
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mScaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoomTo(mScale * detector.getScaleFactor(), detector.getFocusX(),
+                                detector.getFocusY());
+                        return true;
+                    }
+                });
+        mGestureDetector = new GestureDetector(context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onDown(MotionEvent e) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                                            float distanceY) {
+                        mTranslateX -= distanceX;
+                        mTranslateY -= distanceY;
+                        clampTranslation();
+                        invalidate();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onDoubleTap(MotionEvent e) {
+                        zoomTo(isZoomed() ? mMinScale : 1f, e.getX(), e.getY());
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * Shows a photo, or nothing if null, releasing the one shown before. The photo is opened on
+     * a background thread.
+     */
+    public void setImagePath(String imagePath) {
+        if (imagePath == null ? mImagePath == null : imagePath.equals(mImagePath)) {
+            return;
+        }
+        release();
+        mImagePath = imagePath;
+        if (imagePath != null) {
+            open(imagePath);
+        }
+        invalidate();
+    }
+
+    public String getImagePath() {
+        return mImagePath;
+    }
+
+    /**
+     * Shows the whole photo again.
+     */
+    public void resetZoom() {
+        mScale = mMinScale;
+        clampTranslation();
+        invalidate();
+    }
+
+    public boolean isZoomed() {
+        return mDecoder != null && mScale > mMinScale * 1.01f;
+    }
+
+    /**
+     * @return the inSampleSize of the coarsest level with a decoded pixel for every screen pixel
+     * at the given scale
+     */
+    public static int getSampleSize(float scale) {
+        int sampleSize = 1;
+        while (sampleSize * 2 * scale <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void open(final String imagePath) {
+        final int generation = mGeneration;
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        final int previewSize = Math.round(PREVIEW_SCREEN_FRACTION
+                * Math.max(metrics.widthPixels, metrics.heightPixels));
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (generation != mGeneration) {
+                    return;
+                }
+                BitmapRegionDecoder decoder = null;
+                Bitmap preview = null;
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(imagePath, false);
+                    final int width = decoder.getWidth();
+                    final int height = decoder.getHeight();
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = 1;
+                    while (Math.max(width, height) / (options.inSampleSize * 2) >= previewSize) {
+                        options.inSampleSize *= 2;
+                    }
+                    preview = decoder.decodeRegion(new Rect(0, 0, width, height), options);
+                } catch (IOException e) {
+                    Log.e(TAG, "open - " + e);
+                } catch (OutOfMemoryError e) {
+                    Log.e(TAG, "open - " + e);
+                }
+                final BitmapRegionDecoder opened = decoder;
+                final Bitmap openedPreview = preview;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            recycle(opened);
+                            return;
+                        }
+                        onOpened(opened, openedPreview);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onOpened(BitmapRegionDecoder decoder, Bitmap preview) {
+        if (decoder == null) {
+            return;
+        }
+        mDecoder = decoder;
+        mPreview = preview;
+        mImageWidth = decoder.getWidth();
+        mImageHeight = decoder.getHeight();
+        fit();
+        invalidate();
+    }
+
+    /**
+     * Drops the photo, and the tile requests for it still queued. The decoder is recycled on a
+     * decoding thread, so the main thread never waits for a tile being decoded.
+     */
+    private void release() {
+        mGeneration++;
+        mPendingTiles.clear();
+        mFailedTiles.clear();
+        recycle(mDecoder);
+        mDecoder = null;
+        mPreview = null;
+        mImageWidth = 0;
+        mImageHeight = 0;
+    }
+
+    private static void recycle(final BitmapRegionDecoder decoder) {
+        if (decoder == null) {
+            return;
+        }
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (decoder) {
+                    decoder.recycle();
+                }
+            }
+        });
+    }
+
+    private void fit() {
+        if (mImageWidth == 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        final boolean wasFitted = !isZoomed();
+        mMinScale = Math.min((float) getWidth() / mImageWidth, (float) getHeight() / mImageHeight);
+        if (wasFitted || mScale < mMinScale) {
+            mScale = mMinScale;
+        }
+        clampTranslation();
+    }
+
+    private void zoomTo(float scale, float focusX, float focusY) {
+        if (mDecoder == null || mScale == 0) {
+            return;
+        }
+        scale = Math.max(mMinScale, Math.min(scale, Math.max(MAX_SCALE, mMinScale)));
+        // Keep the photo pixel under the focus where it is
+        mTranslateX = focusX - (focusX - mTranslateX) * scale / mScale;
+        mTranslateY = focusY - (focusY - mTranslateY) * scale / mScale;
+        mScale = scale;
+        clampTranslation();
+        invalidate();
+    }
+
+    /**
+     * Centres the photo along a side it does not fill, and keeps it filling the view along a side
+     * it does.
+     */
+    private void clampTranslation() {
+        final float width = mImageWidth * mScale;
+        final float height = mImageHeight * mScale;
+        mTranslateX = width <= getWidth() ? (getWidth() - width) / 2
+                : Math.max(getWidth() - width, Math.min(mTranslateX, 0));
+        mTranslateY = height <= getHeight() ? (getHeight() - height) / 2
+                : Math.max(getHeight() - height, Math.min(mTranslateY, 0));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        fit();
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        if (getParent() != null && (isZoomed() || event.getPointerCount() > 1)) {
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mDecoder == null || mScale == 0) {
+            return;
+        }
+        if (mPreview != null) {
+            mDst.set(mTranslateX, mTranslateY, mTranslateX + mImageWidth * mScale,
+                    mTranslateY + mImageHeight * mScale);
+            canvas.drawBitmap(mPreview, null, mDst, mPaint);
+        }
+
+        // The part of the photo in view, in photo pixels
+        mVisible.set((int) Math.floor(-mTranslateX / mScale),
+                (int) Math.floor(-mTranslateY / mScale),
+                (int) Math.ceil((getWidth() - mTranslateX) / mScale),
+                (int) Math.ceil((getHeight() - mTranslateY) / mScale));
+        if (!mVisible.intersect(0, 0, mImageWidth, mImageHeight)) {
+            return;
+        }
+        // Otherwise the tiles in view would push each other out of the cache as they load
+        int sampleSize = getSampleSize(mScale);
+        final long budget = mTileCache.maxSize() * 1024L / 2;
+        while (getTileBytes(mVisible, sampleSize) > budget
+                && TILE_SIZE * sampleSize < Math.max(mImageWidth, mImageHeight)) {
+            sampleSize *= 2;
+        }
+        mWantedSampleSize = sampleSize;
+        if (!mVisible.equals(mWantedRect)) {
+            mWantedRect = new Rect(mVisible);
+        }
+
+        final int tileSpan = TILE_SIZE * sampleSize;
+        for (int row = mVisible.top / tileSpan; row * tileSpan < mVisible.bottom; row++) {
+            for (int column = mVisible.left / tileSpan; column * tileSpan < mVisible.right;
+                 column++) {
+                setTileRect(mTileRect, sampleSize, column, row);
+                final String key = TileCache.getKey(mImagePath, sampleSize, column, row);
+                final Bitmap tile = mTileCache.get(key);
+                if (tile != null) {
+                    drawTile(canvas, tile, null, mTileRect);
+                    continue;
+                }
+                drawFallback(canvas, sampleSize, column, row);
+                if (!mFailedTiles.contains(key) && mPendingTiles.add(key)) {
+                    decodeTile(key, new Rect(mTileRect), sampleSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the part of the nearest coarser cached tile that covers a missing tile, if any.
+     */
+    private void drawFallback(Canvas canvas, int sampleSize, int column, int row) {
+        for (int level = 1; level <= FALLBACK_LEVELS; level++) {
+            final int coarseSampleSize = sampleSize << level;
+            final int coarseColumn = column >> level;
+            final int coarseRow = row >> level;
+            final Bitmap coarse = mTileCache.get(TileCache.getKey(mImagePath, coarseSampleSize,
+                    coarseColumn, coarseRow));
+            if (coarse != null) {
+                final int left = coarseColumn * TILE_SIZE * coarseSampleSize;
+                final int top = coarseRow * TILE_SIZE * coarseSampleSize;
+                mSrc.set((mTileRect.left - left) / coarseSampleSize,
+                        (mTileRect.top - top) / coarseSampleSize,
+                        Math.min(coarse.getWidth(),
+                                (mTileRect.right - left + coarseSampleSize - 1) / coarseSampleSize),
+                        Math.min(coarse.getHeight(),
+                                (mTileRect.bottom - top + coarseSampleSize - 1) / coarseSampleSize));
+                drawTile(canvas, coarse, mSrc, mTileRect);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Draws a tile, or the given part of it, over the part of the photo it shows.
+     */
+    private void drawTile(Canvas canvas, Bitmap tile, Rect src, Rect photoRect) {
+        mDst.set(photoRect.left * mScale + mTranslateX, photoRect.top * mScale + mTranslateY,
+                photoRect.right * mScale + mTranslateX, photoRect.bottom * mScale + mTranslateY);
+        canvas.drawBitmap(tile, src, mDst, mPaint);
+    }
+
+    /**
+     * Sets the part of the photo, in photo pixels, shown by a tile.
+     */
+    private void setTileRect(Rect rect, int sampleSize, int column, int row) {
+        final int tileSpan = TILE_SIZE * sampleSize;
+        rect.set(column * tileSpan, row * tileSpan,
+                Math.min((column + 1) * tileSpan, mImageWidth),
+                Math.min((row + 1) * tileSpan, mImageHeight));
+    }
+
+    /**
+     * @return the most bytes the tiles covering a part of the photo take at a level
+     */
+    private static long getTileBytes(Rect visible, int sampleSize) {
+        final int tileSpan = TILE_SIZE * sampleSize;
+        final long columns = (visible.right - 1) / tileSpan - visible.left / tileSpan + 1;
+        final long rows = (visible.bottom - 1) / tileSpan - visible.top / tileSpan + 1;
+        return columns * rows * TILE_SIZE * TILE_SIZE * BYTES_PER_PIXEL;
+    }
+
+    private void decodeTile(final String key, final Rect rect, final int sampleSize) {
+        final int generation = mGeneration;
+        final BitmapRegionDecoder decoder = mDecoder;
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap tile = null;
+                boolean failed = false;
+                // Skip tiles scrolled or zoomed out of view while queued
+                if (generation == mGeneration && sampleSize == mWantedSampleSize
+                        && Rect.intersects(rect, mWantedRect)) {
+                    final BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inSampleSize = sampleSize;
+                    synchronized (decoder) {
+                        if (!decoder.isRecycled()) {
+                            try {
+                                tile = decoder.decodeRegion(rect, options);
+                            } catch (OutOfMemoryError e) {
+                                Log.e(TAG, "decodeTile - " + e);
+                            }
+                            failed = tile == null;
+                        }
+                    }
+                    if (tile != null) {
+                        mTileCache.put(key, tile);
+                    }
+                }
+                final boolean decoded = tile != null;
+                final boolean failedToDecode = failed;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            mPendingTiles.remove(key);
+                            if (failedToDecode) {
+                                mFailedTiles.add(key);
+                            }
+                            if (decoded) {
+                                invalidate();
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        setImagePath(null);
+    }
+}
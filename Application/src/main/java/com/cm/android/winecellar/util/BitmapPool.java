@@ -0,0 +1,252 @@
+package com.cm.android.winecellar.util;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.BitmapFactory;
+import android.os.Build.VERSION_CODES;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded pool of bitmaps that are no longer displayed or in the memory cache, held by strong
+ * references, for reuse through {@link BitmapFactory.Options#inBitmap}. Bitmaps are grouped so
+ * that a candidate is found without scanning the whole pool:
+ * <ul>
+ * <li>From KitKat on, any bitmap with a large enough allocation can be reused, so bitmaps are
+ * grouped by config and size class, a range of byte counts a quarter of a power of two wide. A
+ * request looks at its own class and the one above it.</li>
+ * <li>Before KitKat, the dimensions and config must match exactly, so that is the group.</li>
+ * </ul>
+ * When the pool is over its byte budget the bitmaps that were added first are dropped. All
+ * methods are thread safe.
+ */
+public class BitmapPool {
+
+    // Size classes per doubling of the byte count
+    private static final int CLASSES_PER_DOUBLING = 4;
+
+    private final int mMaxBytes;
+    private final boolean mSizeClasses;
+    private final Map<Long, ArrayDeque<Bitmap>> mGroups = new HashMap<Long, ArrayDeque<Bitmap>>();
+    // Every pooled bitmap, oldest first
+    private final LinkedHashMap<Bitmap, Slot> mBitmaps = new LinkedHashMap<Bitmap, Slot>();
+    private int mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mPutCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxBytes the most bytes of bitmaps to hold
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mSizeClasses = Utils.hasKitKat();
+    }
+
+    /**
+     * Adds a bitmap that is no longer used. Bitmaps that are immutable, recycled or larger than
+     * the whole budget are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()
+                || bitmap.getConfig() == null || mBitmaps.containsKey(bitmap)) {
+            return;
+        }
+        final int bytes = getAllocationBytes(bitmap);
+        if (bytes > mMaxBytes) {
+            return;
+        }
+        final Long key = mSizeClasses
+                ? sizeClassKey(bitmap.getConfig(), bytes)
+                : exactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayDeque<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            group = new ArrayDeque<Bitmap>();
+            mGroups.put(key, group);
+        }
+        group.addLast(bitmap);
+        mBitmaps.put(bitmap, new Slot(key, bytes));
+        mBytes += bytes;
+        mPutCount++;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Takes a bitmap out of the pool that can be used as inBitmap for a decode.
+     *
+     * @param options options with the out* values populated by a bounds decode, and inSampleSize
+     *                and inPreferredConfig set
+     * @return a bitmap, or null if there is none
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        final Config config =
+                options.inPreferredConfig != null ? options.inPreferredConfig : Config.ARGB_8888;
+        Bitmap bitmap = null;
+        if (mSizeClasses) {
+            final int sampleSize = Math.max(1, options.inSampleSize);
+            final int bytes = (options.outWidth / sampleSize) * (options.outHeight / sampleSize)
+                    * getBytesPerPixel(config);
+            final long key = sizeClassKey(config, bytes);
+            // The class above only holds bigger bitmaps, so any of them fits
+            bitmap = takeFrom(key, bytes);
+            if (bitmap == null) {
+                bitmap = takeFrom(key + 1, bytes);
+            }
+        } else if (options.inSampleSize <= 1) {
+            bitmap = takeFrom(exactKey(options.outWidth, options.outHeight, config), 0);
+        }
+        if (bitmap != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return bitmap;
+    }
+
+    private Bitmap takeFrom(long key, int minBytes) {
+        final ArrayDeque<Bitmap> group = mGroups.get(key);
+        if (group == null) {
+            return null;
+        }
+        // Oldest first, as those have gone longest without being drawn
+        Bitmap found = null;
+        for (Iterator<Bitmap> i = group.iterator(); i.hasNext(); ) {
+            final Bitmap bitmap = i.next();
+            final boolean recycled = bitmap.isRecycled();
+            if (recycled || mBitmaps.get(bitmap).bytes >= minBytes) {
+                i.remove();
+                mBytes -= mBitmaps.remove(bitmap).bytes;
+                if (!recycled) {
+                    found = bitmap;
+                    break;
+                }
+            }
+        }
+        if (group.isEmpty()) {
+            mGroups.remove(key);
+        }
+        return found;
+    }
+
+    /**
+     * Drops the oldest bitmaps until the pool holds at most the given number of bytes.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        final Iterator<Map.Entry<Bitmap, Slot>> i = mBitmaps.entrySet().iterator();
+        while (mBytes > maxBytes && i.hasNext()) {
+            final Map.Entry<Bitmap, Slot> eldest = i.next();
+            final Slot slot = eldest.getValue();
+            final ArrayDeque<Bitmap> group = mGroups.get(slot.key);
+            group.removeFirstOccurrence(eldest.getKey());
+            if (group.isEmpty()) {
+                mGroups.remove(slot.key);
+            }
+            i.remove();
+            // Not recycled: it may still be drawn by a view that has not been rebound yet
+            mBytes -= slot.bytes;
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized void clear() {
+        trimToSize(0);
+    }
+
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    public synchronized int putCount() {
+        return mPutCount;
+    }
+
+    public synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%,"
+                        + "puts=%d,evictions=%d]", mBytes, mMaxBytes, mHitCount, mMissCount,
+                hitPercent, mPutCount, mEvictionCount);
+    }
+
+    private static long sizeClassKey(Config config, int bytes) {
+        return ((long) config.ordinal() << 32) | sizeClass(bytes);
+    }
+
+    private static long exactKey(int width, int height, Config config) {
+        return ((long) width << 32) | ((long) (height & 0xffffff) << 8) | config.ordinal();
+    }
+
+    /**
+     * @return the smallest c such that bytes <= 2^(c / CLASSES_PER_DOUBLING)
+     */
+    static int sizeClass(int bytes) {
+        if (bytes <= 1) {
+            return 0;
+        }
+        int c = (int) Math.ceil(Math.log(bytes) / Math.log(2) * CLASSES_PER_DOUBLING);
+        // Guard against rounding in the logarithm
+        if (bytes > Math.pow(2, (double) c / CLASSES_PER_DOUBLING)) {
+            c++;
+        } else if (c > 0 && bytes <= Math.pow(2, (double) (c - 1) / CLASSES_PER_DOUBLING)) {
+            c--;
+        }
+        return c;
+    }
+
+    @TargetApi(VERSION_CODES.KITKAT)
+    private int getAllocationBytes(Bitmap bitmap) {
+        return mSizeClasses ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private static final class Slot {
+        final long key;
+        final int bytes;
+
+        Slot(long key, int bytes) {
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Return the byte usage per pixel of a bitmap based on its configuration.
+     * @param config The bitmap configuration.
+     * @return The byte usage per pixel.
+     */
+    static int getBytesPerPixel(Config config) {
+        if (config == Config.ARGB_8888) {
+            return 4;
+        } else if (config == Config.RGB_565) {
+            return 2;
+        } else if (config == Config.ARGB_4444) {
+            return 2;
+        } else if (config == Config.ALPHA_8) {
+            return 1;
+        }
+        return 1;
+    }
+}
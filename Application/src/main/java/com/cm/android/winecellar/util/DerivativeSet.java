@@ -0,0 +1,257 @@
+package com.cm.android.winecellar.util;
+
+import com.cm.android.common.logger.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The smaller copies of a photo made when it is taken, described by a JSON manifest, so viewers
+ * can decode the smallest copy that is big enough instead of the full camera image.
+ * <p/>
+ * Photos live in {@code <pictures>/images/<name>} and their thumbnails in
+ * {@code <pictures>/thumbs/<name>}. The other derivatives and the manifest live in
+ * {@code <pictures>/derivatives/}, as {@code <name>.<derivative>.jpg} and {@code <name>.json};
+ * paths in the manifest are relative to {@code <pictures>}. Photos taken before derivatives were
+ * made have no manifest, and are used as they are.
+ */
+public class DerivativeSet {
+    private static final String TAG = "DerivativeSet";
+
+    /** Centre cropped square for the grid; see {@link ThumbnailGenerator#createThumbnail}. */
+    public static final String THUMBNAIL = "thumbnail";
+    /** Covers a square of {@link ThumbnailGenerator#MEDIUM_SIZE}, for the detail pager. */
+    public static final String MEDIUM = "medium";
+    /** Fits in a square of {@link ThumbnailGenerator#OCR_SIZE}, for text detection. */
+    public static final String OCR = "ocr";
+
+    private static final String IMAGES_DIR = "images";
+    private static final String DERIVATIVES_DIR = "derivatives";
+    private static final String MANIFEST_EXTENSION = ".json";
+    private static final int VERSION = 1;
+
+    private final int mSourceWidth;
+    private final int mSourceHeight;
+    private final List<Derivative> mDerivatives;
+
+    /**
+     * One copy of the photo.
+     */
+    public static class Derivative {
+        public final String name;
+        public final File file;
+        public final int width;
+        public final int height;
+        // True if only part of the photo is shown
+        public final boolean cropped;
+
+        public Derivative(String name, File file, int width, int height, boolean cropped) {
+            this.name = name;
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.cropped = cropped;
+        }
+    }
+
+    public DerivativeSet(int sourceWidth, int sourceHeight, List<Derivative> derivatives) {
+        mSourceWidth = sourceWidth;
+        mSourceHeight = sourceHeight;
+        mDerivatives = Collections.unmodifiableList(new ArrayList<Derivative>(derivatives));
+    }
+
+    public int getSourceWidth() {
+        return mSourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return mSourceHeight;
+    }
+
+    public List<Derivative> getDerivatives() {
+        return mDerivatives;
+    }
+
+    /**
+     * @return the derivative with the given name, or null if it was not made
+     */
+    public Derivative get(String name) {
+        for (Derivative derivative : mDerivatives) {
+            if (derivative.name.equals(name)) {
+                return derivative;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the smallest uncropped derivative at least as big as the requested size in both
+     * dimensions, which a sampled decode can bring down to the size without losing detail.
+     *
+     * @return the derivative, or null if only the photo itself is big enough
+     */
+    public Derivative pick(int reqWidth, int reqHeight) {
+        Derivative best = null;
+        for (Derivative derivative : mDerivatives) {
+            if (derivative.cropped || !derivative.file.exists()
+                    || derivative.width < reqWidth || derivative.height < reqHeight) {
+                continue;
+            }
+            if (best == null || (long) derivative.width * derivative.height
+                    < (long) best.width * best.height) {
+                best = derivative;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the path of the smallest file for a photo that is big enough for the requested
+     * size: a derivative if there is one, the photo itself otherwise. Any other path, such as a
+     * thumbnail's, is returned as it is. Reads the manifest, so must not be called on the main
+     * thread.
+     */
+    public static String pick(String imagePath, int reqWidth, int reqHeight) {
+        final DerivativeSet set = load(imagePath);
+        final Derivative derivative = set != null ? set.pick(reqWidth, reqHeight) : null;
+        return derivative != null ? derivative.file.getAbsolutePath() : imagePath;
+    }
+
+    /**
+     * @return where the named derivative of a photo is kept, other than the thumbnail
+     */
+    public static File getDerivativeFile(String imagePath, String name) {
+        final File image = new File(imagePath);
+        return new File(getDerivativesDir(image), getBaseName(image) + "." + name + ".jpg");
+    }
+
+    public static File getManifestFile(String imagePath) {
+        final File image = new File(imagePath);
+        return new File(getDerivativesDir(image), getBaseName(image) + MANIFEST_EXTENSION);
+    }
+
+    /**
+     * @return the derivatives of a photo, or null if there is no readable manifest or the path is
+     * not of a photo in {@code <pictures>/images/}
+     */
+    public static DerivativeSet load(String imagePath) {
+        // A thumbnail has its photo's name, so would otherwise find the photo's manifest
+        if (!IMAGES_DIR.equals(new File(imagePath).getAbsoluteFile().getParentFile().getName())) {
+            return null;
+        }
+        final File manifest = getManifestFile(imagePath);
+        if (!manifest.exists()) {
+            return null;
+        }
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            IoUtils.copy(manifest, bytes);
+            final JSONObject json = new JSONObject(bytes.toString("UTF-8"));
+            if (json.getInt("version") != VERSION) {
+                return null;
+            }
+            final File root = getPicturesDir(new File(imagePath));
+            final JSONArray array = json.getJSONArray("derivatives");
+            final List<Derivative> derivatives = new ArrayList<Derivative>(array.length());
+            for (int i = 0; i < array.length(); i++) {
+                final JSONObject d = array.getJSONObject(i);
+                derivatives.add(new Derivative(d.getString("name"),
+                        new File(root, d.getString("path")), d.getInt("width"),
+                        d.getInt("height"), d.getBoolean("cropped")));
+            }
+            return new DerivativeSet(json.getInt("sourceWidth"), json.getInt("sourceHeight"),
+                    derivatives);
+        } catch (IOException e) {
+            Log.e(TAG, "load - " + e);
+        } catch (JSONException e) {
+            Log.e(TAG, "load - " + e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the manifest of a photo, replacing any earlier one.
+     */
+    public void save(String imagePath) throws IOException {
+        final File image = new File(imagePath);
+        final String root = getPicturesDir(image).getAbsolutePath() + File.separator;
+        final byte[] bytes;
+        try {
+            final JSONArray array = new JSONArray();
+            for (Derivative derivative : mDerivatives) {
+                String path = derivative.file.getAbsolutePath();
+                if (path.startsWith(root)) {
+                    path = path.substring(root.length());
+                }
+                array.put(new JSONObject()
+                        .put("name", derivative.name)
+                        .put("path", path)
+                        .put("width", derivative.width)
+                        .put("height", derivative.height)
+                        .put("cropped", derivative.cropped));
+            }
+            bytes = new JSONObject()
+                    .put("version", VERSION)
+                    .put("source", image.getName())
+                    .put("sourceWidth", mSourceWidth)
+                    .put("sourceHeight", mSourceHeight)
+                    .put("derivatives", array)
+                    .toString().getBytes("UTF-8");
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+
+        final File manifest = getManifestFile(imagePath);
+        manifest.getParentFile().mkdirs();
+        final File temp = new File(manifest.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(manifest)) {
+            temp.delete();
+            throw new IOException("rename to " + manifest + " failed");
+        }
+    }
+
+    /**
+     * Deletes the derivatives of a photo, other than the thumbnail, and the manifest.
+     */
+    public static void delete(String imagePath) {
+        final DerivativeSet set = load(imagePath);
+        if (set != null) {
+            for (Derivative derivative : set.mDerivatives) {
+                if (!THUMBNAIL.equals(derivative.name)) {
+                    derivative.file.delete();
+                }
+            }
+        }
+        getManifestFile(imagePath).delete();
+    }
+
+    private static File getPicturesDir(File image) {
+        return image.getAbsoluteFile().getParentFile().getParentFile();
+    }
+
+    private static File getDerivativesDir(File image) {
+        return new File(getPicturesDir(image), DERIVATIVES_DIR);
+    }
+
+    private static String getBaseName(File image) {
+        final String name = image.getName();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+}
@@ -17,6 +17,7 @@
 package com.cm.android.winecellar.util;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.EOFException;
@@ -34,7 +35,10 @@ import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -42,10 +46,14 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 /**
  ******************************************************************************
@@ -96,6 +104,16 @@ import java.util.concurrent.TimeUnit;
  * an error occurs while writing a cache value, the edit will fail silently.
  * Callers should handle other problems by catching {@code IOException} and
  * responding appropriately.
+ *
+ * <p>Local change: {@link #get} does not take the cache lock. Readable entries
+ * are looked up in a concurrent index and their files opened directly; a
+ * commit racing with the read is detected and the read retried under the lock.
+ * The READ journal lines such lookups owe are queued and appended in batches on
+ * the cleanup thread, so concurrent readers neither wait for each other nor
+ * for journal I/O.
+ *
+ * <p>Local change: the journal can optionally be kept in a binary format,
+ * see {@link #open(File, int, int, long, boolean)}.
  */
 public final class DiskLruCache implements Closeable {
     static final String JOURNAL_FILE = "journal";
@@ -108,8 +126,23 @@ public final class DiskLruCache implements Closeable {
     private static final String REMOVE = "REMOVE";
     private static final String READ = "READ";
 
+    static final String JOURNAL_SNAPSHOT = "journal.snapshot";
+    static final String JOURNAL_SNAPSHOT_TMP = "journal.snapshot.tmp";
+    static final String JOURNAL_LOG = "journal.log";
+    static final int BINARY_MAGIC = 0x444c5243; // "DLRC"
+    static final int BINARY_VERSION_1 = 1;
+    private static final byte OP_CLEAN = 1;
+    private static final byte OP_DIRTY = 2;
+    private static final byte OP_REMOVE = 3;
+    private static final byte OP_READ = 4;
+    /** magic, version, app version, value count, generation and a CRC */
+    private static final int BINARY_HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 4;
+    private static final int MAX_BINARY_KEY_LENGTH = 0xffff;
+
     private static final Charset UTF_8 = Charset.forName("UTF-8");
     private static final int IO_BUFFER_SIZE = 8 * 1024;
+    /** Number of unlocked reads after which their READ lines are appended. */
+    private static final int READ_BATCH_SIZE = 64;
 
     /*
      * This cache uses a journal file named "journal". A typical journal file
@@ -149,18 +182,47 @@ public final class DiskLruCache implements Closeable {
      * occasionally be compacted by dropping redundant lines. A temporary file named
      * "journal.tmp" will be used during compaction; that file should be deleted if
      * it exists when the cache is opened.
+     *
+     * The binary journal keeps the same records in two files. "journal.snapshot"
+     * holds the compacted state and is replaced as a whole (via
+     * "journal.snapshot.tmp") whenever the journal is rebuilt; "journal.log"
+     * holds the records appended since. Both start with a header of big-endian
+     * fields:
+     *     int magic 0x444c5243, int version 1, int app version, int value count,
+     *     long generation, int CRC32 of the preceding fields
+     * followed by records:
+     *     byte op (1 CLEAN, 2 DIRTY, 3 REMOVE, 4 READ), unsigned short key
+     *     length, UTF-8 key bytes, for CLEAN one long length per value,
+     *     int CRC32 of the preceding fields of the record
+     * A log is only replayed if its generation matches the snapshot's, and
+     * replay stops at the first torn or corrupt record, which then triggers a
+     * rebuild.
      */
 
     private final File directory;
     private final File journalFile;
     private final File journalFileTmp;
+    private final File journalSnapshot;
+    private final File journalSnapshotTmp;
+    private final File journalLog;
+    private final boolean binaryJournal;
+    private long journalGeneration;
     private final int appVersion;
     private final long maxSize;
     private final int valueCount;
     private long size = 0;
-    private Writer journalWriter;
+    private volatile JournalWriter journalWriter;
     private final LinkedHashMap<String, Entry> lruEntries
             = new LinkedHashMap<String, Entry>(0, 0.75f, true);
+    /**
+     * Mirrors the keys of lruEntries for unlocked lookups. Only modified while
+     * holding the cache lock, always together with lruEntries.
+     */
+    private final ConcurrentHashMap<String, Entry> index
+            = new ConcurrentHashMap<String, Entry>();
+    /** Entries read without the lock whose READ lines are not yet journaled. */
+    private final ConcurrentLinkedQueue<Entry> pendingReads = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicInteger pendingReadCount = new AtomicInteger();
     private int redundantOpCount;
 
     /**
@@ -275,6 +337,7 @@ public final class DiskLruCache implements Closeable {
                 if (journalWriter == null) {
                     return null; // closed
                 }
+                journalPendingReads();
                 trimToSize();
                 if (journalRebuildRequired()) {
                     rebuildJournal();
@@ -285,11 +348,16 @@ public final class DiskLruCache implements Closeable {
         }
     };
 
-    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize) {
+    private DiskLruCache(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) {
         this.directory = directory;
         this.appVersion = appVersion;
         this.journalFile = new File(directory, JOURNAL_FILE);
         this.journalFileTmp = new File(directory, JOURNAL_FILE_TMP);
+        this.journalSnapshot = new File(directory, JOURNAL_SNAPSHOT);
+        this.journalSnapshotTmp = new File(directory, JOURNAL_SNAPSHOT_TMP);
+        this.journalLog = new File(directory, JOURNAL_LOG);
+        this.binaryJournal = binaryJournal;
         this.valueCount = valueCount;
         this.maxSize = maxSize;
     }
@@ -306,6 +374,24 @@ public final class DiskLruCache implements Closeable {
      */
     public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize)
             throws IOException {
+        return open(directory, appVersion, valueCount, maxSize, false);
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists
+     * there. A journal found in the other format is migrated.
+     *
+     * @param directory a writable directory
+     * @param appVersion
+     * @param valueCount the number of values per cache entry. Must be positive.
+     * @param maxSize the maximum number of bytes this cache should use to store
+     * @param binaryJournal true to keep the journal as a binary snapshot plus
+     *     log, which is read with one mapped read per file instead of being
+     *     parsed line by line; false for the text journal
+     * @throws java.io.IOException if reading or writing the cache directory fails
+     */
+    public static DiskLruCache open(File directory, int appVersion, int valueCount, long maxSize,
+            boolean binaryJournal) throws IOException {
         if (maxSize <= 0) {
             throw new IllegalArgumentException("maxSize <= 0");
         }
@@ -314,13 +400,30 @@ public final class DiskLruCache implements Closeable {
         }
 
         // prefer to pick up where we left off
-        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
-        if (cache.journalFile.exists()) {
+        DiskLruCache cache = new DiskLruCache(directory, appVersion, valueCount, maxSize,
+                binaryJournal);
+        final boolean hasSnapshot = cache.journalSnapshot.exists();
+        if (hasSnapshot || cache.journalFile.exists()) {
             try {
-                cache.readJournal();
+                // A journal in the other format, or a binary log with a torn
+                // tail, is not appended to but rewritten
+                final boolean appendable;
+                if (hasSnapshot) {
+                    appendable = cache.readBinaryJournal() && binaryJournal;
+                } else {
+                    cache.readJournal();
+                    appendable = !binaryJournal;
+                }
                 cache.processJournal();
-                cache.journalWriter = new BufferedWriter(new FileWriter(cache.journalFile, true),
-                        IO_BUFFER_SIZE);
+                if (!appendable) {
+                    cache.rebuildJournal();
+                } else if (binaryJournal) {
+                    cache.journalWriter = cache.new BinaryJournalWriter(cache.journalLog,
+                            cache.journalGeneration, true);
+                } else {
+                    cache.journalWriter = cache.new TextJournalWriter(new BufferedWriter(
+                            new FileWriter(cache.journalFile, true), IO_BUFFER_SIZE));
+                }
                 return cache;
             } catch (IOException journalIsCorrupt) {
 //                System.logW("DiskLruCache " + directory + " is corrupt: "
@@ -331,7 +434,7 @@ public final class DiskLruCache implements Closeable {
 
         // create a new empty cache
         directory.mkdirs();
-        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize);
+        cache = new DiskLruCache(directory, appVersion, valueCount, maxSize, binaryJournal);
         cache.rebuildJournal();
         return cache;
     }
@@ -374,6 +477,7 @@ public final class DiskLruCache implements Closeable {
         String key = parts[1];
         if (parts[0].equals(REMOVE) && parts.length == 2) {
             lruEntries.remove(key);
+            index.remove(key);
             return;
         }
 
@@ -381,6 +485,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            index.put(key, entry);
         }
 
         if (parts[0].equals(CLEAN) && parts.length == 2 + valueCount) {
@@ -396,12 +501,143 @@ public final class DiskLruCache implements Closeable {
         }
     }
 
+    /**
+     * Reads the binary snapshot and, if it belongs to the same generation, the
+     * log appended to it.
+     *
+     * @return true if the log was read to its end and can be appended to
+     */
+    private boolean readBinaryJournal() throws IOException {
+        final ByteBuffer snapshot = mapJournal(journalSnapshot);
+        journalGeneration = readBinaryHeader(snapshot);
+        while (snapshot.hasRemaining()) {
+            if (!readBinaryRecord(snapshot)) {
+                throw new IOException("corrupt journal snapshot at " + snapshot.position());
+            }
+        }
+
+        if (!journalLog.exists()) {
+            return false;
+        }
+        final ByteBuffer log = mapJournal(journalLog);
+        try {
+            if (readBinaryHeader(log) != journalGeneration) {
+                return false; // left over from before the last rebuild
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        int records = 0;
+        while (log.hasRemaining() && readBinaryRecord(log)) {
+            records++;
+        }
+        redundantOpCount = records;
+        return !log.hasRemaining();
+    }
+
+    private static ByteBuffer mapJournal(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            closeQuietly(raf);
+        }
+    }
+
+    /**
+     * @return the generation in the header
+     */
+    private long readBinaryHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < BINARY_HEADER_SIZE) {
+            throw new IOException("truncated journal header");
+        }
+        final byte[] header = new byte[BINARY_HEADER_SIZE - 4];
+        buffer.get(header);
+        final int crc = buffer.getInt();
+        final ByteBuffer fields = ByteBuffer.wrap(header);
+        final int magic = fields.getInt();
+        final int version = fields.getInt();
+        final int appVersionValue = fields.getInt();
+        final int valueCountValue = fields.getInt();
+        if (crc != crc32(header, header.length)
+                || magic != BINARY_MAGIC
+                || version != BINARY_VERSION_1
+                || appVersionValue != appVersion
+                || valueCountValue != valueCount) {
+            throw new IOException("unexpected journal header: ["
+                    + magic + ", " + version + ", " + appVersionValue + ", " + valueCountValue + "]");
+        }
+        return fields.getLong();
+    }
+
+    /**
+     * Reads one record and applies it like {@link #readJournalLine}.
+     *
+     * @return false, leaving the position undefined, if the record is torn or
+     *     fails its checksum
+     */
+    private boolean readBinaryRecord(ByteBuffer buffer) {
+        if (buffer.remaining() < 3) {
+            return false;
+        }
+        final int start = buffer.position();
+        final byte op = buffer.get();
+        final int keyLength = buffer.getShort() & 0xffff;
+        final int recordLength = 3 + keyLength + (op == OP_CLEAN ? 8 * valueCount : 0);
+        if (buffer.remaining() < recordLength - 3 + 4) {
+            return false;
+        }
+        final byte[] record = new byte[recordLength];
+        buffer.position(start);
+        buffer.get(record);
+        if (buffer.getInt() != crc32(record, recordLength)) {
+            return false;
+        }
+
+        final String key = new String(record, 3, keyLength, UTF_8);
+        if (op == OP_REMOVE) {
+            lruEntries.remove(key);
+            index.remove(key);
+            return true;
+        }
+        if (op != OP_CLEAN && op != OP_DIRTY && op != OP_READ) {
+            return false;
+        }
+
+        Entry entry = lruEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key);
+            lruEntries.put(key, entry);
+            index.put(key, entry);
+        }
+        if (op == OP_CLEAN) {
+            final ByteBuffer lengths = ByteBuffer.wrap(record, 3 + keyLength, 8 * valueCount);
+            for (int i = 0; i < valueCount; i++) {
+                entry.lengths[i] = lengths.getLong();
+            }
+            entry.readable = true;
+            entry.currentEditor = null;
+        } else if (op == OP_DIRTY) {
+            entry.currentEditor = new Editor(entry);
+        }
+        // for READ the work was already done by calling lruEntries.get()
+        return true;
+    }
+
+    private static int crc32(byte[] bytes, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, 0, length);
+        return (int) crc.getValue();
+    }
+
     /**
      * Computes the initial size and collects garbage as a part of opening the
      * cache. Dirty entries are assumed to be inconsistent and will be deleted.
      */
     private void processJournal() throws IOException {
         deleteIfExists(journalFileTmp);
+        deleteIfExists(journalSnapshotTmp);
         for (Iterator<Entry> i = lruEntries.values().iterator(); i.hasNext(); ) {
             Entry entry = i.next();
             if (entry.currentEditor == null) {
@@ -415,6 +651,7 @@ public final class DiskLruCache implements Closeable {
                     deleteIfExists(entry.getDirtyFile(t));
                 }
                 i.remove();
+                index.remove(entry.key);
             }
         }
     }
@@ -428,6 +665,11 @@ public final class DiskLruCache implements Closeable {
             journalWriter.close();
         }
 
+        if (binaryJournal) {
+            rebuildBinaryJournal();
+            return;
+        }
+
         Writer writer = new BufferedWriter(new FileWriter(journalFileTmp), IO_BUFFER_SIZE);
         writer.write(MAGIC);
         writer.write("\n");
@@ -449,7 +691,38 @@ public final class DiskLruCache implements Closeable {
 
         writer.close();
         journalFileTmp.renameTo(journalFile);
-        journalWriter = new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE);
+        journalWriter = new TextJournalWriter(
+                new BufferedWriter(new FileWriter(journalFile, true), IO_BUFFER_SIZE));
+        // migrated from the binary journal
+        deleteIfExists(journalSnapshot);
+        deleteIfExists(journalLog);
+    }
+
+    /**
+     * Writes a new snapshot under the next generation and starts an empty log
+     * for it. A crash in between leaves the old log, which is then ignored
+     * because its generation no longer matches.
+     */
+    private void rebuildBinaryJournal() throws IOException {
+        final long generation = journalGeneration + 1;
+        final BinaryJournalWriter writer =
+                new BinaryJournalWriter(journalSnapshotTmp, generation, false);
+        for (Entry entry : lruEntries.values()) {
+            if (entry.currentEditor != null) {
+                writer.writeDirty(entry.key);
+            } else {
+                writer.writeClean(entry);
+            }
+        }
+        writer.sync();
+        writer.close();
+        if (!journalSnapshotTmp.renameTo(journalSnapshot)) {
+            throw new IOException("failed to rename " + journalSnapshotTmp);
+        }
+        journalGeneration = generation;
+        journalWriter = new BinaryJournalWriter(journalLog, generation, false);
+        // migrated from the text journal
+        deleteIfExists(journalFile);
     }
 
     private static void deleteIfExists(File file) throws IOException {
@@ -469,10 +742,43 @@ public final class DiskLruCache implements Closeable {
      * Returns a snapshot of the entry named {@code key}, or null if it doesn't
      * exist is not currently readable. If a value is returned, it is moved to
      * the head of the LRU queue.
+     *
+     * <p>Safe to call from several threads at once; the cache lock is only
+     * taken if the entry is being published while it is read.
      */
-    public synchronized Snapshot get(String key) throws IOException {
+    public Snapshot get(String key) throws IOException {
         checkNotClosed();
         validateKey(key);
+        Entry entry = index.get(key);
+        if (entry == null || !entry.readable) {
+            return null;
+        }
+
+        // An odd publish count means a commit is renaming files right now
+        final int publishCount = entry.publishCount;
+        if ((publishCount & 1) == 0) {
+            final long sequenceNumber = entry.sequenceNumber;
+            InputStream[] ins = openCleanFiles(entry);
+            if (ins == null) {
+                return null;
+            }
+            if (entry.publishCount == publishCount && index.get(key) == entry) {
+                pendingReads.offer(entry);
+                if (pendingReadCount.incrementAndGet() == READ_BATCH_SIZE) {
+                    executorService.submit(cleanupCallable);
+                }
+                return new Snapshot(key, sequenceNumber, ins);
+            }
+            // Raced with a commit or removal; the streams may mix two edits
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
+        }
+        return getLocked(key);
+    }
+
+    private synchronized Snapshot getLocked(String key) throws IOException {
+        checkNotClosed();
         Entry entry = lruEntries.get(key);
         if (entry == null) {
             return null;
@@ -482,28 +788,55 @@ public final class DiskLruCache implements Closeable {
             return null;
         }
 
-        /*
-         * Open all streams eagerly to guarantee that we see a single published
-         * snapshot. If we opened streams lazily then the streams could come
-         * from different edits.
-         */
+        InputStream[] ins = openCleanFiles(entry);
+        if (ins == null) {
+            return null;
+        }
+
+        redundantOpCount++;
+        journalWriter.writeRead(key);
+        if (journalRebuildRequired()) {
+            executorService.submit(cleanupCallable);
+        }
+
+        return new Snapshot(key, entry.sequenceNumber, ins);
+    }
+
+    /*
+     * Open all streams eagerly to guarantee that we see a single published
+     * snapshot. If we opened streams lazily then the streams could come
+     * from different edits.
+     */
+    private InputStream[] openCleanFiles(Entry entry) {
         InputStream[] ins = new InputStream[valueCount];
         try {
             for (int i = 0; i < valueCount; i++) {
                 ins[i] = new FileInputStream(entry.getCleanFile(i));
             }
         } catch (FileNotFoundException e) {
-            // a file must have been deleted manually!
+            // a file must have been deleted manually, or the entry was just removed
+            for (InputStream in : ins) {
+                closeQuietly(in);
+            }
             return null;
         }
+        return ins;
+    }
 
-        redundantOpCount++;
-        journalWriter.append(READ + ' ' + key + '\n');
-        if (journalRebuildRequired()) {
-            executorService.submit(cleanupCallable);
+    /**
+     * Appends the READ lines owed by unlocked {@link #get} calls and moves
+     * their entries to the head of the LRU queue. Entries removed or replaced
+     * since they were read are skipped. Must hold the cache lock.
+     */
+    private void journalPendingReads() throws IOException {
+        Entry entry;
+        while ((entry = pendingReads.poll()) != null) {
+            pendingReadCount.decrementAndGet();
+            if (lruEntries.get(entry.key) == entry) {
+                redundantOpCount++;
+                journalWriter.writeRead(entry.key);
+            }
         }
-
-        return new Snapshot(key, entry.sequenceNumber, ins);
     }
 
     /**
@@ -525,6 +858,7 @@ public final class DiskLruCache implements Closeable {
         if (entry == null) {
             entry = new Entry(key);
             lruEntries.put(key, entry);
+            index.put(key, entry);
         } else if (entry.currentEditor != null) {
             return null; // another edit is in progress
         }
@@ -533,7 +867,7 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = editor;
 
         // flush the journal before creating files to prevent file leaks
-        journalWriter.write(DIRTY + ' ' + key + '\n');
+        journalWriter.writeDirty(key);
         journalWriter.flush();
         return editor;
     }
@@ -578,6 +912,9 @@ public final class DiskLruCache implements Closeable {
             }
         }
 
+        if (success) {
+            entry.publishCount++;
+        }
         for (int i = 0; i < valueCount; i++) {
             File dirty = entry.getDirtyFile(i);
             if (success) {
@@ -598,13 +935,15 @@ public final class DiskLruCache implements Closeable {
         entry.currentEditor = null;
         if (entry.readable | success) {
             entry.readable = true;
-            journalWriter.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+            journalWriter.writeClean(entry);
             if (success) {
                 entry.sequenceNumber = nextSequenceNumber++;
+                entry.publishCount++;
             }
         } else {
             lruEntries.remove(entry.key);
-            journalWriter.write(REMOVE + ' ' + entry.key + '\n');
+            index.remove(entry.key);
+            journalWriter.writeRemove(entry.key);
         }
 
         if (size > maxSize || journalRebuildRequired()) {
@@ -646,8 +985,9 @@ public final class DiskLruCache implements Closeable {
         }
 
         redundantOpCount++;
-        journalWriter.append(REMOVE + ' ' + key + '\n');
+        journalWriter.writeRemove(key);
         lruEntries.remove(key);
+        index.remove(key);
 
         if (journalRebuildRequired()) {
             executorService.submit(cleanupCallable);
@@ -674,6 +1014,7 @@ public final class DiskLruCache implements Closeable {
      */
     public synchronized void flush() throws IOException {
         checkNotClosed();
+        journalPendingReads();
         trimToSize();
         journalWriter.flush();
     }
@@ -690,6 +1031,7 @@ public final class DiskLruCache implements Closeable {
                 entry.currentEditor.abort();
             }
         }
+        journalPendingReads();
         trimToSize();
         journalWriter.close();
         journalWriter = null;
@@ -718,12 +1060,145 @@ public final class DiskLruCache implements Closeable {
             throw new IllegalArgumentException(
                     "keys must not contain spaces or newlines: \"" + key + "\"");
         }
+        if (binaryJournal && key.length() > MAX_BINARY_KEY_LENGTH / 3) {
+            // may not fit the unsigned short length once UTF-8 encoded
+            throw new IllegalArgumentException("key too long: \"" + key + "\"");
+        }
     }
 
     private static String inputStreamToString(InputStream in) throws IOException {
         return readFully(new InputStreamReader(in, UTF_8));
     }
 
+    /**
+     * Appends records to the journal, in either format. Only used while
+     * holding the cache lock.
+     */
+    private abstract class JournalWriter implements Closeable {
+        abstract void writeClean(Entry entry) throws IOException;
+
+        abstract void writeDirty(String key) throws IOException;
+
+        abstract void writeRemove(String key) throws IOException;
+
+        abstract void writeRead(String key) throws IOException;
+
+        abstract void flush() throws IOException;
+    }
+
+    private final class TextJournalWriter extends JournalWriter {
+        private final Writer writer;
+
+        private TextJournalWriter(Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override void writeClean(Entry entry) throws IOException {
+            writer.write(CLEAN + ' ' + entry.key + entry.getLengths() + '\n');
+        }
+
+        @Override void writeDirty(String key) throws IOException {
+            writer.write(DIRTY + ' ' + key + '\n');
+        }
+
+        @Override void writeRemove(String key) throws IOException {
+            writer.write(REMOVE + ' ' + key + '\n');
+        }
+
+        @Override void writeRead(String key) throws IOException {
+            writer.write(READ + ' ' + key + '\n');
+        }
+
+        @Override void flush() throws IOException {
+            writer.flush();
+        }
+
+        @Override public void close() throws IOException {
+            writer.close();
+        }
+    }
+
+    private final class BinaryJournalWriter extends JournalWriter {
+        private final FileOutputStream fileOut;
+        private final OutputStream out;
+        private final CRC32 crc = new CRC32();
+        private ByteBuffer record = ByteBuffer.allocate(256);
+
+        /**
+         * @param append true to append to an existing file of this generation,
+         *     false to replace the file and write a header
+         */
+        private BinaryJournalWriter(File file, long generation, boolean append)
+                throws IOException {
+            fileOut = new FileOutputStream(file, append);
+            out = new BufferedOutputStream(fileOut, IO_BUFFER_SIZE);
+            if (!append) {
+                record.clear();
+                record.putInt(BINARY_MAGIC)
+                        .putInt(BINARY_VERSION_1)
+                        .putInt(appVersion)
+                        .putInt(valueCount)
+                        .putLong(generation);
+                writeRecord();
+            }
+        }
+
+        @Override void writeClean(Entry entry) throws IOException {
+            startRecord(OP_CLEAN, entry.key);
+            for (long length : entry.lengths) {
+                record.putLong(length);
+            }
+            writeRecord();
+        }
+
+        @Override void writeDirty(String key) throws IOException {
+            startRecord(OP_DIRTY, key);
+            writeRecord();
+        }
+
+        @Override void writeRemove(String key) throws IOException {
+            startRecord(OP_REMOVE, key);
+            writeRecord();
+        }
+
+        @Override void writeRead(String key) throws IOException {
+            startRecord(OP_READ, key);
+            writeRecord();
+        }
+
+        private void startRecord(byte op, String key) {
+            final byte[] keyBytes = key.getBytes(UTF_8);
+            final int capacity = 3 + keyBytes.length + 8 * valueCount + 4;
+            if (record.capacity() < capacity) {
+                record = ByteBuffer.allocate(capacity);
+            }
+            record.clear();
+            record.put(op).putShort((short) keyBytes.length).put(keyBytes);
+        }
+
+        /** Appends the buffered fields followed by their checksum. */
+        private void writeRecord() throws IOException {
+            final int length = record.position();
+            crc.reset();
+            crc.update(record.array(), 0, length);
+            record.putInt((int) crc.getValue());
+            out.write(record.array(), 0, length + 4);
+        }
+
+        void sync() throws IOException {
+            out.flush();
+            fileOut.getFD().sync();
+        }
+
+        @Override void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override public void close() throws IOException {
+            out.close();
+        }
+    }
+
     /**
      * A snapshot of the values for an entry.
      */
@@ -900,13 +1375,19 @@ public final class DiskLruCache implements Closeable {
         private final long[] lengths;
 
         /** True if this entry has ever been published */
-        private boolean readable;
+        private volatile boolean readable;
 
         /** The ongoing edit or null if this entry is not being edited. */
         private Editor currentEditor;
 
         /** The sequence number of the most recently committed edit to this entry. */
-        private long sequenceNumber;
+        private volatile long sequenceNumber;
+
+        /**
+         * Incremented before and after a commit renames its files into place,
+         * so an unlocked reader can tell it raced with one.
+         */
+        private volatile int publishCount;
 
         private Entry(String key) {
             this.key = key;
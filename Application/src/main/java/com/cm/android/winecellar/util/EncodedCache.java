@@ -0,0 +1,23 @@
+package com.cm.android.winecellar.util;
+
+/**
+ * Storage for the encoded middle tier of {@link ImageCache}. Implementations are thread safe and
+ * bounded; they may drop any entry at any time, and may refuse to hold an entry at all.
+ */
+public interface EncodedCache {
+
+    /**
+     * @return the encoded bytes stored for the key, or null; must not be modified
+     */
+    byte[] get(String key);
+
+    /**
+     * Stores the encoded bytes for the key, evicting older entries if needed. Implementations
+     * keep their own copy or take ownership; the caller must not modify the array afterwards.
+     */
+    void put(String key, byte[] encoded);
+
+    void remove(String key);
+
+    void clear();
+}
@@ -0,0 +1,60 @@
+package com.cm.android.winecellar.util;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * The middle tier of {@link ImageCache}: the encoded (JPEG/WebP) bytes of recently used images,
+ * in an LRU bounded by bytes. An encoded thumbnail is a fraction of the size of its decoded
+ * bitmap, so many more fit; a hit costs a decode but no disk access.
+ *
+ * @see OffHeapEncodedCache for the same outside the Java heap
+ */
+public class EncodedMemoryCache implements EncodedCache {
+
+    // Single images bigger than this share of the budget are not kept
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final LruCache<String, byte[]> mCache;
+
+    /**
+     * @param maxBytes the most bytes of encoded images to hold
+     */
+    public EncodedMemoryCache(int maxBytes) {
+        mCache = new LruCache<String, byte[]>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, byte[] value) {
+                return value.length;
+            }
+        };
+    }
+
+    @Override
+    public byte[] get(String key) {
+        return mCache.get(key);
+    }
+
+    /**
+     * Ignores images too big to be worth holding.
+     */
+    @Override
+    public void put(String key, byte[] encoded) {
+        if (encoded.length <= mCache.maxSize() / MAX_ENTRY_FRACTION) {
+            mCache.put(key, encoded);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    @Override
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public String toString() {
+        return mCache.toString();
+    }
+}
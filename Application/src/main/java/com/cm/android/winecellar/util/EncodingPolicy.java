@@ -0,0 +1,142 @@
+package com.cm.android.winecellar.util;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.os.Build;
+
+import java.io.OutputStream;
+
+/**
+ * How images are encoded when they are written, per tier of storage: the thumbnail files, the
+ * derivatives made at capture time, and the image disk cache. WebP is much smaller than JPEG at
+ * the same visual quality, so it means less disk and less read I/O per image; the decoders take
+ * about as long.
+ * <p/>
+ * Encodings the platform cannot write fall back to the nearest it can: lossless WebP needs
+ * Android 10, and is written as PNG before that. File names are not changed with the encoding;
+ * the decoders go by the content.
+ */
+public class EncodingPolicy {
+
+    public enum Encoding {
+        JPEG,
+        PNG,
+        /** Lossy WebP */
+        WEBP,
+        /** Lossless WebP, for images with sharp edges or text; PNG before Android 10 */
+        WEBP_LOSSLESS
+    }
+
+    public enum Tier {
+        /** The grid thumbnail of each photo */
+        THUMBNAIL,
+        /** The derivative for the detail pager */
+        MEDIUM,
+        /** The derivative sent for text detection */
+        OCR,
+        /** Entries of {@link ImageCache}'s disk cache */
+        DISK_CACHE
+    }
+
+    // From Android 10 quality 100 makes the old WEBP format lossless
+    private static final int MAX_LOSSY_WEBP_QUALITY = 99;
+
+    private final Encoding[] mEncodings = new Encoding[Tier.values().length];
+    private final int[] mQualities = new int[Tier.values().length];
+
+    /**
+     * Creates a policy that writes every tier as JPEG at quality 90.
+     */
+    public EncodingPolicy() {
+        for (Tier tier : Tier.values()) {
+            set(tier, Encoding.JPEG, 90);
+        }
+    }
+
+    /**
+     * Returns the policy the app uses: lossy WebP for what is only ever shown on screen, and
+     * JPEG for what is sent to Cloud Vision.
+     */
+    public static EncodingPolicy getDefault() {
+        return new EncodingPolicy()
+                .set(Tier.THUMBNAIL, Encoding.WEBP, 80)
+                .set(Tier.MEDIUM, Encoding.WEBP, 85)
+                .set(Tier.OCR, Encoding.JPEG, 90)
+                .set(Tier.DISK_CACHE, Encoding.WEBP, 80);
+    }
+
+    /**
+     * @param quality 0-100; ignored by the lossless encodings
+     * @return this policy
+     */
+    public EncodingPolicy set(Tier tier, Encoding encoding, int quality) {
+        if (quality < 0 || quality > 100) {
+            throw new IllegalArgumentException("quality must be between 0 and 100");
+        }
+        mEncodings[tier.ordinal()] = encoding;
+        mQualities[tier.ordinal()] = quality;
+        return this;
+    }
+
+    public Encoding getEncoding(Tier tier) {
+        return mEncodings[tier.ordinal()];
+    }
+
+    public int getQuality(Tier tier) {
+        return mQualities[tier.ordinal()];
+    }
+
+    /**
+     * @return the format to pass to {@link Bitmap#compress} for the tier on this device
+     */
+    public CompressFormat getCompressFormat(Tier tier) {
+        switch (getEncoding(tier)) {
+            case PNG:
+                return CompressFormat.PNG;
+            case WEBP:
+                return getPlatformFormat("WEBP_LOSSY", CompressFormat.WEBP);
+            case WEBP_LOSSLESS:
+                if (Build.VERSION.SDK_INT >= 29) {
+                    return getPlatformFormat("WEBP_LOSSLESS", CompressFormat.WEBP);
+                }
+                return CompressFormat.PNG;
+            default:
+                return CompressFormat.JPEG;
+        }
+    }
+
+    /**
+     * @return the quality to pass to {@link Bitmap#compress} for the tier on this device
+     */
+    public int getCompressQuality(Tier tier) {
+        switch (getEncoding(tier)) {
+            case WEBP:
+                return Math.min(getQuality(tier), MAX_LOSSY_WEBP_QUALITY);
+            case PNG:
+            case WEBP_LOSSLESS:
+                return 100;
+            default:
+                return getQuality(tier);
+        }
+    }
+
+    /**
+     * Writes the bitmap to the stream as the tier says.
+     *
+     * @return true if the bitmap was written
+     */
+    public boolean compress(Tier tier, Bitmap bitmap, OutputStream out) {
+        return bitmap.compress(getCompressFormat(tier), getCompressQuality(tier), out);
+    }
+
+    /**
+     * Looks a format up by name, for those added after the SDK the app is compiled against.
+     */
+    private static CompressFormat getPlatformFormat(String name, CompressFormat fallback) {
+        try {
+            return CompressFormat.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
@@ -20,7 +20,6 @@ import android.annotation.TargetApi;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.CompressFormat;
-import android.graphics.Bitmap.Config;
 import android.graphics.BitmapFactory;
 import android.graphics.drawable.BitmapDrawable;
 import android.os.Build.VERSION_CODES;
@@ -29,25 +28,21 @@ import android.os.Environment;
 import android.os.StatFs;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
-import android.support.v4.util.LruCache;
 
 import com.cm.android.common.logger.Log;
 import com.vvw.activity.lite.BuildConfig;
 //import com.cm.android.displayingbitmaps.BuildConfig;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 
 /**
  * This class handles disk and memory caching of bitmaps in conjunction with the
@@ -62,28 +57,68 @@ public class ImageCache {
     // Default memory cache size in kilobytes
     private static final int DEFAULT_MEM_CACHE_SIZE = 1024 * 5; // 5MB
 
+    // Default size of the pool of bitmaps kept for inBitmap, in kilobytes
+    private static final int DEFAULT_BITMAP_POOL_SIZE = 1024; // 1MB
+
+    // Default size of the encoded memory cache in kilobytes; off unless asked for
+    private static final int DEFAULT_ENCODED_CACHE_SIZE = 0;
+    private static final boolean DEFAULT_ENCODED_CACHE_OFF_HEAP = false;
+
     // Default disk cache size in bytes
     private static final int DEFAULT_DISK_CACHE_SIZE = 1024 * 1024 * 100; // 100MB
 
-    // Compression settings when writing images to disk cache
-    private static final CompressFormat DEFAULT_COMPRESS_FORMAT = CompressFormat.JPEG;
-    //private static final int DEFAULT_COMPRESS_QUALITY = 70;
-    //@author anshu
-    private static final int DEFAULT_COMPRESS_QUALITY = 100;
     private static final int DISK_CACHE_INDEX = 0;
 
     // Constants to easily toggle various caches
     private static final boolean DEFAULT_MEM_CACHE_ENABLED = true;
     private static final boolean DEFAULT_DISK_CACHE_ENABLED = true;
     private static final boolean DEFAULT_INIT_DISK_CACHE_ON_CREATE = false;
+    // The binary journal opens much faster with tens of thousands of entries
+    private static final boolean DEFAULT_DISK_CACHE_BINARY_JOURNAL = true;
+    private static final boolean DEFAULT_DISK_CACHE_PACK_FILE = false;
+    private static final MemoryCachePolicy DEFAULT_MEMORY_CACHE_POLICY = MemoryCachePolicy.LRU;
+
+    /**
+     * The kinds of image the app shows, each kept in its own ImageCache with its own memory
+     * budget and disk cache directory, so loading one kind never evicts the other. The budgets
+     * add up to a quarter of the app's memory, so both can be alive at once, as when the pager
+     * is opened from the grid.
+     */
+    public enum SizeClass {
+        /** Many small images, for the grid. */
+        THUMBNAIL("thumbs", 0.15f),
+        /** A few screen sized images, for the pager. */
+        DETAIL("images", 0.1f);
+
+        final String diskCacheDirectoryName;
+        final float memCacheSizePercent;
+
+        SizeClass(String diskCacheDirectoryName, float memCacheSizePercent) {
+            this.diskCacheDirectoryName = diskCacheDirectoryName;
+            this.memCacheSizePercent = memCacheSizePercent;
+        }
+    }
+
+    /**
+     * How the memory cache chooses what to drop.
+     */
+    public enum MemoryCachePolicy {
+        /** Least recently used first; a long scroll replaces everything. */
+        LRU,
+        /** W-TinyLFU: keeps the frequently viewed images through a scroll, see TinyLfuCache. */
+        TINY_LFU
+    }
 
     private DiskLruCache mDiskLruCache;
-    private LruCache<String, BitmapDrawable> mMemoryCache;
+    // Used instead of mDiskLruCache when ImageCacheParams.diskCachePackFile is set
+    private ThumbnailPackCache mPackCache;
+    private MemoryCache<String, BitmapDrawable> mMemoryCache;
+    private EncodedCache mEncodedCache;
     private ImageCacheParams mCacheParams;
     private final Object mDiskCacheLock = new Object();
     private boolean mDiskCacheStarting = true;
 
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private BitmapPool mBitmapPool;
 
     /**
      * Create a new ImageCache object using the specified parameters. This should not be
@@ -108,8 +143,10 @@ public class ImageCache {
     public static ImageCache getInstance(
             FragmentManager fragmentManager, ImageCacheParams cacheParams) {
 
-        // Search for, or create an instance of the non-UI RetainFragment
-        final RetainFragment mRetainFragment = findOrCreateRetainFragment(fragmentManager);
+        // Search for, or create an instance of the non-UI RetainFragment; one per size class
+        final String tag = cacheParams.sizeClass != null
+                ? TAG + ":" + cacheParams.sizeClass.name() : TAG;
+        final RetainFragment mRetainFragment = findOrCreateRetainFragment(fragmentManager, tag);
 
         // See if we already have an ImageCache stored in RetainFragment
         ImageCache imageCache = (ImageCache) mRetainFragment.getObject();
@@ -138,53 +175,70 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache created (size = " + mCacheParams.memCacheSize + ")");
             }
 
-            // If we're running on Honeycomb or newer, create a set of reusable bitmaps that can be
-            // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-            // of SoftReferences which will actually not be very effective due to the garbage
-            // collector being aggressive clearing Soft/WeakReferences. A better approach
-            // would be to use a strongly references bitmaps, however this would require some
-            // balancing of memory usage between this set and the bitmap LruCache. It would also
-            // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-            // the size would need to be precise, from KitKat onward the size would just need to
-            // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-            if (Utils.hasHoneycomb()) {
-                mReusableBitmaps =
-                        Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+            // If we're running on Honeycomb or newer, create a pool of reusable bitmaps that can
+            // be populated into the inBitmap field of BitmapFactory.Options. The pool holds strong
+            // references within its own budget, which ImageCacheParams balances against the
+            // memory cache.
+            if (Utils.hasHoneycomb() && mCacheParams.bitmapPoolSize > 0) {
+                mBitmapPool = new BitmapPool(mCacheParams.bitmapPoolSize * 1024);
             }
 
-            mMemoryCache = new LruCache<String, BitmapDrawable>(mCacheParams.memCacheSize) {
-
-                /**
-                 * Notify the removed entry that is no longer being cached
-                 */
-                @Override
-                protected void entryRemoved(boolean evicted, String key,
-                        BitmapDrawable oldValue, BitmapDrawable newValue) {
-                    if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
-                        // The removed entry is a recycling drawable, so notify it
-                        // that it has been removed from the memory cache
-                        ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
-                    } else {
-                        // The removed entry is a standard BitmapDrawable
-
-                        if (Utils.hasHoneycomb()) {
-                            // We're running on Honeycomb or later, so add the bitmap
-                            // to a SoftReference set for possible use with inBitmap later
-                            mReusableBitmaps.add(new SoftReference<Bitmap>(oldValue.getBitmap()));
-                        }
-                    }
-                }
+            if (mCacheParams.encodedCacheSize > 0) {
+                mEncodedCache = mCacheParams.encodedCacheOffHeap
+                        ? new OffHeapEncodedCache(mCacheParams.encodedCacheSize * 1024,
+                                mCacheParams.offHeapDir)
+                        : new EncodedMemoryCache(mCacheParams.encodedCacheSize * 1024);
+            }
 
-                /**
-                 * Measure item size in kilobytes rather than units which is more practical
-                 * for a bitmap cache
-                 */
-                @Override
-                protected int sizeOf(String key, BitmapDrawable value) {
-                    final int bitmapSize = getBitmapSize(value) / 1024;
-                    return bitmapSize == 0 ? 1 : bitmapSize;
+            final int windowSize = mCacheParams.memoryCacheWindowSize > 0
+                    ? mCacheParams.memoryCacheWindowSize
+                    : (int) (mCacheParams.memCacheSize * TinyLfuCache.DEFAULT_WINDOW_FRACTION);
+            // With the window taking most of the budget, too little is left for the frequency
+            // of entries to make a difference
+            boolean tinyLfu = mCacheParams.memoryCachePolicy == MemoryCachePolicy.TINY_LFU;
+            if (tinyLfu && windowSize > mCacheParams.memCacheSize / 2) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Window of " + windowSize + "KB too big for TinyLFU, using LRU");
                 }
-            };
+                tinyLfu = false;
+            }
+
+            if (tinyLfu) {
+                // Sized for entries of 16KB and up, so the sketch is never too small
+                mMemoryCache = new TinyLfuCache<String, BitmapDrawable>(
+                        mCacheParams.memCacheSize, mCacheParams.memCacheSize / 16, windowSize) {
+                    @Override
+                    protected void entryRemoved(boolean evicted, String key,
+                            BitmapDrawable oldValue, BitmapDrawable newValue) {
+                        onMemoryEntryRemoved(oldValue, true);
+                    }
+
+                    @Override
+                    protected void entryRejected(String key, BitmapDrawable value) {
+                        // Just bound to a cell that may still be on screen, so not for reuse
+                        onMemoryEntryRemoved(value, false);
+                    }
+
+                    @Override
+                    protected int sizeOf(String key, BitmapDrawable value) {
+                        return memorySizeOf(value);
+                    }
+                };
+            } else {
+                mMemoryCache = new LruMemoryCache<String, BitmapDrawable>(
+                        mCacheParams.memCacheSize) {
+                    @Override
+                    protected void entryRemoved(boolean evicted, String key,
+                            BitmapDrawable oldValue, BitmapDrawable newValue) {
+                        onMemoryEntryRemoved(oldValue, true);
+                    }
+
+                    @Override
+                    protected int sizeOf(String key, BitmapDrawable value) {
+                        return memorySizeOf(value);
+                    }
+                };
+            }
         }
         //END_INCLUDE(init_memory_cache)
 
@@ -196,6 +250,37 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Notify the removed entry that is no longer being cached. A recycling drawable goes to the
+     * pool itself once no view displays it either.
+     *
+     * @param reusable whether a plain bitmap may go to the pool for inBitmap
+     */
+    private void onMemoryEntryRemoved(BitmapDrawable oldValue, boolean reusable) {
+        if (RecyclingBitmapDrawable.class.isInstance(oldValue)) {
+            // The removed entry is a recycling drawable, so notify it
+            // that it has been removed from the memory cache
+            ((RecyclingBitmapDrawable) oldValue).setIsCached(false);
+        } else {
+            // The removed entry is a standard BitmapDrawable
+
+            if (mBitmapPool != null && reusable) {
+                // We're running on Honeycomb or later, so add the bitmap
+                // to the pool for possible use with inBitmap later
+                mBitmapPool.put(oldValue.getBitmap());
+            }
+        }
+    }
+
+    /**
+     * Measure item size in kilobytes rather than units which is more practical
+     * for a bitmap cache
+     */
+    private static int memorySizeOf(BitmapDrawable value) {
+        final int bitmapSize = getBitmapSize(value) / 1024;
+        return bitmapSize == 0 ? 1 : bitmapSize;
+    }
+
     /**
      * Initializes the disk cache.  Note that this includes disk access so this should not be
      * executed on the main/UI thread. By default an ImageCache does not initialize the disk
@@ -205,7 +290,8 @@ public class ImageCache {
     public void initDiskCache() {
         // Set up disk cache
         synchronized (mDiskCacheLock) {
-            if (mDiskLruCache == null || mDiskLruCache.isClosed()) {
+            if ((mDiskLruCache == null || mDiskLruCache.isClosed())
+                    && (mPackCache == null || mPackCache.isClosed())) {
                 File diskCacheDir = mCacheParams.diskCacheDir;
                 if (mCacheParams.diskCacheEnabled && diskCacheDir != null) {
                     if (!diskCacheDir.exists()) {
@@ -213,8 +299,16 @@ public class ImageCache {
                     }
                     if (getUsableSpace(diskCacheDir) > mCacheParams.diskCacheSize) {
                         try {
-                            mDiskLruCache = DiskLruCache.open(
-                                    diskCacheDir, 1, 1, mCacheParams.diskCacheSize);
+                            if (mCacheParams.diskCachePackFile) {
+                                mPackCache = ThumbnailPackCache.open(
+                                        diskCacheDir, mCacheParams.diskCacheSize);
+                            } else {
+                                // Left over if the pack file was used before
+                                ThumbnailPackCache.deleteSegments(diskCacheDir);
+                                mDiskLruCache = DiskLruCache.open(diskCacheDir, 1, 1,
+                                        mCacheParams.diskCacheSize,
+                                        mCacheParams.diskCacheBinaryJournal);
+                            }
                             if (BuildConfig.DEBUG) {
                                 Log.d(TAG, "Disk cache initialized");
                             }
@@ -251,41 +345,80 @@ public class ImageCache {
             mMemoryCache.put(data, value);
         }
 
+        // Already in the encoded tier means it was read from or written to disk before
+        if (mEncodedCache != null && mEncodedCache.get(data) != null) {
+            return;
+        }
+
+        // Only the lookup of the disk cache is locked; DiskLruCache is thread safe and lets
+        // one editor per key through, so compressing here does not hold up other loads
+        final DiskLruCache diskLruCache;
+        final ThumbnailPackCache packCache;
         synchronized (mDiskCacheLock) {
-            // Add to disk cache
-            if (mDiskLruCache != null) {
-                final String key = hashKeyForDisk(data);
-                OutputStream out = null;
-                try {
-                    DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot == null) {
-                        final DiskLruCache.Editor editor = mDiskLruCache.edit(key);
-                        if (editor != null) {
-                            out = editor.newOutputStream(DISK_CACHE_INDEX);
-                            value.getBitmap().compress(
-                                    mCacheParams.compressFormat, mCacheParams.compressQuality, out);
-                            editor.commit();
-                            out.close();
-                        }
-                    } else {
-                        snapshot.getInputStream(DISK_CACHE_INDEX).close();
+            diskLruCache = mDiskLruCache;
+            packCache = mPackCache;
+        }
+
+        // Add to disk cache
+        if (packCache != null) {
+            final String key = hashKeyForDisk(data);
+            try {
+                if (packCache.get(key) == null) {
+                    final ThumbnailPackCache.Editor editor = packCache.edit(key);
+                    if (editor != null) {
+                        compress(data, value.getBitmap(), editor.newOutputStream(DISK_CACHE_INDEX));
+                        editor.commit();
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } catch (Exception e) {
-                    Log.e(TAG, "addBitmapToCache - " + e);
-                } finally {
-                    try {
-                        if (out != null) {
-                            out.close();
-                        }
-                    } catch (IOException e) {}
                 }
+            } catch (Exception e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            }
+        } else if (diskLruCache != null) {
+            final String key = hashKeyForDisk(data);
+            OutputStream out = null;
+            try {
+                DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot == null) {
+                    final DiskLruCache.Editor editor = diskLruCache.edit(key);
+                    if (editor != null) {
+                        out = editor.newOutputStream(DISK_CACHE_INDEX);
+                        compress(data, value.getBitmap(), out);
+                        editor.commit();
+                        out.close();
+                    }
+                } else {
+                    snapshot.getInputStream(DISK_CACHE_INDEX).close();
+                }
+            } catch (final IOException e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } catch (Exception e) {
+                Log.e(TAG, "addBitmapToCache - " + e);
+            } finally {
+                try {
+                    if (out != null) {
+                        out.close();
+                    }
+                } catch (IOException e) {}
             }
         }
         //END_INCLUDE(add_bitmap_to_cache)
     }
 
+    /**
+     * Compresses a bitmap for the disk cache, keeping a copy of the bytes in the encoded memory
+     * cache if there is one.
+     */
+    private void compress(String data, Bitmap bitmap, OutputStream out) throws IOException {
+        if (mEncodedCache == null) {
+            bitmap.compress(mCacheParams.compressFormat, mCacheParams.compressQuality, out);
+            return;
+        }
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        bitmap.compress(mCacheParams.compressFormat, mCacheParams.compressQuality, encoded);
+        encoded.writeTo(out);
+        mEncodedCache.put(data, encoded.toByteArray());
+    }
+
     /**
      * Get from memory cache.
      *
@@ -316,82 +449,116 @@ public class ImageCache {
      */
     public Bitmap getBitmapFromDiskCache(String data) {
         //BEGIN_INCLUDE(get_bitmap_from_disk_cache)
+        // The encoded tier is checked first; it needs no disk access and no waiting for the
+        // disk cache to open. The caller promotes the result to the memory cache.
+        if (mEncodedCache != null) {
+            final byte[] encoded = mEncodedCache.get(data);
+            if (encoded != null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Encoded memory cache hit");
+                }
+                return ImageResizer.decodeSampledBitmapFromBuffer(ByteBuffer.wrap(encoded),
+                        Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+            }
+        }
+
         final String key = hashKeyForDisk(data);
         Bitmap bitmap = null;
 
+        // Wait for the disk cache to open, but read and decode outside the lock so that
+        // concurrent loads are not serialized behind each other's decodes
+        final DiskLruCache diskLruCache;
+        final ThumbnailPackCache packCache;
         synchronized (mDiskCacheLock) {
             while (mDiskCacheStarting) {
                 try {
                     mDiskCacheLock.wait();
                 } catch (InterruptedException e) {}
             }
-            if (mDiskLruCache != null) {
-                InputStream inputStream = null;
-                try {
-                    final DiskLruCache.Snapshot snapshot = mDiskLruCache.get(key);
-                    if (snapshot != null) {
-                        if (BuildConfig.DEBUG) {
-                            Log.d(TAG, "Disk cache hit");
-                        }
-                        inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
-                        if (inputStream != null) {
-                            FileDescriptor fd = ((FileInputStream) inputStream).getFD();
-
-                            // Decode bitmap, but we don't want to sample so give
-                            // MAX_VALUE as the target dimensions
-                            bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
-                                    fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
-                        }
+            diskLruCache = mDiskLruCache;
+            packCache = mPackCache;
+        }
+
+        if (packCache != null) {
+            try {
+                final ThumbnailPackCache.Snapshot snapshot = packCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    // A slice of the mapped pack file, so no file is opened
+                    final ByteBuffer buffer = snapshot.getBuffer();
+                    if (mEncodedCache != null) {
+                        final byte[] encoded = new byte[buffer.remaining()];
+                        buffer.duplicate().get(encoded);
+                        mEncodedCache.put(data, encoded);
+                    }
+                    bitmap = ImageResizer.decodeSampledBitmapFromBuffer(buffer,
+                            Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                }
+            } catch (IllegalStateException e) {
+                // Closed or cleared by another thread since we looked it up
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            }
+        } else if (diskLruCache != null) {
+            InputStream inputStream = null;
+            try {
+                final DiskLruCache.Snapshot snapshot = diskLruCache.get(key);
+                if (snapshot != null) {
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache hit");
+                    }
+                    inputStream = snapshot.getInputStream(DISK_CACHE_INDEX);
+                    if (inputStream != null && mEncodedCache != null) {
+                        // Read the bytes once, for the encoded tier and for decoding
+                        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                        IoUtils.copy(inputStream, encoded);
+                        final byte[] bytes = encoded.toByteArray();
+                        mEncodedCache.put(data, bytes);
+                        bitmap = ImageResizer.decodeSampledBitmapFromBuffer(ByteBuffer.wrap(bytes),
+                                Integer.MAX_VALUE, Integer.MAX_VALUE, this);
+                    } else if (inputStream != null) {
+                        FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+
+                        // Decode bitmap, but we don't want to sample so give
+                        // MAX_VALUE as the target dimensions
+                        bitmap = ImageResizer.decodeSampledBitmapFromDescriptor(
+                                fd, Integer.MAX_VALUE, Integer.MAX_VALUE, this);
                     }
-                } catch (final IOException e) {
-                    Log.e(TAG, "getBitmapFromDiskCache - " + e);
-                } finally {
-                    try {
-                        if (inputStream != null) {
-                            inputStream.close();
-                        }
-                    } catch (IOException e) {}
                 }
+            } catch (final IOException e) {
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } catch (IllegalStateException e) {
+                // Closed or cleared by another thread since we looked it up
+                Log.e(TAG, "getBitmapFromDiskCache - " + e);
+            } finally {
+                try {
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                } catch (IOException e) {}
             }
-            return bitmap;
         }
+        return bitmap;
         //END_INCLUDE(get_bitmap_from_disk_cache)
     }
 
+    /**
+     * @return the pool that unused bitmaps go to for inBitmap, or null if there is none
+     */
+    BitmapPool getBitmapPool() {
+        return mBitmapPool;
+    }
+
     /**
      * @param options - BitmapFactory.Options with out* options populated
      * @return Bitmap that case be used for inBitmap
      */
     protected Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
         //BEGIN_INCLUDE(get_bitmap_from_reusable_set)
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
-
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
-
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (canUseForInBitmap(item, options)) {
-                            bitmap = item;
-
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
-        }
-
-        return bitmap;
+        return mBitmapPool != null ? mBitmapPool.get(options) : null;
         //END_INCLUDE(get_bitmap_from_reusable_set)
     }
 
@@ -406,6 +573,12 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache cleared");
             }
         }
+        if (mEncodedCache != null) {
+            mEncodedCache.clear();
+        }
+        if (mBitmapPool != null) {
+            mBitmapPool.clear();
+        }
 
         synchronized (mDiskCacheLock) {
             mDiskCacheStarting = true;
@@ -421,6 +594,20 @@ public class ImageCache {
                 mDiskLruCache = null;
                 initDiskCache();
             }
+            if (mPackCache != null && !mPackCache.isClosed()) {
+                try {
+                    mPackCache.delete();
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache cleared");
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "clearCache - " + e);
+                }
+                mPackCache = null;
+                initDiskCache();
+            }
+            // Nothing was reopened if there was no disk cache
+            mDiskCacheStarting = false;
         }
     }
 
@@ -437,12 +624,25 @@ public class ImageCache {
                 Log.d(TAG, "Memory cache cleared for " + imageUrl);
             }
         }
+        if (mEncodedCache != null) {
+            mEncodedCache.remove(imageUrl);
+        }
 
         synchronized (mDiskCacheLock) {
-            mDiskCacheStarting = true;
             if (mDiskLruCache != null && !mDiskLruCache.isClosed()) {
                 try {
-                    mDiskLruCache.remove(imageUrl);
+                    // Entries are stored under the hashed key, see addBitmapToCache()
+                    mDiskLruCache.remove(hashKeyForDisk(imageUrl));
+                    if (BuildConfig.DEBUG) {
+                        Log.d(TAG, "Disk cache cleared for " + imageUrl);
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "clearCache - " + e);
+                }
+            }
+            if (mPackCache != null && !mPackCache.isClosed()) {
+                try {
+                    mPackCache.remove(hashKeyForDisk(imageUrl));
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "Disk cache cleared for " + imageUrl);
                     }
@@ -469,6 +669,12 @@ public class ImageCache {
                     Log.e(TAG, "flush - " + e);
                 }
             }
+            if (mPackCache != null && !mPackCache.isClosed()) {
+                mPackCache.flush();
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Disk cache flushed");
+                }
+            }
         }
     }
 
@@ -477,6 +683,15 @@ public class ImageCache {
      * disk access so this should not be executed on the main/UI thread.
      */
     public void close() {
+        if (BuildConfig.DEBUG && mMemoryCache != null) {
+            Log.d(TAG, "close - " + mMemoryCache);
+        }
+        if (BuildConfig.DEBUG && mBitmapPool != null) {
+            Log.d(TAG, "close - " + mBitmapPool);
+        }
+        if (BuildConfig.DEBUG && mEncodedCache != null) {
+            Log.d(TAG, "close - " + mEncodedCache);
+        }
         synchronized (mDiskCacheLock) {
             if (mDiskLruCache != null) {
                 try {
@@ -491,6 +706,13 @@ public class ImageCache {
                     Log.e(TAG, "close - " + e);
                 }
             }
+            if (mPackCache != null) {
+                mPackCache.close();
+                mPackCache = null;
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Disk cache closed");
+                }
+            }
         }
     }
 
@@ -499,13 +721,29 @@ public class ImageCache {
      */
     public static class ImageCacheParams {
         public int memCacheSize = DEFAULT_MEM_CACHE_SIZE;
+        public MemoryCachePolicy memoryCachePolicy = DEFAULT_MEMORY_CACHE_POLICY;
+        // In kilobytes, the TINY_LFU admission window; 0 for a share of memCacheSize
+        public int memoryCacheWindowSize;
+        // Set by the SizeClass constructor; null for a cache of its own
+        public SizeClass sizeClass;
+        public int bitmapPoolSize = DEFAULT_BITMAP_POOL_SIZE;
+        // In kilobytes, like memCacheSize; 0 turns the encoded memory cache off
+        public int encodedCacheSize = DEFAULT_ENCODED_CACHE_SIZE;
+        // Keep the encoded memory cache outside the Java heap, in an OffHeapEncodedCache
+        public boolean encodedCacheOffHeap = DEFAULT_ENCODED_CACHE_OFF_HEAP;
+        // Where the off-heap arenas are mapped from; null for plain direct buffers
+        public File offHeapDir;
         public int diskCacheSize = DEFAULT_DISK_CACHE_SIZE;
         public File diskCacheDir;
-        public CompressFormat compressFormat = DEFAULT_COMPRESS_FORMAT;
-        public int compressQuality = DEFAULT_COMPRESS_QUALITY;
+        // Compression settings when writing images to disk cache; see setEncodingPolicy
+        public CompressFormat compressFormat;
+        public int compressQuality;
         public boolean memoryCacheEnabled = DEFAULT_MEM_CACHE_ENABLED;
         public boolean diskCacheEnabled = DEFAULT_DISK_CACHE_ENABLED;
         public boolean initDiskCacheOnCreate = DEFAULT_INIT_DISK_CACHE_ON_CREATE;
+        public boolean diskCacheBinaryJournal = DEFAULT_DISK_CACHE_BINARY_JOURNAL;
+        // Store entries in a ThumbnailPackCache instead; best for many small images
+        public boolean diskCachePackFile = DEFAULT_DISK_CACHE_PACK_FILE;
 
         /**
          * Create a set of image cache parameters that can be provided to
@@ -518,12 +756,37 @@ public class ImageCache {
          */
         public ImageCacheParams(Context context, String diskCacheDirectoryName) {
             diskCacheDir = getDiskCacheDir(context, diskCacheDirectoryName);
+            // Internal storage, which is always there; the arena files are unlinked at once
+            offHeapDir = new File(context.getCacheDir(), "arenas");
+            setEncodingPolicy(EncodingPolicy.getDefault());
+        }
+
+        /**
+         * Create a set of image cache parameters for one of the size classes, with its disk
+         * cache directory and memory budget. Loaders sharing a size class share the cache.
+         * @param context A context to use.
+         * @param sizeClass The kind of image the cache will hold.
+         */
+        public ImageCacheParams(Context context, SizeClass sizeClass) {
+            this(context, sizeClass.diskCacheDirectoryName);
+            this.sizeClass = sizeClass;
+            setMemCacheSizePercent(sizeClass.memCacheSizePercent);
+        }
+
+        /**
+         * Sets how images are encoded in the disk cache, from the policy's
+         * {@link EncodingPolicy.Tier#DISK_CACHE} tier.
+         */
+        public void setEncodingPolicy(EncodingPolicy encodingPolicy) {
+            compressFormat = encodingPolicy.getCompressFormat(EncodingPolicy.Tier.DISK_CACHE);
+            compressQuality = encodingPolicy.getCompressQuality(EncodingPolicy.Tier.DISK_CACHE);
         }
 
         /**
          * Sets the memory cache size based on a percentage of the max available VM memory.
          * Eg. setting percent to 0.2 would set the memory cache to one fifth of the available
-         * memory. Throws {@link IllegalArgumentException} if percent is < 0.01 or > .8.
+         * memory. A quarter of that share goes to the pool of bitmaps kept for inBitmap reuse,
+         * so the two together stay within the percentage. Throws {@link IllegalArgumentException} if percent is < 0.01 or > .8.
          * memCacheSize is stored in kilobytes instead of bytes as this will eventually be passed
          * to construct a LruCache which takes an int in its constructor.
          *
@@ -538,52 +801,40 @@ public class ImageCache {
                 throw new IllegalArgumentException("setMemCacheSizePercent - percent must be "
                         + "between 0.01 and 0.8 (inclusive)");
             }
-            memCacheSize = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
+            final int share = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
+            bitmapPoolSize = share / 4;
+            memCacheSize = share - bitmapPoolSize;
         }
-    }
 
-    /**
-     * @param candidate - Bitmap to check
-     * @param targetOptions - Options that have the out* value populated
-     * @return true if <code>candidate</code> can be used for inBitmap re-use with
-     *      <code>targetOptions</code>
-     */
-    @TargetApi(VERSION_CODES.KITKAT)
-    private static boolean canUseForInBitmap(
-            Bitmap candidate, BitmapFactory.Options targetOptions) {
-        //BEGIN_INCLUDE(can_use_for_inbitmap)
-        if (!Utils.hasKitKat()) {
-            // On earlier versions, the dimensions must match exactly and the inSampleSize must be 1
-            return candidate.getWidth() == targetOptions.outWidth
-                    && candidate.getHeight() == targetOptions.outHeight
-                    && targetOptions.inSampleSize == 1;
-        }
-
-        // From Android 4.4 (KitKat) onward we can re-use if the byte size of the new bitmap
-        // is smaller than the reusable bitmap candidate allocation byte count.
-        int width = targetOptions.outWidth / targetOptions.inSampleSize;
-        int height = targetOptions.outHeight / targetOptions.inSampleSize;
-        int byteCount = width * height * getBytesPerPixel(candidate.getConfig());
-        return byteCount <= candidate.getAllocationByteCount();
-        //END_INCLUDE(can_use_for_inbitmap)
-    }
+        /**
+         * Sizes the TINY_LFU admission window to hold the given number of images, which should
+         * be everything on screen plus what is loaded ahead of it. Images in the window are
+         * kept whatever their frequency, so none that is still shown is dropped from the cache
+         * for losing admission to the main area.
+         *
+         * @param images    the number of images in use at once
+         * @param imageSize the width and height of the decoded images
+         */
+        public void setMemoryCacheWindow(int images, int imageSize) {
+            memoryCacheWindowSize = (int) ((long) images * imageSize * imageSize
+                    * BitmapPool.getBytesPerPixel(Bitmap.Config.ARGB_8888) / 1024);
+        }
 
-    /**
-     * Return the byte usage per pixel of a bitmap based on its configuration.
-     * @param config The bitmap configuration.
-     * @return The byte usage per pixel.
-     */
-    private static int getBytesPerPixel(Config config) {
-        if (config == Config.ARGB_8888) {
-            return 4;
-        } else if (config == Config.RGB_565) {
-            return 2;
-        } else if (config == Config.ARGB_4444) {
-            return 2;
-        } else if (config == Config.ALPHA_8) {
-            return 1;
-        }
-        return 1;
+        /**
+         * Sets the encoded memory cache size based on a percentage of the max available VM
+         * memory, in addition to the memory cache. Encoded thumbnails take a fraction of the
+         * memory of decoded ones, so a small percentage covers many screens of a grid.
+         * Throws {@link IllegalArgumentException} if percent is < 0.01 or > .8.
+         *
+         * @param percent Percent of available app memory to use for encoded images
+         */
+        public void setEncodedCacheSizePercent(float percent) {
+            if (percent < 0.01f || percent > 0.8f) {
+                throw new IllegalArgumentException("setEncodedCacheSizePercent - percent must be "
+                        + "between 0.01 and 0.8 (inclusive)");
+            }
+            encodedCacheSize = Math.round(percent * Runtime.getRuntime().maxMemory() / 1024);
+        }
     }
 
     /**
@@ -710,18 +961,19 @@ public class ImageCache {
      * add it using FragmentManager.
      *
      * @param fm The FragmentManager manager to use.
+     * @param tag The tag the fragment is added with.
      * @return The existing instance of the Fragment or the new instance if just
      *         created.
      */
-    private static RetainFragment findOrCreateRetainFragment(FragmentManager fm) {
+    private static RetainFragment findOrCreateRetainFragment(FragmentManager fm, String tag) {
         //BEGIN_INCLUDE(find_create_retain_fragment)
         // Check to see if we have retained the worker fragment.
-        RetainFragment mRetainFragment = (RetainFragment) fm.findFragmentByTag(TAG);
+        RetainFragment mRetainFragment = (RetainFragment) fm.findFragmentByTag(tag);
 
         // If not retained (or first time running), we need to create and add it.
         if (mRetainFragment == null) {
             mRetainFragment = new RetainFragment();
-            fm.beginTransaction().add(mRetainFragment, TAG).commitAllowingStateLoss();
+            fm.beginTransaction().add(mRetainFragment, tag).commitAllowingStateLoss();
         }
 
         return mRetainFragment;
@@ -27,12 +27,11 @@ import com.cm.android.common.logger.Log;
 import com.vvw.activity.lite.BuildConfig;
 import com.vvw.activity.lite.R;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
@@ -44,7 +43,8 @@ public class ImageFetcher extends ImageResizer {
     private static final String TAG = "ImageFetcher";
     private static final int HTTP_CACHE_SIZE = 100 * 1024 * 1024; // 100MB
     private static final String HTTP_CACHE_DIR = "http";
-    private static final int IO_BUFFER_SIZE = 8 * 1024;
+    // Version 1 also held full size copies of local photos; opening with a new version drops them
+    private static final int HTTP_CACHE_VERSION = 2;
 
     private DiskLruCache mHttpDiskCache;
     private File mHttpCacheDir;
@@ -52,8 +52,6 @@ public class ImageFetcher extends ImageResizer {
     private final Object mHttpDiskCacheLock = new Object();
     private static final int DISK_CACHE_INDEX = 0;
 
-    private int mCreateThumbnailSize;
-
     /**
      * Initialize providing a target image width and height for the processing images.
      *
@@ -80,7 +78,6 @@ public class ImageFetcher extends ImageResizer {
     private void init(Context context) {
         checkConnection(context);
         mHttpCacheDir = ImageCache.getDiskCacheDir(context, HTTP_CACHE_DIR);
-        mCreateThumbnailSize = context.getResources().getDimensionPixelSize(R.dimen.create_image_thumbnail_size);
     }
 
     @Override
@@ -96,7 +93,8 @@ public class ImageFetcher extends ImageResizer {
         synchronized (mHttpDiskCacheLock) {
             if (ImageCache.getUsableSpace(mHttpCacheDir) > HTTP_CACHE_SIZE) {
                 try {
-                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, 1, 1, HTTP_CACHE_SIZE);
+                    mHttpDiskCache = DiskLruCache.open(mHttpCacheDir, HTTP_CACHE_VERSION, 1,
+                            HTTP_CACHE_SIZE);
                     if (BuildConfig.DEBUG) {
                         Log.d(TAG, "HTTP cache initialized");
                     }
@@ -185,7 +183,7 @@ public class ImageFetcher extends ImageResizer {
      * The main process method, which will be called by the ImageWorker in the AsyncTask background
      * thread.
      *
-     * @param data The data to load the bitmap, in this case, a regular http URL
+     * @param data The data to load the bitmap, either a regular http URL or a local file path
      * @return The downloaded and resized bitmap
      */
     private Bitmap processBitmap(String data) {
@@ -193,6 +191,19 @@ public class ImageFetcher extends ImageResizer {
             Log.d(TAG, "processBitmap - " + data);
         }
 
+        if (!isRemote(data)) {
+            // Local photos are decoded straight from the file; copying them into the http cache
+            // first only doubled the disk writes. The downsampled result still goes into the
+            // image cache. The smallest derivative made at capture time that is big enough is
+            // decoded in place of the full camera image.
+            final String source = DerivativeSet.pick(data, mImageWidth, mImageHeight);
+            if (BuildConfig.DEBUG && !source.equals(data)) {
+                Log.d(TAG, "processBitmap - using derivative " + source);
+            }
+            return decodeSampledBitmapFromFile(source, mImageWidth, mImageHeight,
+                    getImageCache());
+        }
+
         final String key = ImageCache.hashKeyForDisk(data);
         FileDescriptor fileDescriptor = null;
         FileInputStream fileInputStream = null;
@@ -214,18 +225,8 @@ public class ImageFetcher extends ImageResizer {
                         }
                         DiskLruCache.Editor editor = mHttpDiskCache.edit(key);
                         if (editor != null) {
-                            //@author anshu
-                            boolean result = false;
-                            if(data.startsWith("http://") || data.startsWith("https://")){
-                               result =  downloadUrlToStream(data,
-                                        editor.newOutputStream(DISK_CACHE_INDEX));
-                            } else {
-                                //load locally
-                                result = loadLocally(data,
-                                        editor.newOutputStream(DISK_CACHE_INDEX));
-                            }
-
-                            if (result) {
+                            if (downloadUrlToStream(data,
+                                    editor.newOutputStream(DISK_CACHE_INDEX))) {
                                 editor.commit();
                             } else {
                                 editor.abort();
@@ -254,11 +255,8 @@ public class ImageFetcher extends ImageResizer {
 
         Bitmap bitmap = null;
         if (fileDescriptor != null) {
-            //TODO: Change imagewidth to a higher number, and decouple it from screen dp which is set in ImageGridFragment
-//            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
-//                    mImageHeight, getImageCache());
-            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mCreateThumbnailSize,
-                    mCreateThumbnailSize, getImageCache());
+            bitmap = decodeSampledBitmapFromDescriptor(fileDescriptor, mImageWidth,
+                    mImageHeight, getImageCache());
         }
         if (fileInputStream != null) {
             try {
@@ -282,19 +280,13 @@ public class ImageFetcher extends ImageResizer {
     public boolean downloadUrlToStream(String urlString, OutputStream outputStream) {
         disableConnectionReuseIfNecessary();
         HttpURLConnection urlConnection = null;
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
+        InputStream in = null;
 
         try {
             final URL url = new URL(urlString);
             urlConnection = (HttpURLConnection) url.openConnection();
-            in = new BufferedInputStream(urlConnection.getInputStream(), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            in = urlConnection.getInputStream();
+            IoUtils.copy(in, outputStream);
             return true;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
@@ -302,54 +294,14 @@ public class ImageFetcher extends ImageResizer {
             if (urlConnection != null) {
                 urlConnection.disconnect();
             }
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-            } catch (final IOException e) {}
+            IoUtils.closeQuietly(outputStream);
+            IoUtils.closeQuietly(in);
         }
         return false;
     }
 
-    /**
-     *
-     * @param urlString
-     * @param outputStream
-     * @return
-     * @author anshu
-     */
-    public boolean loadLocally(String urlString, OutputStream outputStream) {
-
-        File image = new File(urlString);
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
-
-        try {
-            //final URL url = new URL(urlString);
-            in = new BufferedInputStream(new FileInputStream(image), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
-            return true;
-        } catch (final IOException e) {
-            Log.e(TAG, "Error in downloadBitmap - " + e);
-        } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-            } catch (final IOException e) {}
-        }
-        return false;
+    private static boolean isRemote(String data) {
+        return data.startsWith("http://") || data.startsWith("https://");
     }
 
     /**
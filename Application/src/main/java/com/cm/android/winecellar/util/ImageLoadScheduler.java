@@ -0,0 +1,201 @@
+package com.cm.android.winecellar.util;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background half of {@link ImageWorker} image loads. There are two lanes, each a small
+ * thread pool: the cache lane answers requests from the disk cache, and only misses move on to
+ * the decode lane for the slow decode or network work, so a cache hit never queues behind a full
+ * decode. Within a lane requests run by priority and then newest first, so after a fast fling
+ * the cells the user stopped on are served before the ones that have already scrolled past.
+ * Cancelling a request takes it out of its queue instead of leaving it to run.
+ */
+public class ImageLoadScheduler {
+    private static final String TAG = "ImageLoadScheduler";
+
+    /**
+     * For images on screen now
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+    /**
+     * For images that may be shown soon, such as offscreen pager pages
+     */
+    public static final int PRIORITY_PREFETCH = 1;
+
+    private static final int CACHE_LANE_THREADS = 1;
+    private static final int DECODE_LANE_THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    private static ImageLoadScheduler sImageLoadScheduler;
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final ThreadPoolExecutor mCacheLane;
+    private final ThreadPoolExecutor mDecodeLane;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public static synchronized ImageLoadScheduler getInstance() {
+        if (sImageLoadScheduler == null) {
+            sImageLoadScheduler = new ImageLoadScheduler();
+        }
+        return sImageLoadScheduler;
+    }
+
+    private ImageLoadScheduler() {
+        mCacheLane = newLane("cache", CACHE_LANE_THREADS);
+        mDecodeLane = newLane("decode", DECODE_LANE_THREADS);
+    }
+
+    /**
+     * Queues a request on the cache lane.
+     *
+     * @param request a request that has not been submitted before
+     */
+    public void submit(Request request) {
+        request.mScheduler = this;
+        request.mSequence = mSequence.incrementAndGet();
+        request.mInCacheLane = true;
+        enqueue(request, mCacheLane);
+    }
+
+    private void enqueue(Request request, ThreadPoolExecutor lane) {
+        request.mQueuedOn = lane;
+        lane.execute(request);
+    }
+
+    private static ThreadPoolExecutor newLane(final String name, int threads) {
+        final ThreadPoolExecutor lane = new ThreadPoolExecutor(threads, threads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + " " + name + " #" + mCount.getAndIncrement());
+                    }
+                });
+        lane.allowCoreThreadTimeOut(true);
+        return lane;
+    }
+
+    /**
+     * One image load. Subclasses implement the two stages; the scheduler decides when and on
+     * which lane they run.
+     */
+    public abstract static class Request implements Runnable, Comparable<Request> {
+        private volatile int mPriority;
+        private long mSequence;
+        private boolean mInCacheLane;
+        private ImageLoadScheduler mScheduler;
+        private volatile ThreadPoolExecutor mQueuedOn;
+        private volatile boolean mCancelled;
+
+        /**
+         * @param priority {@link #PRIORITY_VISIBLE} or {@link #PRIORITY_PREFETCH}
+         */
+        protected Request(int priority) {
+            mPriority = priority;
+        }
+
+        /**
+         * Runs on the cache lane.
+         *
+         * @return true if the request is complete, false to continue on the decode lane
+         */
+        protected abstract boolean loadFromCache();
+
+        /**
+         * Runs on the decode lane, for requests the cache could not answer.
+         */
+        protected abstract void load();
+
+        /**
+         * Called on the thread that cancelled the request.
+         */
+        protected void onCancelled() {
+        }
+
+        /**
+         * Cancels the request. If it is still queued it is removed and never runs; if it is
+         * running, {@link #isCancelled()} turns true so it can stop early.
+         */
+        public final void cancel() {
+            mCancelled = true;
+            final ThreadPoolExecutor queuedOn = mQueuedOn;
+            if (queuedOn != null) {
+                queuedOn.remove(this);
+            }
+            onCancelled();
+        }
+
+        /**
+         * Moves a request that is still queued ahead of lower priority work, for example when a
+         * prefetch turns out to be needed on screen. Must not be called concurrently for the
+         * same request.
+         *
+         * @param priority the new priority; ignored unless higher than the current one
+         */
+        public final void raisePriority(int priority) {
+            if (priority >= mPriority) {
+                return;
+            }
+            final ThreadPoolExecutor queuedOn = mQueuedOn;
+            // Only re-queue if we got it out of the queue; the ordering of an element already in
+            // a PriorityBlockingQueue must not change
+            if (queuedOn != null && queuedOn.remove(this)) {
+                mPriority = priority;
+                mScheduler.enqueue(this, queuedOn);
+            }
+        }
+
+        public final boolean isCancelled() {
+            return mCancelled;
+        }
+
+        /**
+         * Runs the given runnable on the main thread.
+         */
+        protected final void postToMainThread(Runnable runnable) {
+            mScheduler.mMainHandler.post(runnable);
+        }
+
+        @Override
+        public final void run() {
+            mQueuedOn = null;
+            if (mCancelled) {
+                return;
+            }
+            if (mInCacheLane) {
+                if (!loadFromCache() && !mCancelled) {
+                    mInCacheLane = false;
+                    // Keeps its sequence number, so it does not lose its place to newer requests
+                    mScheduler.enqueue(this, mScheduler.mDecodeLane);
+                }
+            } else {
+                load();
+            }
+        }
+
+        @Override
+        public int compareTo(Request another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            // Newest first
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
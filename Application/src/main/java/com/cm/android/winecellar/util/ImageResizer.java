@@ -27,6 +27,7 @@ import com.cm.android.common.logger.Log;
 import com.vvw.activity.lite.BuildConfig;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 
 /**
  * A simple subclass of {@link ImageWorker} that resizes images from resources given a target width
@@ -81,6 +82,15 @@ public class ImageResizer extends ImageWorker {
         setImageSize(size, size);
     }
 
+    /**
+     * Includes the target size, so a change of size, or another ImageResizer sharing the cache,
+     * never gets a bitmap decoded for a different size.
+     */
+    @Override
+    protected String getCacheKey(Object data) {
+        return super.getCacheKey(data) + "#" + mImageWidth + "x" + mImageHeight;
+    }
+
     /**
      * The main processing method. This happens in a background task. In this case we are just
      * sampling down the bitmap and returning it from a resource.
@@ -198,6 +208,40 @@ public class ImageResizer extends ImageWorker {
         return BitmapFactory.decodeFileDescriptor(fileDescriptor, null, options);
     }
 
+    /**
+     * Decode and sample down a bitmap from an encoded image held in a buffer, such as a slice of
+     * a mapped file, to the requested width and height.
+     *
+     * @param buffer The encoded image; its position is not changed
+     * @param reqWidth The requested width of the resulting bitmap
+     * @param reqHeight The requested height of the resulting bitmap
+     * @param cache The ImageCache used to find candidate bitmaps for use with inBitmap
+     * @return A bitmap sampled down from the original with the same aspect ratio and dimensions
+     *         that are equal to or greater than the requested width and height
+     */
+    public static Bitmap decodeSampledBitmapFromBuffer(
+            ByteBuffer buffer, int reqWidth, int reqHeight, ImageCache cache) {
+
+        // First decode with inJustDecodeBounds=true to check dimensions
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeStream(new ByteBufferInputStream(buffer.duplicate()), null, options);
+
+        // Calculate inSampleSize
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+
+        // Decode bitmap with inSampleSize set
+        options.inJustDecodeBounds = false;
+
+        // If we're running on Honeycomb or newer, try to use inBitmap
+        if (Utils.hasHoneycomb()) {
+            addInBitmapOptions(options, cache);
+        }
+
+        return BitmapFactory.decodeStream(
+                new ByteBufferInputStream(buffer.duplicate()), null, options);
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private static void addInBitmapOptions(BitmapFactory.Options options, ImageCache cache) {
         //BEGIN_INCLUDE(add_bitmap_options)
@@ -254,17 +298,24 @@ public class ImageResizer extends ImageWorker {
             // end up being too large to fit comfortably in memory, so we should
             // be more aggressive with sample down the image (=larger inSampleSize).
 
-            long totalPixels = width * height / inSampleSize;
-
-            // Anything more than 2x the requested pixels we'll sample down further
-            final long totalReqPixelsCap = reqWidth * reqHeight * 2;
+            // Anything more than 2x the requested pixels we'll sample down further. The
+            // decoded size is counted as the decoder rounds it, so this is a hard bound.
+            final long totalReqPixelsCap = (long) reqWidth * reqHeight * 2;
 
-            while (totalPixels > totalReqPixelsCap) {
+            while (getSampledPixels(width, height, inSampleSize) > totalReqPixelsCap) {
                 inSampleSize *= 2;
-                totalPixels /= 2;
             }
         }
         return inSampleSize;
         // END_INCLUDE (calculate_sample_size)
     }
+
+    /**
+     * @return the number of pixels of an image of the given size decoded with the given
+     *         inSampleSize, rounding up as the decoders may
+     */
+    public static long getSampledPixels(int width, int height, int inSampleSize) {
+        return (long) ((width + inSampleSize - 1) / inSampleSize)
+                * ((height + inSampleSize - 1) / inSampleSize);
+    }
 }
@@ -33,7 +33,10 @@ import com.cm.android.common.logger.Log;
 import com.vvw.activity.lite.BuildConfig;
 
 import java.lang.ref.WeakReference;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class wraps up completing some arbitrary long running work when loading a bitmap to an
@@ -51,6 +54,8 @@ public abstract class ImageWorker {
     private boolean mExitTasksEarly = false;
     protected boolean mPauseWork = false;
     private final Object mPauseWorkLock = new Object();
+    // Loads in flight, by cache key. Main thread only.
+    private final Map<String, LoadJob> mInFlight = new HashMap<String, LoadJob>();
 
     protected Resources mResources;
 
@@ -70,22 +75,35 @@ public abstract class ImageWorker {
      * {@link ImageWorker#processBitmap(Object)} to define the processing logic). A memory and
      * disk cache will be used if an {@link ImageCache} has been added using
      * {@link ImageWorker#addImageCache(android.support.v4.app.FragmentManager, ImageCache.ImageCacheParams)}. If the
-     * image is found in the memory cache, it is set immediately, otherwise an {@link AsyncTask}
-     * will be created to asynchronously load the bitmap.
+     * image is found in the memory cache, it is set immediately, otherwise a request is queued on
+     * the {@link ImageLoadScheduler} to asynchronously load the bitmap.
      *
      * @param data      The URL of the image to download.
      * @param imageView The ImageView to bind the downloaded image to.
      * @param listener  A listener that will be called back once the image has been loaded.
      */
     public void loadImage(Object data, ImageView imageView, OnImageLoadedListener listener) {
+        loadImage(data, imageView, listener, ImageLoadScheduler.PRIORITY_VISIBLE);
+    }
+
+    /**
+     * Same as {@link #loadImage(Object, ImageView, OnImageLoadedListener)}, with an explicit
+     * scheduling priority.
+     *
+     * @param priority {@link ImageLoadScheduler#PRIORITY_VISIBLE} or
+     *                 {@link ImageLoadScheduler#PRIORITY_PREFETCH}
+     */
+    public void loadImage(Object data, ImageView imageView, OnImageLoadedListener listener,
+                          int priority) {
         if (data == null) {
             return;
         }
 
         BitmapDrawable value = null;
+        final String key = getCacheKey(data);
 
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(key);
         }
 
         if (value != null) {
@@ -101,10 +119,22 @@ public abstract class ImageWorker {
                     new AsyncDrawable(mResources, mLoadingBitmap, task);
             imageView.setImageDrawable(asyncDrawable);
 
-            // NOTE: This uses a custom version of AsyncTask that has been pulled from the
-            // framework and slightly modified. Refer to the docs at the top of the class
-            // for more info on what was changed.
-            task.executeOnExecutor(AsyncTask.DUAL_THREAD_EXECUTOR);
+            // Share the load with any other view already waiting on the same image, otherwise
+            // start one: visible-first, newest-first, and cache hits on their own lane; see
+            // ImageLoadScheduler
+            LoadJob job = mInFlight.get(key);
+            if (job == null) {
+                job = new LoadJob(data, key, priority);
+                mInFlight.put(key, job);
+                job.attach(task);
+                ImageLoadScheduler.getInstance().submit(job);
+            } else {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "loadImage - joined in-flight load for " + key);
+                }
+                job.attach(task);
+                job.raisePriority(priority);
+            }
             //END_INCLUDE(execute_background_task)
         }
     }
@@ -134,13 +164,14 @@ public abstract class ImageWorker {
             return;
         }
         BitmapDrawable value = null;
+        final String key = getCacheKey(data);
         if (mImageCache != null) {
-            value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+            value = mImageCache.getBitmapFromMemCache(key);
         }
 
         if (value != null) {
             // Bitmap found in memory cache
-            mImageCache.clearCache(String.valueOf(data));
+            mImageCache.clearCache(key);
             if (listener != null) {
                 listener.onImageDeleted(true);
             }
@@ -159,13 +190,14 @@ public abstract class ImageWorker {
         }
         for (Object d : data) {
             BitmapDrawable value = null;
+            final String key = getCacheKey(d);
             if (mImageCache != null) {
-                value = mImageCache.getBitmapFromMemCache(String.valueOf(data));
+                value = mImageCache.getBitmapFromMemCache(key);
             }
 
             if (value != null) {
                 // Bitmap found in memory cache
-                mImageCache.clearCache(String.valueOf(data));
+                mImageCache.clearCache(key);
             }
         }
         if (listener != null) {
@@ -243,6 +275,17 @@ public abstract class ImageWorker {
      */
     protected abstract Bitmap processBitmap(Object data);
 
+    /**
+     * Returns the key the processed image is cached under. Subclasses that produce different
+     * bitmaps for the same data, such as at different sizes, must include what differs.
+     *
+     * @param data The data to identify which image to process
+     * @return The memory and disk cache key
+     */
+    protected String getCacheKey(Object data) {
+        return String.valueOf(data);
+    }
+
     /**
      * @return The {@link ImageCache} object currently being used by this ImageWorker.
      */
@@ -258,7 +301,7 @@ public abstract class ImageWorker {
     public static void cancelWork(ImageView imageView) {
         final BitmapWorkerTask bitmapWorkerTask = getBitmapWorkerTask(imageView);
         if (bitmapWorkerTask != null) {
-            bitmapWorkerTask.cancel(true);
+            bitmapWorkerTask.cancel();
             if (BuildConfig.DEBUG) {
                 final Object bitmapData = bitmapWorkerTask.mData;
                 Log.d(TAG, "cancelWork - cancelled work for " + bitmapData);
@@ -279,14 +322,16 @@ public abstract class ImageWorker {
         if (bitmapWorkerTask != null) {
             final Object bitmapData = bitmapWorkerTask.mData;
             if (bitmapData == null || !bitmapData.equals(data)) {
-                bitmapWorkerTask.cancel(true);
+                bitmapWorkerTask.cancel();
                 if (BuildConfig.DEBUG) {
                     Log.d(TAG, "cancelPotentialWork - cancelled work for " + data);
                 }
-            } else {
+            } else if (!bitmapWorkerTask.mFinished) {
                 // The same work is already in progress.
                 return false;
             }
+            // Otherwise the same work finished without an image, say because the file was not
+            // written yet, so try again
         }
         return true;
         //END_INCLUDE(cancel_potential_work)
@@ -309,40 +354,115 @@ public abstract class ImageWorker {
     }
 
     /**
-     * The actual AsyncTask that will asynchronously process the image.
+     * The actual request that will asynchronously process the image, once per cache key however
+     * many views are waiting for it. The cache stage and the process stage run on separate
+     * {@link ImageLoadScheduler} lanes; the result is delivered on the main thread to every
+     * {@link BitmapWorkerTask} still attached.
      */
-    private class BitmapWorkerTask extends AsyncTask<Void, Void, BitmapDrawable> {
-        private Object mData;
-        private final WeakReference<ImageView> imageViewReference;
-        private final OnImageLoadedListener mOnImageLoadedListener;
-
-        public BitmapWorkerTask(Object data, ImageView imageView) {
+    private class LoadJob extends ImageLoadScheduler.Request {
+        private final Object mData;
+        private final String mKey;
+        // Added and removed on the main thread, read by the lanes
+        private final List<BitmapWorkerTask> mTasks = new CopyOnWriteArrayList<BitmapWorkerTask>();
+
+        public LoadJob(Object data, String key, int priority) {
+            super(priority);
             mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mOnImageLoadedListener = null;
+            mKey = key;
         }
 
-        public BitmapWorkerTask(Object data, ImageView imageView, OnImageLoadedListener listener) {
-            mData = data;
-            imageViewReference = new WeakReference<ImageView>(imageView);
-            mOnImageLoadedListener = listener;
+        private void attach(BitmapWorkerTask task) {
+            task.mJob = this;
+            mTasks.add(task);
+        }
+
+        /**
+         * Called when a view no longer wants the image. The load itself is only cancelled once
+         * nobody is waiting for it.
+         */
+        private void detach(BitmapWorkerTask task) {
+            mTasks.remove(task);
+            if (mTasks.isEmpty()) {
+                if (mInFlight.get(mKey) == this) {
+                    mInFlight.remove(mKey);
+                }
+                cancel();
+            }
+        }
+
+        /**
+         * @return true if at least one of the ImageViews that asked for this image is still
+         * bound to it
+         */
+        private boolean isWanted() {
+            for (BitmapWorkerTask task : mTasks) {
+                if (task.getAttachedImageView() != null) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         /**
-         * Background processing.
+         * Cache lane: answers the request from the disk cache if it can.
          */
         @Override
-        protected BitmapDrawable doInBackground(Void... params) {
+        protected boolean loadFromCache() {
             //BEGIN_INCLUDE(load_bitmap_in_background)
             if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - starting work");
+                Log.d(TAG, "loadFromCache - starting work");
+            }
+
+            waitWhilePaused();
+
+            // If the image cache is available and this task has not been cancelled by another
+            // thread and an ImageView that was originally bound to this task is still bound back
+            // to it and our "exit early" flag is not set then try and fetch the bitmap from
+            // the cache
+            Bitmap bitmap = null;
+            if (mImageCache != null && !isCancelled() && isWanted() && !mExitTasksEarly) {
+                bitmap = mImageCache.getBitmapFromDiskCache(mKey);
+            }
+            if (bitmap != null) {
+                postResult(wrapAndCache(bitmap));
+                return true;
             }
 
-            final String dataString = String.valueOf(mData);
+            // Nothing left to do if the views have moved on
+            if (isCancelled() || !isWanted() || mExitTasksEarly) {
+                postResult(null);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Decode lane: runs the main process method (as implemented by a subclass).
+         */
+        @Override
+        protected void load() {
+            waitWhilePaused();
+
+            // If this task has not been cancelled by another thread and an ImageView that was
+            // originally bound to this task is still bound back to it and our "exit early"
+            // flag is not set, then call the main process method
             Bitmap bitmap = null;
-            BitmapDrawable drawable = null;
+            if (!isCancelled() && isWanted() && !mExitTasksEarly) {
+                bitmap = processBitmap(mData);
+            }
+
+            postResult(bitmap != null ? wrapAndCache(bitmap) : null);
 
-            // Wait here if work is paused and the task is not cancelled
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "load - finished work");
+            }
+            //END_INCLUDE(load_bitmap_in_background)
+        }
+
+        /**
+         * Wait here if work is paused and the task is not cancelled
+         */
+        private void waitWhilePaused() {
             synchronized (mPauseWorkLock) {
                 while (mPauseWork && !isCancelled()) {
                     try {
@@ -351,61 +471,111 @@ public abstract class ImageWorker {
                     }
                 }
             }
+        }
 
-            // If the image cache is available and this task has not been cancelled by another
-            // thread and the ImageView that was originally bound to this task is still bound back
-            // to this task and our "exit early" flag is not set then try and fetch the bitmap from
-            // the cache
-            if (mImageCache != null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = mImageCache.getBitmapFromDiskCache(dataString);
+        /**
+         * Wraps the bitmap and, if the image cache is available, adds it to the cache for future
+         * use. Note we don't check if the task was cancelled here, if it was, and the thread is
+         * still running, we may as well add the processed bitmap to our cache as it might be used
+         * again in the future
+         */
+        private BitmapDrawable wrapAndCache(Bitmap bitmap) {
+            final BitmapDrawable drawable;
+            final BitmapPool bitmapPool = mImageCache != null ? mImageCache.getBitmapPool() : null;
+            if (bitmapPool != null) {
+                // Running on Honeycomb or newer, so wrap in a RecyclingBitmapDrawable that goes
+                // back to the pool once no view draws it and the memory cache has let it go
+                drawable = new RecyclingBitmapDrawable(mResources, bitmap, bitmapPool);
+            } else if (Utils.hasHoneycomb()) {
+                // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
+                drawable = new BitmapDrawable(mResources, bitmap);
+            } else {
+                // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
+                // which will recycle automagically
+                drawable = new RecyclingBitmapDrawable(mResources, bitmap);
             }
 
-            // If the bitmap was not found in the cache and this task has not been cancelled by
-            // another thread and the ImageView that was originally bound to this task is still
-            // bound back to this task and our "exit early" flag is not set, then call the main
-            // process method (as implemented by a subclass)
-            if (bitmap == null && !isCancelled() && getAttachedImageView() != null
-                    && !mExitTasksEarly) {
-                bitmap = processBitmap(mData);
+            if (mImageCache != null) {
+                mImageCache.addBitmapToCache(mKey, drawable);
             }
+            return drawable;
+        }
 
-            // If the bitmap was processed and the image cache is available, then add the processed
-            // bitmap to the cache for future use. Note we don't check if the task was cancelled
-            // here, if it was, and the thread is still running, we may as well add the processed
-            // bitmap to our cache as it might be used again in the future
-            if (bitmap != null) {
-                if (Utils.hasHoneycomb()) {
-                    // Running on Honeycomb or newer, so wrap in a standard BitmapDrawable
-                    drawable = new BitmapDrawable(mResources, bitmap);
-                } else {
-                    // Running on Gingerbread or older, so wrap in a RecyclingBitmapDrawable
-                    // which will recycle automagically
-                    drawable = new RecyclingBitmapDrawable(mResources, bitmap);
+        /**
+         * Hands the result to every view still waiting, on the main thread. The same drawable is
+         * shared, just as for memory cache hits.
+         */
+        private void postResult(final BitmapDrawable value) {
+            postToMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mInFlight.get(mKey) == LoadJob.this) {
+                        mInFlight.remove(mKey);
+                    }
+                    if (isCancelled()) {
+                        return;
+                    }
+                    for (BitmapWorkerTask task : mTasks) {
+                        task.onPostExecute(value);
+                    }
                 }
+            });
+        }
 
-                if (mImageCache != null) {
-                    mImageCache.addBitmapToCache(dataString, drawable);
-                }
+        @Override
+        protected void onCancelled() {
+            synchronized (mPauseWorkLock) {
+                mPauseWorkLock.notifyAll();
             }
+        }
+    }
 
-            if (BuildConfig.DEBUG) {
-                Log.d(TAG, "doInBackground - finished work");
-            }
+    /**
+     * One ImageView's interest in a {@link LoadJob}. Referenced from the view's
+     * {@link AsyncDrawable}, so a rebind can cancel it without affecting other views waiting for
+     * the same image.
+     */
+    private class BitmapWorkerTask {
+        private final Object mData;
+        private final WeakReference<ImageView> imageViewReference;
+        private final OnImageLoadedListener mOnImageLoadedListener;
+        private LoadJob mJob;
+        private boolean mCancelled;
+        // Set once the result has been delivered; main thread only
+        private boolean mFinished;
 
-            return drawable;
-            //END_INCLUDE(load_bitmap_in_background)
+        public BitmapWorkerTask(Object data, ImageView imageView, OnImageLoadedListener listener) {
+            mData = data;
+            imageViewReference = new WeakReference<ImageView>(imageView);
+            mOnImageLoadedListener = listener;
+        }
+
+        /**
+         * Must be called on the main thread.
+         */
+        public void cancel() {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+            if (mJob != null) {
+                mJob.detach(this);
+            }
         }
 
         /**
          * Once the image is processed, associates it to the imageView
          */
-        @Override
-        protected void onPostExecute(BitmapDrawable value) {
+        private void onPostExecute(BitmapDrawable value) {
             //BEGIN_INCLUDE(complete_background_work)
+            // if cancel was called on this task we're done, as with AsyncTask
+            if (mCancelled) {
+                return;
+            }
+            mFinished = true;
             boolean success = false;
-            // if cancel was called on this task or the "exit early" flag is set then we're done
-            if (isCancelled() || mExitTasksEarly) {
+            // if the "exit early" flag is set then drop the result
+            if (mExitTasksEarly) {
                 value = null;
             }
 
@@ -423,14 +593,6 @@ public abstract class ImageWorker {
             //END_INCLUDE(complete_background_work)
         }
 
-        @Override
-        protected void onCancelled(BitmapDrawable value) {
-            super.onCancelled(value);
-            synchronized (mPauseWorkLock) {
-                mPauseWorkLock.notifyAll();
-            }
-        }
-
         /**
          * Returns the ImageView associated with this task as long as the ImageView's task still
          * points to this task as well. Returns null otherwise.
@@ -0,0 +1,105 @@
+package com.cm.android.winecellar.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bulk copy helpers for image files. Local files are moved with {@link FileChannel#transferTo}
+ * when the destination is a file, so the bytes never pass through the Java heap; everything else
+ * (network streams, cache editors) is copied through a large buffer that is reused per thread.
+ */
+public class IoUtils {
+
+    /**
+     * Big enough to read a camera JPEG in a couple of hundred system calls
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<byte[]> sBuffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+    private IoUtils() {
+    }
+
+    /**
+     * Copies a local file to a stream. Neither stream is closed.
+     *
+     * @param src the file to read
+     * @param out the stream to write to; a {@link FileOutputStream} gets a channel transfer
+     * @return the number of bytes copied
+     */
+    public static long copy(File src, OutputStream out) throws IOException {
+        final FileInputStream in = new FileInputStream(src);
+        try {
+            if (out instanceof FileOutputStream) {
+                return transfer(in.getChannel(), ((FileOutputStream) out).getChannel());
+            }
+            return copy(in, out);
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Copies a local file to another, replacing it.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(File src, File dst) throws IOException {
+        final FileOutputStream out = new FileOutputStream(dst);
+        try {
+            return copy(src, out);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Copies a stream through this thread's buffer. Neither stream is closed.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = sBuffers.get();
+        long total = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+            total += count;
+        }
+        return total;
+    }
+
+    private static long transfer(FileChannel src, FileChannel dst) throws IOException {
+        final long size = src.size();
+        long position = 0;
+        // transferTo may move fewer bytes than asked for
+        while (position < size) {
+            final long count = src.transferTo(position, size - position, dst);
+            if (count <= 0) {
+                break;
+            }
+            position += count;
+        }
+        return position;
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
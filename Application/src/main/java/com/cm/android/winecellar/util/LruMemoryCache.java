@@ -0,0 +1,17 @@
+package com.cm.android.winecellar.util;
+
+import android.support.v4.util.LruCache;
+
+/**
+ * A {@link MemoryCache} that drops the least recently used entries; the support library's
+ * {@link LruCache}, which already has every method.
+ */
+public class LruMemoryCache<K, V> extends LruCache<K, V> implements MemoryCache<K, V> {
+
+    /**
+     * @param maxSize the most total size, in the units of sizeOf()
+     */
+    public LruMemoryCache(int maxSize) {
+        super(maxSize);
+    }
+}
@@ -0,0 +1,43 @@
+package com.cm.android.winecellar.util;
+
+/**
+ * The decoded tier of {@link ImageCache}: a size-bounded map that decides for itself which
+ * entries to drop. Implementations measure entries with a sizeOf(key, value) hook and report
+ * removals through an entryRemoved(evicted, key, oldValue, newValue) hook, like
+ * {@link android.support.v4.util.LruCache}, and are thread safe.
+ *
+ * @see LruMemoryCache
+ * @see TinyLfuCache
+ */
+public interface MemoryCache<K, V> {
+
+    /**
+     * @return the cached value, or null
+     */
+    V get(K key);
+
+    /**
+     * @return the previous value for the key, or null
+     */
+    V put(K key, V value);
+
+    /**
+     * @return the removed value, or null
+     */
+    V remove(K key);
+
+    void evictAll();
+
+    /**
+     * @return the sum of the sizes of the entries
+     */
+    int size();
+
+    int maxSize();
+
+    int hitCount();
+
+    int missCount();
+
+    int evictionCount();
+}
@@ -0,0 +1,234 @@
+package com.cm.android.winecellar.util;
+
+import com.cm.android.common.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An {@link EncodedCache} that keeps the bytes outside the Java heap, so thousands of encoded
+ * thumbnails can be held without adding to GC work or to the heap limit.
+ * <p/>
+ * Memory comes in arenas of {@link #ARENA_SIZE} bytes, allocated as they are needed up to the
+ * capacity, and is handed out in blocks of {@link #BLOCK_SIZE} bytes from a free list. An entry
+ * takes as many blocks as it needs, which need not be adjacent, so freeing never fragments the
+ * arenas. When no block is free and no arena may be added, the least recently used entries are
+ * evicted.
+ * <p/>
+ * On Android, {@link ByteBuffer#allocateDirect} memory is taken from the Java heap, so arenas
+ * are mapped from an unlinked file instead when a directory is given: the pages belong to the
+ * kernel, which can write them back and reclaim them under memory pressure.
+ */
+public class OffHeapEncodedCache implements EncodedCache {
+    private static final String TAG = "OffHeapEncodedCache";
+
+    public static final int ARENA_SIZE = 1024 * 1024;
+    public static final int BLOCK_SIZE = 4 * 1024;
+    private static final int BLOCKS_PER_ARENA = ARENA_SIZE / BLOCK_SIZE;
+
+    // Single images bigger than this share of the capacity are not kept
+    private static final int MAX_ENTRY_FRACTION = 8;
+
+    private final int mMaxArenas;
+    private final File mMapDirectory;
+    private final ByteBuffer[] mArenas;
+    private int mArenaCount;
+
+    // Stack of free block numbers
+    private final int[] mFreeBlocks;
+    private int mFreeCount;
+
+    private final LinkedHashMap<String, Slot> mEntries =
+            new LinkedHashMap<String, Slot>(0, 0.75f, true);
+    private int mBytes;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxBytes      capacity, rounded up to whole arenas
+     * @param mapDirectory  a directory for the unlinked files that back the arenas, or null to
+     *                      use {@link ByteBuffer#allocateDirect}
+     */
+    public OffHeapEncodedCache(int maxBytes, File mapDirectory) {
+        mMaxArenas = Math.max(1, (maxBytes + ARENA_SIZE - 1) / ARENA_SIZE);
+        mMapDirectory = mapDirectory;
+        mArenas = new ByteBuffer[mMaxArenas];
+        mFreeBlocks = new int[mMaxArenas * BLOCKS_PER_ARENA];
+    }
+
+    @Override
+    public synchronized byte[] get(String key) {
+        final Slot slot = mEntries.get(key);
+        if (slot == null) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        final byte[] encoded = new byte[slot.length];
+        int offset = 0;
+        for (int block : slot.blocks) {
+            final int count = Math.min(BLOCK_SIZE, slot.length - offset);
+            final ByteBuffer arena = mArenas[block / BLOCKS_PER_ARENA];
+            arena.position((block % BLOCKS_PER_ARENA) * BLOCK_SIZE);
+            arena.get(encoded, offset, count);
+            offset += count;
+        }
+        return encoded;
+    }
+
+    /**
+     * Copies the bytes into the arenas. Images too big to be worth holding are ignored.
+     */
+    @Override
+    public synchronized void put(String key, byte[] encoded) {
+        remove(key);
+        final int capacity = mMaxArenas * ARENA_SIZE;
+        if (encoded.length == 0 || encoded.length > capacity / MAX_ENTRY_FRACTION) {
+            return;
+        }
+        final int[] blocks = allocate((encoded.length + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        if (blocks == null) {
+            return;
+        }
+        int offset = 0;
+        for (int block : blocks) {
+            final int count = Math.min(BLOCK_SIZE, encoded.length - offset);
+            final ByteBuffer arena = mArenas[block / BLOCKS_PER_ARENA];
+            arena.position((block % BLOCKS_PER_ARENA) * BLOCK_SIZE);
+            arena.put(encoded, offset, count);
+            offset += count;
+        }
+        mEntries.put(key, new Slot(blocks, encoded.length));
+        mBytes += encoded.length;
+    }
+
+    @Override
+    public synchronized void remove(String key) {
+        final Slot slot = mEntries.remove(key);
+        if (slot != null) {
+            free(slot);
+        }
+    }
+
+    /**
+     * Drops all entries. The arenas are kept for reuse.
+     */
+    @Override
+    public synchronized void clear() {
+        for (Slot slot : mEntries.values()) {
+            free(slot);
+        }
+        mEntries.clear();
+    }
+
+    /**
+     * @return the number of encoded bytes held, not counting the unused ends of blocks
+     */
+    public synchronized int size() {
+        return mBytes;
+    }
+
+    /**
+     * @return the number of bytes of arenas allocated so far
+     */
+    public synchronized int allocatedSize() {
+        return mArenaCount * ARENA_SIZE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("OffHeapEncodedCache[entries=%d,size=%d,allocated=%d,hits=%d,"
+                        + "misses=%d,hitRate=%d%%,evictions=%d]", mEntries.size(), mBytes,
+                mArenaCount * ARENA_SIZE, mHitCount, mMissCount, hitPercent, mEvictionCount);
+    }
+
+    /**
+     * @return the block numbers, or null if memory could not be had
+     */
+    private int[] allocate(int count) {
+        while (mFreeCount < count) {
+            if (mArenaCount < mMaxArenas && addArena()) {
+                continue;
+            }
+            final Iterator<Map.Entry<String, Slot>> eldest = mEntries.entrySet().iterator();
+            if (!eldest.hasNext()) {
+                return null;
+            }
+            free(eldest.next().getValue());
+            eldest.remove();
+            mEvictionCount++;
+        }
+        final int[] blocks = new int[count];
+        for (int i = 0; i < count; i++) {
+            blocks[i] = mFreeBlocks[--mFreeCount];
+        }
+        return blocks;
+    }
+
+    private void free(Slot slot) {
+        for (int block : slot.blocks) {
+            mFreeBlocks[mFreeCount++] = block;
+        }
+        mBytes -= slot.length;
+    }
+
+    private boolean addArena() {
+        ByteBuffer arena = null;
+        if (mMapDirectory != null) {
+            try {
+                arena = mapArena(mMapDirectory);
+            } catch (IOException e) {
+                Log.e(TAG, "addArena - " + e);
+            }
+        }
+        if (arena == null) {
+            try {
+                arena = ByteBuffer.allocateDirect(ARENA_SIZE);
+            } catch (OutOfMemoryError e) {
+                Log.e(TAG, "addArena - " + e);
+                return false;
+            }
+        }
+        final int arenaIndex = mArenaCount++;
+        mArenas[arenaIndex] = arena;
+        // Pushed in reverse so blocks are handed out from the start of the arena
+        for (int i = BLOCKS_PER_ARENA - 1; i >= 0; i--) {
+            mFreeBlocks[mFreeCount++] = arenaIndex * BLOCKS_PER_ARENA + i;
+        }
+        return true;
+    }
+
+    private static ByteBuffer mapArena(File directory) throws IOException {
+        directory.mkdirs();
+        final File file = File.createTempFile("arena", null, directory);
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(ARENA_SIZE);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, ARENA_SIZE);
+        } finally {
+            // The mapping outlives both the descriptor and the name
+            IoUtils.closeQuietly(raf);
+            file.delete();
+        }
+    }
+
+    private static final class Slot {
+        final int[] blocks;
+        final int length;
+
+        Slot(int[] blocks, int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+}
@@ -26,7 +26,8 @@ import com.vvw.activity.lite.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
+ * When the drawable is no longer being displayed or cached, its bitmap is put in the
+ * {@link BitmapPool} it was given for reuse through inBitmap, or if it has none
  * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
@@ -37,9 +38,19 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     private int mDisplayRefCount = 0;
 
     private boolean mHasBeenDisplayed;
+    private final BitmapPool mBitmapPool;
+    private boolean mReleased;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
+        this(res, bitmap, null);
+    }
+
+    /**
+     * @param bitmapPool where the bitmap goes once unused, or null to recycle it instead
+     */
+    public RecyclingBitmapDrawable(Resources res, Bitmap bitmap, BitmapPool bitmapPool) {
         super(res, bitmap);
+        mBitmapPool = bitmapPool;
     }
 
     /**
@@ -89,9 +100,20 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
     private synchronized void checkState() {
         //BEGIN_INCLUDE(check_state)
         // If the drawable cache and display ref counts = 0, and this drawable
-        // has been displayed, then recycle
+        // has been displayed, then pool or recycle. Only once: a pooled bitmap may already
+        // hold another image
         if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                && hasValidBitmap()) {
+                && !mReleased && hasValidBitmap()) {
+            mReleased = true;
+            if (mBitmapPool != null) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "No longer being used or cached so pooling. "
+                            + toString());
+                }
+
+                mBitmapPool.put(getBitmap());
+                return;
+            }
             if (BuildConfig.DEBUG) {
                 Log.d(TAG, "No longer being used or cached so recycling. "
                         + toString());
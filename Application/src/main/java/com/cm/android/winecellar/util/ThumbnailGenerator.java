@@ -0,0 +1,366 @@
+package com.cm.android.winecellar.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.media.ThumbnailUtils;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.cm.android.common.logger.Log;
+import com.vvw.activity.lite.BuildConfig;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes the thumbnails and other derivatives of new photos on a small pool of background threads,
+ * so a camera photo is never decoded on the main thread. Only the centre crop of each photo is
+ * decoded for its thumbnail, with an inSampleSize that brings it close to the thumbnail size, so
+ * a 12+ MP image costs a few hundred KB of heap rather than 50MB; it is then scaled to the exact
+ * size and written as the {@link EncodingPolicy} says. The medium and OCR sized copies are made
+ * from one more sampled decode, and listed with the thumbnail in a {@link DerivativeSet} manifest.
+ * <p/>
+ * Each file is written to a temporary file and renamed into place, so the grid and the
+ * {@link com.cm.android.winecellar.provider.ImageCatalog} never see a partly written one. The
+ * temporary file is kept in the parent of the target directory, which must be on the same
+ * storage.
+ */
+public class ThumbnailGenerator {
+    private static final String TAG = "ThumbnailGenerator";
+
+    private static final int THREADS = 2;
+    private static final int KEEP_ALIVE_SECONDS = 1;
+
+    /**
+     * The medium derivative covers a square of this size, which is what the detail pager asks
+     * for on screens up to 2560 pixels long.
+     */
+    public static final int MEDIUM_SIZE = 1280;
+    /**
+     * The OCR derivative fits in a square of this size, the size recommended for text detection.
+     */
+    public static final int OCR_SIZE = 1024;
+
+    private static ThumbnailGenerator sThumbnailGenerator;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private volatile EncodingPolicy mEncodingPolicy = EncodingPolicy.getDefault();
+
+    /**
+     * Interface definition for a callback when the derivatives of a photo have been generated.
+     * Always called on the main thread.
+     */
+    public interface OnDerivativesGeneratedListener {
+
+        /**
+         * @param imagePath   the photo
+         * @param derivatives the derivatives made, or null if not even the thumbnail could be
+         */
+        void onDerivativesGenerated(String imagePath, DerivativeSet derivatives);
+    }
+
+    public static synchronized ThumbnailGenerator getInstance() {
+        if (sThumbnailGenerator == null) {
+            sThumbnailGenerator = new ThumbnailGenerator();
+        }
+        return sThumbnailGenerator;
+    }
+
+    private ThumbnailGenerator() {
+        mExecutor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + " #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets how the photos queued from now on are encoded.
+     */
+    public void setEncodingPolicy(EncodingPolicy encodingPolicy) {
+        mEncodingPolicy = encodingPolicy;
+    }
+
+    /**
+     * Queues the derivatives of a photo to be made.
+     *
+     * @param imagePath     the photo
+     * @param thumbnailPath where to write the thumbnail
+     * @param width         thumbnail width
+     * @param height        thumbnail height
+     * @param listener      called on the main thread once done; may be null
+     */
+    public void generate(final String imagePath, final String thumbnailPath, final int width,
+                         final int height, final OnDerivativesGeneratedListener listener) {
+        final EncodingPolicy encodingPolicy = mEncodingPolicy;
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DerivativeSet derivatives = createDerivatives(imagePath, thumbnailPath,
+                        width, height, encodingPolicy);
+                if (listener != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.onDerivativesGenerated(imagePath, derivatives);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes the thumbnail, then the medium and OCR derivatives of a photo, and writes the
+     * manifest. Derivatives that would be no smaller than the photo are not made. Does disk
+     * access and decoding, so must not be called on the main thread.
+     *
+     * @return the derivatives made, or null if the thumbnail could not be
+     */
+    public static DerivativeSet createDerivatives(String imagePath, String thumbnailPath,
+                                                  int width, int height,
+                                                  EncodingPolicy encodingPolicy) {
+        final Bitmap thumbnail =
+                createThumbnail(imagePath, thumbnailPath, width, height, encodingPolicy);
+        if (thumbnail == null) {
+            return null;
+        }
+        thumbnail.recycle();
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, options);
+        final int sourceWidth = options.outWidth;
+        final int sourceHeight = options.outHeight;
+
+        final List<DerivativeSet.Derivative> derivatives =
+                new ArrayList<DerivativeSet.Derivative>();
+        derivatives.add(new DerivativeSet.Derivative(DerivativeSet.THUMBNAIL,
+                new File(thumbnailPath), width, height, true));
+
+        // Scale factors relative to the photo; at least 1 means the copy would be no smaller
+        final float mediumScale =
+                (float) MEDIUM_SIZE / Math.min(sourceWidth, sourceHeight);
+        final float ocrScale = (float) OCR_SIZE / Math.max(sourceWidth, sourceHeight);
+        float largestScale = 0f;
+        if (mediumScale < 1f) {
+            largestScale = mediumScale;
+        }
+        if (ocrScale < 1f) {
+            largestScale = Math.max(largestScale, ocrScale);
+        }
+        if (largestScale > 0f) {
+            try {
+                // One decode for both, sampled no further than the larger of them needs
+                options.inJustDecodeBounds = false;
+                options.inSampleSize = 1;
+                while (largestScale * options.inSampleSize * 2 <= 1f) {
+                    options.inSampleSize *= 2;
+                }
+                final Bitmap sampled = BitmapFactory.decodeFile(imagePath, options);
+                if (sampled != null) {
+                    if (mediumScale < 1f) {
+                        addDerivative(derivatives, DerivativeSet.MEDIUM, imagePath, sampled,
+                                Math.round(sourceWidth * mediumScale),
+                                Math.round(sourceHeight * mediumScale),
+                                encodingPolicy, EncodingPolicy.Tier.MEDIUM);
+                    }
+                    if (ocrScale < 1f) {
+                        addDerivative(derivatives, DerivativeSet.OCR, imagePath, sampled,
+                                Math.round(sourceWidth * ocrScale),
+                                Math.round(sourceHeight * ocrScale),
+                                encodingPolicy, EncodingPolicy.Tier.OCR);
+                    }
+                    sampled.recycle();
+                }
+            } catch (OutOfMemoryError e) {
+                // The thumbnail is enough to go on with; viewers fall back to the photo
+                Log.e(TAG, "createDerivatives - " + e);
+            }
+        }
+
+        final DerivativeSet set = new DerivativeSet(sourceWidth, sourceHeight, derivatives);
+        try {
+            set.save(imagePath);
+        } catch (IOException e) {
+            Log.e(TAG, "createDerivatives - " + e);
+        }
+        return set;
+    }
+
+    private static void addDerivative(List<DerivativeSet.Derivative> derivatives, String name,
+                                      String imagePath, Bitmap sampled, int width, int height,
+                                      EncodingPolicy encodingPolicy, EncodingPolicy.Tier tier) {
+        final Bitmap scaled = Bitmap.createScaledBitmap(sampled, Math.max(1, width),
+                Math.max(1, height), true);
+        final File file = DerivativeSet.getDerivativeFile(imagePath, name);
+        file.getParentFile().mkdirs();
+        try {
+            writeImage(scaled, file, encodingPolicy, tier);
+            derivatives.add(new DerivativeSet.Derivative(name, file, scaled.getWidth(),
+                    scaled.getHeight(), false));
+        } catch (IOException e) {
+            Log.e(TAG, "addDerivative - " + e);
+        } finally {
+            if (scaled != sampled) {
+                scaled.recycle();
+            }
+        }
+    }
+
+    /**
+     * Makes and writes the thumbnail of a photo, centre cropped to the given size. Does disk
+     * access and decoding, so must not be called on the main thread.
+     * <p/>
+     * Only the centre crop is decoded, through {@link BitmapRegionDecoder}, sampled down to at
+     * most twice the pixels of the thumbnail; the rest of the photo is never in memory. Formats
+     * the region decoder does not support are decoded whole with the same bound on pixels. Either
+     * way the bitmap memory in use at once stays under three times the thumbnail's, whatever the
+     * resolution of the photo.
+     *
+     * @return the thumbnail, or null if the photo could not be decoded or the thumbnail written
+     */
+    public static Bitmap createThumbnail(String imagePath, String thumbnailPath, int width,
+                                        int height, EncodingPolicy encodingPolicy) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(imagePath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.e(TAG, "createThumbnail - could not read " + imagePath);
+            return null;
+        }
+        final Rect crop = getCenterCrop(options.outWidth, options.outHeight, width, height);
+
+        final Bitmap thumbnail;
+        try {
+            Bitmap sampled = decodeRegion(imagePath, crop, width, height);
+            if (sampled == null) {
+                // Not a format the region decoder handles; crop after decoding
+                options.inSampleSize = ImageResizer.calculateInSampleSize(options, width, height);
+                options.inJustDecodeBounds = false;
+                final Bitmap whole = BitmapFactory.decodeFile(imagePath, options);
+                if (whole == null) {
+                    Log.e(TAG, "createThumbnail - could not decode " + imagePath);
+                    return null;
+                }
+                sampled = ThumbnailUtils.extractThumbnail(whole, width, height,
+                        ThumbnailUtils.OPTIONS_RECYCLE_INPUT);
+            }
+            thumbnail = Bitmap.createScaledBitmap(sampled, width, height, true);
+            if (thumbnail != sampled) {
+                sampled.recycle();
+            }
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "createThumbnail - " + e);
+            return null;
+        }
+
+        try {
+            writeImage(thumbnail, new File(thumbnailPath), encodingPolicy,
+                    EncodingPolicy.Tier.THUMBNAIL);
+        } catch (IOException e) {
+            Log.e(TAG, "createThumbnail - " + e);
+            return null;
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Writes a bitmap, encoded for its tier, through a temporary file beside the target's
+     * directory.
+     */
+    private static void writeImage(Bitmap bitmap, File target, EncodingPolicy encodingPolicy,
+                                   EncodingPolicy.Tier tier) throws IOException {
+        // Beside the target directory rather than in it, where the catalog would list it
+        final File temp = new File(target.getParentFile().getParentFile(),
+                "." + target.getName() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp), Utils.IO_BUFFER_SIZE);
+            if (!encodingPolicy.compress(tier, bitmap, out)) {
+                throw new IOException("compress failed");
+            }
+            out.close();
+            out = null;
+            if (!temp.renameTo(target)) {
+                throw new IOException("rename to " + target + " failed");
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * @return the centre crop decoded with the inSampleSize from
+     *         {@link ImageResizer#calculateInSampleSize}, or null if the format is not supported
+     */
+    private static Bitmap decodeRegion(String imagePath, Rect crop, int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = getCropSampleSize(crop, width, height);
+        BitmapRegionDecoder decoder = null;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(imagePath, false);
+            return decoder.decodeRegion(crop, options);
+        } catch (IOException e) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "decodeRegion - " + e);
+            }
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * @return the largest part of a source image, centred, with the aspect ratio of the thumbnail
+     */
+    static Rect getCenterCrop(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        int cropWidth = srcWidth;
+        int cropHeight = (int) ((long) srcWidth * dstHeight / dstWidth);
+        if (cropHeight > srcHeight) {
+            cropHeight = srcHeight;
+            cropWidth = (int) ((long) srcHeight * dstWidth / dstHeight);
+        }
+        cropWidth = Math.max(1, cropWidth);
+        cropHeight = Math.max(1, cropHeight);
+        final int left = (srcWidth - cropWidth) / 2;
+        final int top = (srcHeight - cropHeight) / 2;
+        return new Rect(left, top, left + cropWidth, top + cropHeight);
+    }
+
+    private static int getCropSampleSize(Rect crop, int width, int height) {
+        final BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.outWidth = crop.width();
+        bounds.outHeight = crop.height();
+        return ImageResizer.calculateInSampleSize(bounds, width, height);
+    }
+}
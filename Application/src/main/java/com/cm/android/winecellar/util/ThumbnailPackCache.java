@@ -0,0 +1,707 @@
+package com.cm.android.winecellar.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A disk cache for many small values, such as thumbnails, that keeps them back to back in a few
+ * memory-mapped segment files instead of one file each. Reading a value is a slice of a mapped
+ * buffer, with no open() or close() and no inode lookup. It follows the {@link DiskLruCache}
+ * contract for {@link #get} and {@link #edit}, with a single value per entry.
+ *
+ * <p>Each segment is a file of fixed size, mapped read-write and filled from the front with
+ * records:
+ * <pre>
+ *     int magic 0x54504b32, byte type (1 data, 2 tombstone), unsigned short key length,
+ *     int data length, int CRC32 of the data, int CRC32 of the type, lengths, data CRC and key,
+ *     UTF-8 key bytes, data bytes
+ * </pre>
+ * The pages of a mapping reach the disk in any order, so after a power loss a header may be there
+ * without its data; the data CRC catches that. A record is only indexed if both CRCs match.
+ * Values are only ever appended to the newest segment. Removing or evicting an entry appends a
+ * tombstone, so the entry stays gone after a restart, and leaves its bytes dead in their segment.
+ * Once less than half of an older segment is live, its live records are copied to the newest one
+ * and the segment file is deleted. The offset index is rebuilt on open by scanning the segments'
+ * records in order; LRU order across restarts is approximated by that write order.
+ * <p>Only the {@value #MAX_MAPPED_SEGMENTS} most recently used segments are kept mapped; the others
+ * are mapped again when read, so address space does not grow with the number of segments.
+ *
+ * <p>The size limit applies to live bytes; with compaction the files use at most about twice
+ * that. Like {@link DiskLruCache}, the directory must be exclusive to the cache: files in it that
+ * are not segments are deleted on open.
+ */
+public final class ThumbnailPackCache implements Closeable {
+    static final String SEGMENT_PREFIX = "pack.";
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int RECORD_MAGIC = 0x54504b32; // "TPK2"
+    private static final byte TYPE_DATA = 1;
+    private static final byte TYPE_TOMBSTONE = 2;
+    /** magic, type, key length, data length, data CRC, header CRC */
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 4 + 4 + 4;
+    private static final float COMPACT_LIVE_RATIO = 0.5f;
+    static final int MAX_MAPPED_SEGMENTS = 4;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private final File directory;
+    private final long maxSize;
+    private final int segmentSize;
+    private final CRC32 crc = new CRC32();
+    private final byte[] crcBuffer = new byte[IO_BUFFER_SIZE];
+
+    /** Oldest first; the last one is appended to. */
+    private final List<Segment> segments = new ArrayList<Segment>();
+    /** The segments that have a mapping, least recently used first */
+    private final List<Segment> mapped = new ArrayList<Segment>();
+    private final LinkedHashMap<String, Location> index
+            = new LinkedHashMap<String, Location>(0, 0.75f, true);
+    private final Set<String> editing = new HashSet<String>();
+    private long size;
+    private int nextSegmentId;
+    private boolean closed;
+
+    private ThumbnailPackCache(File directory, long maxSize, int segmentSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+    }
+
+    /**
+     * Opens the cache in {@code directory}, creating a cache if none exists there.
+     *
+     * @param directory a writable directory
+     * @param maxSize   the maximum number of live bytes this cache should store
+     * @throws IOException if reading or writing the cache directory fails
+     */
+    public static ThumbnailPackCache open(File directory, long maxSize) throws IOException {
+        return open(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * @param segmentSize size of each segment file; also the upper bound for a single value
+     * @see #open(File, long)
+     */
+    public static ThumbnailPackCache open(File directory, long maxSize, int segmentSize)
+            throws IOException {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentSize <= RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("segmentSize too small");
+        }
+        directory.mkdirs();
+        final ThumbnailPackCache cache = new ThumbnailPackCache(directory, maxSize, segmentSize);
+        cache.readSegments();
+        cache.trimToSize();
+        cache.compact();
+        return cache;
+    }
+
+    private void readSegments() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("not a directory: " + directory);
+        }
+        final List<Segment> found = new ArrayList<Segment>();
+        for (File file : files) {
+            final int id = segmentId(file);
+            if (id < 0) {
+                // left over from another cache format, e.g. DiskLruCache files
+                if (file.isDirectory()) {
+                    DiskLruCache.deleteContents(file);
+                }
+                file.delete();
+                continue;
+            }
+            found.add(new Segment(id, file, Math.max(segmentSize, (int) file.length())));
+        }
+        Collections.sort(found, new Comparator<Segment>() {
+            @Override
+            public int compare(Segment lhs, Segment rhs) {
+                return lhs.id < rhs.id ? -1 : (lhs.id == rhs.id ? 0 : 1);
+            }
+        });
+        for (Segment segment : found) {
+            segments.add(segment);
+            scan(segment);
+            nextSegmentId = segment.id + 1;
+        }
+    }
+
+    /**
+     * Deletes the segment files in {@code directory}, if any, leaving other files alone. For
+     * switching the directory to another cache format, which would not know to delete them.
+     */
+    public static void deleteSegments(File directory) throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (segmentId(file) >= 0 && !file.delete()) {
+                throw new IOException("failed to delete " + file);
+            }
+        }
+    }
+
+    private static int segmentId(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, int length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            DiskLruCache.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Replays the records of a segment into the index, up to the first one that is missing or
+     * damaged; the segment is appended to from there.
+     */
+    private void scan(Segment segment) throws IOException {
+        final ByteBuffer buffer = buffer(segment).duplicate();
+        int position = 0;
+        while (buffer.capacity() - position >= RECORD_HEADER_SIZE) {
+            buffer.position(position);
+            if (buffer.getInt() != RECORD_MAGIC) {
+                break;
+            }
+            final byte type = buffer.get();
+            final int keyLength = buffer.getShort() & 0xffff;
+            final int dataLength = buffer.getInt();
+            final int dataCrc = buffer.getInt();
+            final int headerCrc = buffer.getInt();
+            final int recordLength = RECORD_HEADER_SIZE + keyLength + dataLength;
+            if ((type != TYPE_DATA && type != TYPE_TOMBSTONE)
+                    || dataLength < 0 || dataLength > buffer.capacity()
+                    || recordLength > buffer.capacity() - position) {
+                break;
+            }
+            final byte[] key = new byte[keyLength];
+            buffer.get(key);
+            if (headerCrc != headerCrc(type, key, dataLength, dataCrc)) {
+                break;
+            }
+            final int dataOffset = position + RECORD_HEADER_SIZE + keyLength;
+            buffer.limit(dataOffset + dataLength);
+            final int actualDataCrc = dataCrc(buffer);
+            buffer.limit(buffer.capacity());
+            if (actualDataCrc != dataCrc) {
+                break;
+            }
+
+            final String keyString = new String(key, UTF_8);
+            if (type == TYPE_DATA) {
+                putLocation(keyString, new Location(segment, position, recordLength,
+                        dataOffset, dataLength));
+            } else {
+                removeLocation(keyString);
+            }
+            position += recordLength;
+        }
+        segment.writePosition = position;
+    }
+
+    /**
+     * Returns a snapshot of the entry named {@code key}, or null if it doesn't exist. If a value
+     * is returned, it is moved to the head of the LRU queue.
+     */
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+        final Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+        return new Snapshot(slice(location));
+    }
+
+    /**
+     * Returns an editor for the entry named {@code key}, or null if another edit is in progress.
+     */
+    public synchronized Editor edit(String key) {
+        checkNotClosed();
+        if (!editing.add(key)) {
+            return null;
+        }
+        return new Editor(key);
+    }
+
+    /**
+     * Drops the entry for {@code key} if it exists.
+     *
+     * @return true if an entry was removed.
+     */
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+        if (!index.containsKey(key)) {
+            return false;
+        }
+        removeLocation(key);
+        append(TYPE_TOMBSTONE, key, null);
+        compact();
+        return true;
+    }
+
+    /**
+     * Returns the directory where this cache stores its data.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the maximum number of live bytes that this cache should store.
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns the number of live bytes currently stored.
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Force written values to the filesystem.
+     */
+    public synchronized void flush() {
+        checkNotClosed();
+        for (Segment segment : mapped) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes this cache. Stored values will remain on the filesystem. Snapshots taken before stay
+     * readable.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        index.clear();
+        segments.clear();
+        mapped.clear();
+        editing.clear();
+    }
+
+    /**
+     * Closes the cache and deletes all of its stored values.
+     */
+    public void delete() throws IOException {
+        close();
+        DiskLruCache.deleteContents(directory);
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("cache is closed");
+        }
+    }
+
+    private synchronized void completeEdit(Editor editor, boolean success) throws IOException {
+        if (closed || !editing.remove(editor.key)) {
+            return;
+        }
+        if (!success) {
+            return;
+        }
+        final ByteBuffer data = ByteBuffer.wrap(editor.out.toByteArray());
+        final Location location = append(TYPE_DATA, editor.key, data);
+        putLocation(editor.key, location);
+        trimToSize();
+    }
+
+    private void putLocation(String key, Location location) {
+        final Location old = index.put(key, location);
+        if (old != null) {
+            release(old);
+        }
+        location.segment.liveBytes += location.recordLength;
+        size += location.dataLength;
+    }
+
+    private void removeLocation(String key) {
+        final Location old = index.remove(key);
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    private void release(Location location) {
+        location.segment.liveBytes -= location.recordLength;
+        size -= location.dataLength;
+    }
+
+    private void trimToSize() throws IOException {
+        if (size <= maxSize) {
+            return;
+        }
+        while (size > maxSize && !index.isEmpty()) {
+            final String eldest = index.keySet().iterator().next();
+            removeLocation(eldest);
+            append(TYPE_TOMBSTONE, eldest, null);
+        }
+        compact();
+    }
+
+    /**
+     * Appends a record to the newest segment, starting a new one if it is full.
+     *
+     * @param data the value, or null for a tombstone
+     * @return where the value was written
+     */
+    private Location append(byte type, String key, ByteBuffer data) throws IOException {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > 0xffff) {
+            throw new IllegalArgumentException("key too long: \"" + key + "\"");
+        }
+        final int dataLength = data != null ? data.remaining() : 0;
+        final int recordLength = RECORD_HEADER_SIZE + keyBytes.length + dataLength;
+        if (recordLength > segmentSize) {
+            throw new IOException("value larger than a segment: " + dataLength);
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.capacity - segment.writePosition < recordLength) {
+            segment = newSegment();
+        }
+        final int dataCrc = data != null ? dataCrc(data) : 0;
+        final int position = segment.writePosition;
+        final ByteBuffer buffer = buffer(segment);
+        buffer.position(position);
+        buffer.putInt(RECORD_MAGIC)
+                .put(type)
+                .putShort((short) keyBytes.length)
+                .putInt(dataLength)
+                .putInt(dataCrc)
+                .putInt(headerCrc(type, keyBytes, dataLength, dataCrc))
+                .put(keyBytes);
+        if (data != null) {
+            buffer.put(data);
+        }
+        // End the records here, so a scan after a damaged record cannot run on into records that
+        // were written before it
+        if (buffer.remaining() >= 4) {
+            buffer.putInt(0);
+        }
+        segment.writePosition = position + recordLength;
+        segment.dirty = true;
+        return new Location(segment, position, recordLength,
+                position + RECORD_HEADER_SIZE + keyBytes.length, dataLength);
+    }
+
+    private Segment newSegment() throws IOException {
+        final int id = nextSegmentId++;
+        final File file = new File(directory, SEGMENT_PREFIX + id);
+        final Segment segment = new Segment(id, file, segmentSize);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Returns the mapping of a segment, mapping it again if it was dropped, and drops the
+     * mapping of the least recently used segment if more than {@link #MAX_MAPPED_SEGMENTS} are
+     * mapped. A dropped mapping is unmapped once it is collected, after the last snapshot of it.
+     */
+    private ByteBuffer buffer(Segment segment) throws IOException {
+        if (segment.buffer == null) {
+            segment.buffer = map(segment.file, segment.capacity);
+        } else {
+            mapped.remove(segment);
+        }
+        mapped.add(segment);
+        while (mapped.size() > MAX_MAPPED_SEGMENTS) {
+            unmap(mapped.remove(0));
+        }
+        return segment.buffer;
+    }
+
+    private static void unmap(Segment segment) {
+        if (segment.dirty) {
+            segment.buffer.force();
+            segment.dirty = false;
+        }
+        segment.buffer = null;
+    }
+
+    /**
+     * Deletes older segments with no live records, and rewrites those that are mostly dead.
+     */
+    private void compact() throws IOException {
+        // Never the newest segment, which is still being appended to
+        for (int i = 0; i < segments.size() - 1; i++) {
+            final Segment segment = segments.get(i);
+            if (segment.liveBytes > segment.writePosition * COMPACT_LIVE_RATIO) {
+                continue;
+            }
+            if (segment.liveBytes > 0) {
+                copyLiveRecords(segment, i > 0);
+            }
+            segments.remove(i--);
+            if (mapped.remove(segment)) {
+                segment.buffer = null;
+                segment.dirty = false;
+            }
+            // Mapped buffers handed out in snapshots stay valid after the file is gone
+            if (!segment.file.delete()) {
+                throw new IOException("failed to delete " + segment.file);
+            }
+        }
+    }
+
+    /**
+     * @param keepTombstones true if an older segment exists, in which tombstones in this one
+     *                       may still hide a value
+     */
+    private void copyLiveRecords(Segment segment, boolean keepTombstones) throws IOException {
+        // Iterating the values does not change the LRU order, and neither does updating a
+        // location in place
+        for (Location location : index.values()) {
+            if (location.segment == segment) {
+                final Location moved = append(TYPE_DATA, keyAt(location), slice(location));
+                segment.liveBytes -= location.recordLength;
+                location.moveTo(moved);
+                moved.segment.liveBytes += moved.recordLength;
+            }
+        }
+        if (!keepTombstones) {
+            return;
+        }
+        final ByteBuffer buffer = buffer(segment).duplicate();
+        int position = 0;
+        while (position < segment.writePosition) {
+            buffer.position(position + 4);
+            final byte type = buffer.get();
+            final int keyLength = buffer.getShort() & 0xffff;
+            final int dataLength = buffer.getInt();
+            if (type == TYPE_TOMBSTONE) {
+                final byte[] key = new byte[keyLength];
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.get(key);
+                final String keyString = new String(key, UTF_8);
+                if (!index.containsKey(keyString)) {
+                    append(TYPE_TOMBSTONE, keyString, null);
+                }
+            }
+            position += RECORD_HEADER_SIZE + keyLength + dataLength;
+        }
+    }
+
+    private String keyAt(Location location) throws IOException {
+        final ByteBuffer buffer = buffer(location.segment).duplicate();
+        buffer.position(location.offset + 5);
+        final byte[] key = new byte[buffer.getShort() & 0xffff];
+        buffer.position(location.offset + RECORD_HEADER_SIZE);
+        buffer.get(key);
+        return new String(key, UTF_8);
+    }
+
+    /**
+     * @return an independent buffer over just the value
+     */
+    private ByteBuffer slice(Location location) throws IOException {
+        final ByteBuffer buffer = buffer(location.segment).duplicate();
+        buffer.limit(location.dataOffset + location.dataLength);
+        buffer.position(location.dataOffset);
+        return buffer.slice();
+    }
+
+    private int headerCrc(byte type, byte[] key, int dataLength, int dataCrc) {
+        crc.reset();
+        crc.update(type);
+        crc.update((key.length >>> 8) & 0xff);
+        crc.update(key.length & 0xff);
+        updateInt(dataLength);
+        updateInt(dataCrc);
+        crc.update(key, 0, key.length);
+        return (int) crc.getValue();
+    }
+
+    private void updateInt(int value) {
+        crc.update(value >>> 24);
+        crc.update((value >>> 16) & 0xff);
+        crc.update((value >>> 8) & 0xff);
+        crc.update(value & 0xff);
+    }
+
+    /**
+     * @return the CRC32 of the remaining bytes of {@code data}, which is left unchanged
+     */
+    private int dataCrc(ByteBuffer data) {
+        final ByteBuffer buffer = data.duplicate();
+        crc.reset();
+        while (buffer.hasRemaining()) {
+            final int count = Math.min(buffer.remaining(), crcBuffer.length);
+            buffer.get(crcBuffer, 0, count);
+            crc.update(crcBuffer, 0, count);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static final class Segment {
+        final int id;
+        final File file;
+        final int capacity;
+        /** Null while not mapped */
+        MappedByteBuffer buffer;
+        int writePosition;
+        /** Bytes taken by records that are still in the index */
+        int liveBytes;
+        /** True if written to since the last flush */
+        boolean dirty;
+
+        Segment(int id, File file, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.capacity = capacity;
+        }
+    }
+
+    private static final class Location {
+        Segment segment;
+        int offset;
+        int recordLength;
+        int dataOffset;
+        int dataLength;
+
+        Location(Segment segment, int offset, int recordLength, int dataOffset, int dataLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.recordLength = recordLength;
+            this.dataOffset = dataOffset;
+            this.dataLength = dataLength;
+        }
+
+        void moveTo(Location location) {
+            segment = location.segment;
+            offset = location.offset;
+            recordLength = location.recordLength;
+            dataOffset = location.dataOffset;
+        }
+    }
+
+    /**
+     * A snapshot of the value for an entry. The bytes are read straight from the mapped segment.
+     */
+    public static final class Snapshot implements Closeable {
+        private final ByteBuffer buffer;
+
+        private Snapshot(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        /**
+         * Returns a stream over the value. Only index 0 exists.
+         */
+        public InputStream getInputStream(int index) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return new ByteBufferInputStream(buffer.duplicate());
+        }
+
+        /**
+         * Returns a read-only buffer over the value.
+         */
+        public ByteBuffer getBuffer() {
+            return buffer.asReadOnlyBuffer();
+        }
+
+        public long getLength() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Edits the value for an entry. The value is collected in memory and written to the segment
+     * on {@link #commit}.
+     */
+    public final class Editor {
+        private final String key;
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private boolean done;
+
+        private Editor(String key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the stream to write the value to. Only index 0 exists.
+         */
+        public OutputStream newOutputStream(int index) {
+            if (index != 0) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return out;
+        }
+
+        /**
+         * Commits this edit so it is visible to readers. This releases the edit lock so another
+         * edit may be started on the same key.
+         */
+        public void commit() throws IOException {
+            if (!done) {
+                done = true;
+                completeEdit(this, true);
+            }
+        }
+
+        /**
+         * Aborts this edit. This releases the edit lock so another edit may be started on the
+         * same key.
+         */
+        public void abort() throws IOException {
+            if (!done) {
+                done = true;
+                completeEdit(this, false);
+            }
+        }
+    }
+}
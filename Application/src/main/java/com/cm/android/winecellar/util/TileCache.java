@@ -0,0 +1,53 @@
+package com.cm.android.winecellar.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * The tiles decoded for the zoomable detail view, shared by all its pages. A tile is identified by
+ * its image, its level, the inSampleSize it was decoded at, and its column and row at that level.
+ * Sized in kilobytes, like {@link ImageCache}'s memory cache.
+ */
+public class TileCache extends LruMemoryCache<String, Bitmap> {
+
+    // Share of the max VM memory the tiles may take
+    private static final float MEM_CACHE_SIZE_PERCENT = 0.1f;
+
+    private static TileCache sTileCache;
+
+    public static synchronized TileCache getInstance() {
+        if (sTileCache == null) {
+            sTileCache = new TileCache(
+                    Math.round(MEM_CACHE_SIZE_PERCENT * Runtime.getRuntime().maxMemory() / 1024));
+        }
+        return sTileCache;
+    }
+
+    /**
+     * @param maxSize the most total size of the tiles, in kilobytes
+     */
+    public TileCache(int maxSize) {
+        super(maxSize);
+    }
+
+    public static String getKey(String imagePath, int level, int column, int row) {
+        return imagePath + "@" + level + "/" + column + "," + row;
+    }
+
+    /**
+     * Drops the tiles of an image, for when it is deleted or replaced.
+     */
+    public void evictImage(String imagePath) {
+        final String prefix = imagePath + "@";
+        for (String key : snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                remove(key);
+            }
+        }
+    }
+
+    @Override
+    protected int sizeOf(String key, Bitmap value) {
+        final int size = value.getByteCount() / 1024;
+        return size == 0 ? 1 : size;
+    }
+}
@@ -0,0 +1,414 @@
+package com.cm.android.winecellar.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A {@link MemoryCache} with the W-TinyLFU policy, which keeps frequently used entries through a
+ * one-off scan that would flush a plain LRU, such as flinging through the whole cellar.
+ * <p/>
+ * New entries go to an LRU window. Entries pushed out of the window are only admitted to the main
+ * area if they have been used more often, according to an approximate frequency sketch, than the
+ * entry they would push out of it; otherwise they are dropped. The main area is a segmented LRU:
+ * entries start on probation and move to the protected segment when used again.
+ * <p/>
+ * Subclasses override {@link #sizeOf} and {@link #entryRemoved} as with
+ * {@link android.support.v4.util.LruCache}, and {@link #entryRejected} to tell entries that never
+ * made it past the window from those evicted from the main area. Null keys and values are not
+ * allowed.
+ */
+public class TinyLfuCache<K, V> implements MemoryCache<K, V> {
+
+    /**
+     * Share of the size for the window when it is not given. Larger than the 1% usually
+     * suggested, so freshly loaded entries are kept while their frequency builds up.
+     */
+    public static final float DEFAULT_WINDOW_FRACTION = 0.2f;
+    private static final float PROTECTED_FRACTION = 0.8f;
+
+    private final int mMaxSize;
+    private final int mWindowMaxSize;
+    private final int mProtectedMaxSize;
+    private final FrequencySketch mSketch;
+
+    // Insertion ordered, eldest first; an entry is moved to the end by removing and adding it
+    private final LinkedHashMap<K, Node<V>> mWindow = new LinkedHashMap<K, Node<V>>();
+    private final LinkedHashMap<K, Node<V>> mProbation = new LinkedHashMap<K, Node<V>>();
+    private final LinkedHashMap<K, Node<V>> mProtected = new LinkedHashMap<K, Node<V>>();
+    private int mWindowSize;
+    private int mProbationSize;
+    private int mProtectedSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize         the most total size, in the units of {@link #sizeOf}
+     * @param expectedEntries about how many entries fit, to size the frequency sketch
+     */
+    public TinyLfuCache(int maxSize, int expectedEntries) {
+        this(maxSize, expectedEntries, (int) (maxSize * DEFAULT_WINDOW_FRACTION));
+    }
+
+    /**
+     * @param windowMaxSize the most total size of the admission window. Entries in use, such as
+     *                      the images on screen, should fit in it; an entry that leaves the
+     *                      window may be rejected right away.
+     */
+    public TinyLfuCache(int maxSize, int expectedEntries, int windowMaxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mWindowMaxSize = Math.min(maxSize, Math.max(1, windowMaxSize));
+        mProtectedMaxSize = (int) ((maxSize - mWindowMaxSize) * PROTECTED_FRACTION);
+        mSketch = new FrequencySketch(Math.max(16, expectedEntries));
+    }
+
+    @Override
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        synchronized (this) {
+            mSketch.increment(key.hashCode());
+            final Node<V> node = touch(key);
+            if (node == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+            return node.value;
+        }
+    }
+
+    @Override
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final int size = safeSizeOf(key, value);
+        V previous = null;
+        final Map<K, V> removed = new LinkedHashMap<K, V>();
+        final Map<K, V> rejected = new LinkedHashMap<K, V>();
+        synchronized (this) {
+            mSketch.increment(key.hashCode());
+            final Node<V> node = touch(key);
+            if (node != null) {
+                previous = node.value;
+                addToSegmentSize(node.segment, size - node.size);
+                node.value = value;
+                node.size = size;
+            } else {
+                mWindow.put(key, new Node<V>(value, size, Node.WINDOW));
+                mWindowSize += size;
+            }
+            evict(removed, rejected);
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+        for (Map.Entry<K, V> entry : removed.entrySet()) {
+            entryRemoved(true, entry.getKey(), entry.getValue(), null);
+        }
+        for (Map.Entry<K, V> entry : rejected.entrySet()) {
+            entryRejected(entry.getKey(), entry.getValue());
+        }
+        return previous;
+    }
+
+    @Override
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Node<V> node;
+        synchronized (this) {
+            node = unlink(key);
+        }
+        if (node == null) {
+            return null;
+        }
+        entryRemoved(false, key, node.value, null);
+        return node.value;
+    }
+
+    @Override
+    public final void evictAll() {
+        final Map<K, V> removed = new LinkedHashMap<K, V>();
+        synchronized (this) {
+            for (LinkedHashMap<K, Node<V>> segment : segments()) {
+                for (Map.Entry<K, Node<V>> entry : segment.entrySet()) {
+                    removed.put(entry.getKey(), entry.getValue().value);
+                }
+                segment.clear();
+            }
+            mWindowSize = mProbationSize = mProtectedSize = 0;
+            mEvictionCount += removed.size();
+        }
+        for (Map.Entry<K, V> entry : removed.entrySet()) {
+            entryRemoved(true, entry.getKey(), entry.getValue(), null);
+        }
+    }
+
+    /**
+     * Returns the size of the entry in user-defined units. The default returns 1, so that size
+     * is the number of entries. Must not change while the entry is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Called for entries that have been evicted, removed or replaced, without the cache's lock
+     * held.
+     *
+     * @param evicted  true if the entry was dropped to make space
+     * @param newValue the new value for the key, if it was replaced by a put
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Called instead of {@link #entryRemoved} for an entry dropped on leaving the window, as it
+     * was used less often than the entry it would have pushed out of the main area. It was put
+     * recently, so unlike an evicted entry its value may still be in use. The default treats it
+     * as evicted.
+     */
+    protected void entryRejected(K key, V value) {
+        entryRemoved(true, key, value, null);
+    }
+
+    @Override
+    public final synchronized int size() {
+        return mWindowSize + mProbationSize + mProtectedSize;
+    }
+
+    @Override
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    @Override
+    public final synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    @Override
+    public final synchronized int missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public final synchronized int evictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public final synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("TinyLfuCache[maxSize=%d,window=%d,probation=%d,protected=%d,"
+                        + "hits=%d,misses=%d,hitRate=%d%%]", mMaxSize, mWindowSize,
+                mProbationSize, mProtectedSize, mHitCount, mMissCount, hitPercent);
+    }
+
+    /**
+     * Records a use of the key's entry, if there is one, and moves it as the policy says.
+     */
+    private Node<V> touch(K key) {
+        Node<V> node = mWindow.remove(key);
+        if (node != null) {
+            mWindow.put(key, node);
+            return node;
+        }
+        node = mProtected.remove(key);
+        if (node != null) {
+            mProtected.put(key, node);
+            return node;
+        }
+        node = mProbation.remove(key);
+        if (node != null) {
+            // Used again while on probation, so promote it
+            mProbationSize -= node.size;
+            node.segment = Node.PROTECTED;
+            mProtected.put(key, node);
+            mProtectedSize += node.size;
+            demoteProtected();
+        }
+        return node;
+    }
+
+    /**
+     * Moves the eldest protected entries back to probation while the segment is too big.
+     */
+    private void demoteProtected() {
+        final Iterator<Map.Entry<K, Node<V>>> i = mProtected.entrySet().iterator();
+        while (mProtectedSize > mProtectedMaxSize && i.hasNext()) {
+            final Map.Entry<K, Node<V>> eldest = i.next();
+            final Node<V> node = eldest.getValue();
+            i.remove();
+            mProtectedSize -= node.size;
+            node.segment = Node.PROBATION;
+            mProbation.put(eldest.getKey(), node);
+            mProbationSize += node.size;
+        }
+    }
+
+    private Node<V> unlink(K key) {
+        for (LinkedHashMap<K, Node<V>> segment : segments()) {
+            final Node<V> node = segment.remove(key);
+            if (node != null) {
+                addToSegmentSize(node.segment, -node.size);
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves entries out of the window until it fits, admitting each to the main area only if it
+     * is used more often than the entries it would push out.
+     *
+     * @param removed  gets the entries pushed out of the main area
+     * @param rejected gets the entries dropped on leaving the window
+     */
+    private void evict(Map<K, V> removed, Map<K, V> rejected) {
+        final int mainMaxSize = mMaxSize - mWindowMaxSize;
+        while (mWindowSize > mWindowMaxSize) {
+            final Iterator<Map.Entry<K, Node<V>>> window = mWindow.entrySet().iterator();
+            final Map.Entry<K, Node<V>> candidate = window.next();
+            final K candidateKey = candidate.getKey();
+            final Node<V> candidateNode = candidate.getValue();
+            window.remove();
+            mWindowSize -= candidateNode.size;
+
+            final int candidateFrequency = mSketch.frequency(candidateKey.hashCode());
+            boolean admit = candidateNode.size <= mainMaxSize;
+            while (admit && mProbationSize + mProtectedSize + candidateNode.size > mainMaxSize) {
+                final LinkedHashMap<K, Node<V>> victims =
+                        !mProbation.isEmpty() ? mProbation : mProtected;
+                final Map.Entry<K, Node<V>> victim = victims.entrySet().iterator().next();
+                if (candidateFrequency > mSketch.frequency(victim.getKey().hashCode())) {
+                    victims.remove(victim.getKey());
+                    addToSegmentSize(victim.getValue().segment, -victim.getValue().size);
+                    removed.put(victim.getKey(), victim.getValue().value);
+                    mEvictionCount++;
+                } else {
+                    admit = false;
+                }
+            }
+
+            if (admit) {
+                candidateNode.segment = Node.PROBATION;
+                mProbation.put(candidateKey, candidateNode);
+                mProbationSize += candidateNode.size;
+            } else {
+                rejected.put(candidateKey, candidateNode.value);
+                mEvictionCount++;
+            }
+        }
+    }
+
+    private void addToSegmentSize(int segment, int delta) {
+        if (segment == Node.WINDOW) {
+            mWindowSize += delta;
+        } else if (segment == Node.PROBATION) {
+            mProbationSize += delta;
+        } else {
+            mProtectedSize += delta;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private LinkedHashMap<K, Node<V>>[] segments() {
+        return new LinkedHashMap[] {mWindow, mProbation, mProtected};
+    }
+
+    private int safeSizeOf(K key, V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    private static final class Node<V> {
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        V value;
+        int size;
+        int segment;
+
+        Node(V value, int size, int segment) {
+            this.value = value;
+            this.size = size;
+            this.segment = segment;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters that estimates how often each key has been used
+     * recently. All counters are halved after a number of uses proportional to the width, so
+     * old popularity fades.
+     */
+    static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+
+        private final byte[][] mTable;
+        private final int mMask;
+        private final int mSampleSize;
+        private int mAdditions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = Integer.highestOneBit(Math.max(1, expectedEntries - 1)) << 1;
+            mTable = new byte[DEPTH][width];
+            mMask = width - 1;
+            mSampleSize = 10 * width;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                final int index = indexOf(hash, row);
+                if (mTable[row][index] < MAX_COUNT) {
+                    mTable[row][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++mAdditions >= mSampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < DEPTH; row++) {
+                frequency = Math.min(frequency, mTable[row][indexOf(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int indexOf(int hash, int row) {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mMask;
+        }
+
+        private void reset() {
+            for (byte[] counters : mTable) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] >>= 1;
+                }
+            }
+            mAdditions /= 2;
+        }
+    }
+}
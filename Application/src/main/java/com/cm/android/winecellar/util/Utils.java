@@ -18,9 +18,6 @@ package com.cm.android.winecellar.util;
 
 import android.annotation.TargetApi;
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.media.ThumbnailUtils;
 import android.net.ConnectivityManager;
 import android.os.Build;
 import android.os.Build.VERSION_CODES;
@@ -33,11 +30,7 @@ import com.cm.android.winecellar.ui.ImageDetailActivity;
 import com.vvw.activity.lite.ImageGridActivity;
 import com.google.android.gms.analytics.Tracker;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
@@ -243,94 +236,19 @@ public class Utils {
     public static boolean write(String urlString, OutputStream outputStream) {
 
         File image = new File(urlString);
-        BufferedOutputStream out = null;
-        BufferedInputStream in = null;
 
         try {
-            //final URL url = new URL(urlString);
-            in = new BufferedInputStream(new FileInputStream(image), IO_BUFFER_SIZE);
-            out = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-
-            int b;
-            while ((b = in.read()) != -1) {
-                out.write(b);
-            }
+            IoUtils.copy(image, outputStream);
             return true;
         } catch (final IOException e) {
             Log.e(TAG, "Error in downloadBitmap - " + e);
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-                }
-                if (in != null) {
-                    in.close();
-                }
-            } catch (final IOException e) {
-            }
+            IoUtils.closeQuietly(outputStream);
         }
         return false;
     }
 
 
-    /**
-     * Create a thumnail image, and store it
-     *
-     * @param context
-     * @param imageAbsolutePath
-     * @param thumbnailAbsolutePath
-     * @param thumbnailWidth
-     * @param thumbnailHeight
-     * @return the bitmap
-     */
-    public static Bitmap createThumbnail(Context context, String imageAbsolutePath, String thumbnailAbsolutePath, int thumbnailWidth, int thumbnailHeight) {
-        BufferedInputStream bis = null;
-        BufferedOutputStream bos = null;
-        try {
-
-            //bis = new BufferedInputStream(new FileInputStream(imageAbsolutePath), Utils.IO_BUFFER_SIZE);
-            bos = new BufferedOutputStream(new FileOutputStream(thumbnailAbsolutePath), Utils.IO_BUFFER_SIZE);
-
-
-//            BitmapFactory.Options options = new BitmapFactory.Options();
-//            options.inJustDecodeBounds = true;
-//
-//            options.inSampleSize = ImageResizer.calculateInSampleSize(options, thumbnailWidth, thumbnailHeight);
-//
-//            Bitmap decodedBitmap = BitmapFactory.decodeStream(bis, null, options);
-//            if(decodedBitmap == null ){
-//                Log.e("createThumbnail", "image data could not be decoded.");
-//            }
-//
-//            Bitmap scaledBitmap = Bitmap.createScaledBitmap(decodedBitmap, thumbnailWidth, thumbnailHeight, false);
-//            scaledBitmap.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-//            Bitmap bMap = ThumbnailUtils.extractThumbnail(imageBitmap, thumbnailWidth, thumbnailHeight);
-//            bMap.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-
-            Bitmap thumbnail = ThumbnailUtils.extractThumbnail(BitmapFactory.decodeFile(imageAbsolutePath), thumbnailWidth, thumbnailHeight);
-            thumbnail.compress(Bitmap.CompressFormat.JPEG, 100, bos);
-
-            return thumbnail;
-        } catch (Exception e) {
-            Log.e("createThumbnail", e.toString());
-            return null;
-        } finally {
-            try {
-                if (bos != null) {
-                    bos.flush();
-                    bos.close();
-                    //imageBitmap.recycle();
-                }
-                if (bis != null) {
-                    bis.close();
-                }
-            } catch (final Exception e) {
-            }
-        }
-
-
-    }
-
     /**
      * Return GA Tracker
      *
@@ -347,6 +265,15 @@ public class Utils {
 
     }
 
+    /**
+     * @param picture picture column of the note, may be empty for notes created before it was set
+     * @param rowId   row id of the note
+     * @return file name of the note's image and thumbnail
+     */
+    public static String getPictureFileName(String picture, long rowId) {
+        return (picture != null && picture.length() > 0) ? picture : rowId + PICTURES_EXTENSION;
+    }
+
     /**
      * Returns null for any exception thrown
      *
@@ -0,0 +1,102 @@
+package com.cm.android.winecellar.tests;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.cm.android.winecellar.db.DatabaseManager;
+import com.cm.android.winecellar.db.Note;
+import com.cm.android.winecellar.db.NotesDbAdapter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that adapters share one reference counted connection, and that readers are not blocked
+ * by an open write transaction.
+ */
+public class DatabaseManagerTests extends AndroidTestCase {
+    private static final String PREFIX = "manager_";
+
+    private Context mContext;
+    private DatabaseManager mDatabaseManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), PREFIX);
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        mDatabaseManager = new DatabaseManager(mContext);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testReferenceCounting() {
+        final NotesDbAdapter first = new NotesDbAdapter(mDatabaseManager).open();
+        final NotesDbAdapter second = new NotesDbAdapter(mDatabaseManager).open();
+        // Opening twice holds one reference
+        second.open();
+        assertEquals(2, mDatabaseManager.getOpenCount());
+        assertSame(first.getDatabase(), second.getDatabase());
+
+        first.close();
+        assertTrue(second.getDatabase().isOpen());
+        second.close();
+        second.close();
+        assertEquals(0, mDatabaseManager.getOpenCount());
+    }
+
+    public void testWriteAheadLogging() {
+        final NotesDbAdapter adapter = new NotesDbAdapter(mDatabaseManager).open();
+        try {
+            assertEquals("wal", DatabaseUtils.stringForQuery(adapter.getDatabase(),
+                    "pragma journal_mode", null).toLowerCase());
+        } finally {
+            adapter.close();
+        }
+    }
+
+    /**
+     * A reader on another thread counts the notes while a write transaction is open, and sees
+     * the last committed state.
+     */
+    public void testReadDuringWrite() throws InterruptedException {
+        final NotesDbAdapter writer = new NotesDbAdapter(mDatabaseManager).open();
+        final NotesDbAdapter reader = new NotesDbAdapter(mDatabaseManager).open();
+        try {
+            final SQLiteDatabase db = writer.getDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                final Note note = new Note();
+                note.id = 1;
+                writer.createNote(note);
+
+                final AtomicInteger count = new AtomicInteger(-1);
+                final CountDownLatch done = new CountDownLatch(1);
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        count.set(reader.countNotes());
+                        done.countDown();
+                    }
+                }).start();
+                assertTrue("reader blocked by writer", done.await(5, TimeUnit.SECONDS));
+                assertEquals(0, count.get());
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            assertEquals(1, reader.countNotes());
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+}
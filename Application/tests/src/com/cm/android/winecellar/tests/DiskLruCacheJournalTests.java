@@ -0,0 +1,243 @@
+package com.cm.android.winecellar.tests;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+
+import com.cm.android.winecellar.util.DiskLruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Checks the binary journal of the disk cache: that a cache opened in the other journal format
+ * keeps its entries and is migrated, that a torn or corrupt record at the end of the log only
+ * loses that record, and that a rewritten snapshot is not mixed with the log of the snapshot it
+ * replaced.
+ */
+public class DiskLruCacheJournalTests extends AndroidTestCase {
+    private static final int APP_VERSION = 1;
+    private static final long MAX_SIZE = 1024 * 1024;
+    // The cache compacts its journal once 2000 operations are redundant
+    private static final int REWRITE_EDITS = 2100;
+    private static final long REWRITE_TIMEOUT_MS = 10000;
+
+    private File mDir;
+    private File mTextJournal;
+    private File mSnapshot;
+    private File mLog;
+    private DiskLruCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "journal_tests");
+        mDir.mkdirs();
+        DiskLruCache.deleteContents(mDir);
+        mTextJournal = new File(mDir, "journal");
+        mSnapshot = new File(mDir, "journal.snapshot");
+        mLog = new File(mDir, "journal.log");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (mCache != null) {
+            mCache.close();
+        }
+        DiskLruCache.deleteContents(mDir);
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testTextToBinaryMigration() throws IOException {
+        open(false);
+        set("a", "apple");
+        set("b", "banana");
+        set("c", "cherry");
+        mCache.remove("c");
+        mCache.close();
+        assertTrue(mTextJournal.exists());
+        assertFalse(mSnapshot.exists());
+
+        open(true);
+        assertFalse(mTextJournal.exists());
+        assertTrue(mSnapshot.exists());
+        assertTrue(mLog.exists());
+        assertEntries();
+
+        // The migrated journal is appended to
+        set("d", "date");
+        mCache.close();
+        open(true);
+        assertEntries();
+        assertEquals("date", get("d"));
+    }
+
+    public void testBinaryToTextMigration() throws IOException {
+        open(true);
+        set("a", "apple");
+        set("b", "banana");
+        set("c", "cherry");
+        mCache.remove("c");
+        mCache.close();
+        assertTrue(mSnapshot.exists());
+        assertFalse(mTextJournal.exists());
+
+        open(false);
+        assertTrue(mTextJournal.exists());
+        assertFalse(mSnapshot.exists());
+        assertFalse(mLog.exists());
+        assertEntries();
+
+        set("d", "date");
+        mCache.close();
+        open(false);
+        assertEntries();
+        assertEquals("date", get("d"));
+    }
+
+    /**
+     * A crash while appending leaves part of the last record; replay stops there, and the edit it
+     * belonged to is dropped like any other unfinished edit.
+     */
+    public void testTornLogTail() throws IOException {
+        writeEntriesThenTail();
+        final RandomAccessFile log = new RandomAccessFile(mLog, "rw");
+        try {
+            log.setLength(log.length() - 3);
+        } finally {
+            log.close();
+        }
+        assertTailDropped();
+    }
+
+    public void testCorruptLogTail() throws IOException {
+        writeEntriesThenTail();
+        final RandomAccessFile log = new RandomAccessFile(mLog, "rw");
+        try {
+            log.seek(log.length() - 1);
+            final int last = log.read();
+            log.seek(log.length() - 1);
+            log.write(last ^ 0xff);
+        } finally {
+            log.close();
+        }
+        assertTailDropped();
+    }
+
+    /**
+     * Enough redundant edits make the cleanup thread write a new snapshot under the next
+     * generation. A log left from the generation before, as after a crash between writing the
+     * snapshot and starting its log, must not be replayed on top of it.
+     */
+    public void testSnapshotRewrite() throws IOException, InterruptedException {
+        open(true);
+        set("stale", "from the old generation");
+        mCache.close();
+        final byte[] staleLog = readFile(mLog);
+
+        open(true);
+        mCache.remove("stale");
+        for (int i = 0; i < REWRITE_EDITS; i++) {
+            set("key", "value " + i);
+        }
+        // Before the rewrite the log holds thousands of records, well past its write buffer
+        final long deadline = SystemClock.uptimeMillis() + REWRITE_TIMEOUT_MS;
+        while (mLog.length() > 8 * 1024) {
+            assertTrue("snapshot not rewritten", SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+        final String last = "value " + (REWRITE_EDITS - 1);
+        assertEquals(last, get("key"));
+        mCache.close();
+
+        open(true);
+        assertEquals(last, get("key"));
+        assertNull(get("stale"));
+        assertEquals(last.length(), mCache.size());
+        mCache.close();
+
+        writeFile(mLog, staleLog);
+        open(true);
+        assertEquals(last, get("key"));
+        assertNull(get("stale"));
+        assertEquals(last.length(), mCache.size());
+    }
+
+    /**
+     * Leaves a binary journal whose log ends with the CLEAN record of "tail".
+     */
+    private void writeEntriesThenTail() throws IOException {
+        open(true);
+        set("a", "apple");
+        set("b", "banana");
+        set("c", "cherry");
+        mCache.remove("c");
+        set("tail", "torn");
+        mCache.close();
+    }
+
+    private void assertTailDropped() throws IOException {
+        open(true);
+        assertEntries();
+        assertNull(get("tail"));
+        assertEquals("apple".length() + "banana".length(), mCache.size());
+
+        // The journal was rewritten, so new records are not appended after the damaged one
+        set("d", "date");
+        mCache.close();
+        open(true);
+        assertEntries();
+        assertEquals("date", get("d"));
+        assertNull(get("tail"));
+    }
+
+    private void assertEntries() throws IOException {
+        assertEquals("apple", get("a"));
+        assertEquals("banana", get("b"));
+        assertNull(get("c"));
+    }
+
+    private void open(boolean binaryJournal) throws IOException {
+        mCache = DiskLruCache.open(mDir, APP_VERSION, 1, MAX_SIZE, binaryJournal);
+    }
+
+    private void set(String key, String value) throws IOException {
+        final DiskLruCache.Editor editor = mCache.edit(key);
+        editor.set(0, value);
+        editor.commit();
+    }
+
+    private String get(String key) throws IOException {
+        final DiskLruCache.Snapshot snapshot = mCache.get(key);
+        if (snapshot == null) {
+            return null;
+        }
+        try {
+            return snapshot.getString(0);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        final RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            final byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
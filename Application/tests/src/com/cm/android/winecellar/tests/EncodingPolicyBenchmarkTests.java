@@ -0,0 +1,111 @@
+package com.cm.android.winecellar.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.cm.android.winecellar.util.EncodingPolicy;
+import com.cm.android.winecellar.util.EncodingPolicy.Encoding;
+import com.cm.android.winecellar.util.EncodingPolicy.Tier;
+import com.cm.android.winecellar.util.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+/**
+ * Encodes a thumbnail-sized label in each of the encodings, and decodes it back. Sizes and decode
+ * times are logged under the "EncodingPolicyBenchmark" tag.
+ */
+public class EncodingPolicyBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "EncodingPolicyBenchmark";
+    private static final int SIZE = Utils.THUMBNAIL_SIZE;
+    private static final int DECODES = 20;
+
+    private Bitmap mBitmap;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mBitmap = createLabel(new Random(42));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mBitmap.recycle();
+        super.tearDown();
+    }
+
+    public void testSizeAndDecodeTime() {
+        final byte[] jpeg100 = encode(Encoding.JPEG, 100);
+        final byte[] jpeg85 = encode(Encoding.JPEG, 85);
+        final byte[] webp80 = encode(Encoding.WEBP, 80);
+        final byte[] png = encode(Encoding.PNG, 100);
+        final byte[] webpLossless = encode(Encoding.WEBP_LOSSLESS, 100);
+
+        log("JPEG 100", jpeg100);
+        log("JPEG 85", jpeg85);
+        log("WebP 80", webp80);
+        log("PNG", png);
+        log("WebP lossless", webpLossless);
+
+        assertTrue("WebP should be smaller than the JPEG it replaces",
+                webp80.length < jpeg100.length);
+    }
+
+    /**
+     * The default policy's thumbnails decode back at full size.
+     */
+    public void testDefaultThumbnailRoundTrip() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(EncodingPolicy.getDefault().compress(Tier.THUMBNAIL, mBitmap, out));
+        final byte[] bytes = out.toByteArray();
+        final Bitmap decoded = BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+        assertNotNull(decoded);
+        assertEquals(SIZE, decoded.getWidth());
+        assertEquals(SIZE, decoded.getHeight());
+        decoded.recycle();
+    }
+
+    private byte[] encode(Encoding encoding, int quality) {
+        final EncodingPolicy policy = new EncodingPolicy().set(Tier.THUMBNAIL, encoding, quality);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(encoding + " failed", policy.compress(Tier.THUMBNAIL, mBitmap, out));
+        return out.toByteArray();
+    }
+
+    private static void log(String name, byte[] bytes) {
+        // Once to warm up
+        BitmapFactory.decodeByteArray(bytes, 0, bytes.length).recycle();
+        final long start = System.nanoTime();
+        for (int i = 0; i < DECODES; i++) {
+            BitmapFactory.decodeByteArray(bytes, 0, bytes.length).recycle();
+        }
+        final long decodeMicros = (System.nanoTime() - start) / 1000 / DECODES;
+        Log.i(TAG, String.format("%s: %d bytes, decode %dus", name, bytes.length, decodeMicros));
+    }
+
+    /**
+     * Something like a photographed label: a gradient with noise, and some sharp edged text.
+     */
+    private static Bitmap createLabel(Random random) {
+        final Bitmap bitmap = Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+        for (int y = 0; y < SIZE; y++) {
+            for (int x = 0; x < SIZE; x++) {
+                final int noise = random.nextInt(16);
+                bitmap.setPixel(x, y, Color.rgb(120 + x * 100 / SIZE + noise,
+                        40 + y * 60 / SIZE + noise, 50 + noise));
+            }
+        }
+        final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(Color.WHITE);
+        paint.setTextSize(SIZE / 10);
+        final Canvas canvas = new Canvas(bitmap);
+        canvas.drawText("Cabernet", SIZE / 8, SIZE / 3, paint);
+        canvas.drawText("Sauvignon 2004", SIZE / 8, SIZE / 2, paint);
+        return bitmap;
+    }
+}
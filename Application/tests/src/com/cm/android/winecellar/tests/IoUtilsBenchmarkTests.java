@@ -0,0 +1,128 @@
+package com.cm.android.winecellar.tests;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.cm.android.winecellar.util.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the old byte-at-a-time copy loop with {@link IoUtils} on a camera sized (8MB) file.
+ * Throughput is logged under the "IoUtilsBenchmark" tag.
+ */
+public class IoUtilsBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "IoUtilsBenchmark";
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+    private static final int IO_BUFFER_SIZE = 8 * 1024;
+
+    private File mSource;
+    private File mTarget;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        mSource = new File(getContext().getCacheDir(), "benchmark_source.jpg");
+        mTarget = new File(getContext().getCacheDir(), "benchmark_target.jpg");
+        final OutputStream out = new FileOutputStream(mSource);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mSource.delete();
+        mTarget.delete();
+        super.tearDown();
+    }
+
+    public void testFileToFile() throws IOException {
+        long start = System.nanoTime();
+        byteAtATimeCopy(new FileInputStream(mSource), new FileOutputStream(mTarget));
+        final long before = System.nanoTime() - start;
+        assertSameContent();
+
+        mTarget.delete();
+        start = System.nanoTime();
+        IoUtils.copy(mSource, mTarget);
+        final long after = System.nanoTime() - start;
+        assertSameContent();
+
+        log("file to file", before, after);
+    }
+
+    public void testFileToStream() throws IOException {
+        // A non-file stream, as handed out by a DiskLruCache editor
+        ByteArrayOutputStream out = new ByteArrayOutputStream(FILE_SIZE);
+        long start = System.nanoTime();
+        byteAtATimeCopy(new FileInputStream(mSource), out);
+        final long before = System.nanoTime() - start;
+        assertEquals(FILE_SIZE, out.size());
+
+        out = new ByteArrayOutputStream(FILE_SIZE);
+        start = System.nanoTime();
+        IoUtils.copy(mSource, out);
+        final long after = System.nanoTime() - start;
+        assertEquals(FILE_SIZE, out.size());
+
+        log("file to stream", before, after);
+    }
+
+    /**
+     * The copy loop ImageFetcher and Utils used before IoUtils
+     */
+    private static void byteAtATimeCopy(InputStream input, OutputStream output)
+            throws IOException {
+        final BufferedInputStream in = new BufferedInputStream(input, IO_BUFFER_SIZE);
+        final BufferedOutputStream out = new BufferedOutputStream(output, IO_BUFFER_SIZE);
+        try {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
+    private void assertSameContent() throws IOException {
+        assertEquals(mSource.length(), mTarget.length());
+        assertTrue(Arrays.equals(readFully(mSource), readFully(mTarget)));
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        final InputStream in = new FileInputStream(file);
+        try {
+            IoUtils.copy(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void log(String path, long beforeNanos, long afterNanos) {
+        Log.i(TAG, String.format("%s: before %.1f MB/s, after %.1f MB/s", path,
+                megabytesPerSecond(beforeNanos), megabytesPerSecond(afterNanos)));
+    }
+
+    private static double megabytesPerSecond(long nanos) {
+        return (FILE_SIZE / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+}
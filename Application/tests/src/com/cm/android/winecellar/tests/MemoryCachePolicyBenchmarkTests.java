@@ -0,0 +1,182 @@
+package com.cm.android.winecellar.tests;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.cm.android.winecellar.util.LruMemoryCache;
+import com.cm.android.winecellar.util.MemoryCache;
+import com.cm.android.winecellar.util.TinyLfuCache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays grid traces against the LRU and W-TinyLFU memory cache policies. The traces are
+ * synthetic, not recorded on a device: Zipf distributed visits to a popular subset of the cellar,
+ * and row by row scrolls through it. Hit ratios are logged under the "MemoryCachePolicyBenchmark"
+ * tag.
+ */
+public class MemoryCachePolicyBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "MemoryCachePolicyBenchmark";
+    private static final int CACHE_ENTRIES = 100;
+    private static final int HOT_SET = 400;
+    private static final double ZIPF_SKEW = 0.9;
+    // A grid of three columns, six rows on screen and a row bound either side
+    private static final int COLUMNS = 3;
+    private static final int CELLS_IN_USE = COLUMNS * (6 + 2);
+
+    /**
+     * Browsing a popular subset of the cellar, interrupted by flings through all of it, each of
+     * which shows every wine once.
+     */
+    public void testZipfWithScans() {
+        final String[] trace = buildTrace(new Random(42), 5, 4000, 1000);
+        final double lru = replay(newLru(), trace);
+        final double tinyLfu = replay(newTinyLfu(), trace);
+        log("zipf with scans", lru, tinyLfu);
+        assertTrue("TinyLFU should not lose to LRU on a scan", tinyLfu >= lru);
+    }
+
+    /**
+     * Browsing a popular subset only, where LRU does well too.
+     */
+    public void testZipf() {
+        final String[] trace = buildTrace(new Random(7), 1, 20000, 0);
+        final double lru = replay(newLru(), trace);
+        final double tinyLfu = replay(newTinyLfu(), trace);
+        log("zipf", lru, tinyLfu);
+    }
+
+    /**
+     * Scrolling down through the cellar and back up, with the window sized for the cells in use:
+     * no cell still on screen is rejected on leaving the window, so none is handed out for
+     * reuse while shown.
+     */
+    public void testScrollKeepsScreenInWindow() {
+        final Deque<String> inUse = new ArrayDeque<String>();
+        final List<String> rejectedInUse = new ArrayList<String>();
+        final TinyLfuCache<String, Integer> cache = new TinyLfuCache<String, Integer>(
+                CACHE_ENTRIES, CACHE_ENTRIES, CELLS_IN_USE) {
+            @Override
+            protected void entryRejected(String key, Integer value) {
+                if (inUse.contains(key)) {
+                    rejectedInUse.add(key);
+                }
+            }
+        };
+        final Integer value = 1;
+        for (String key : buildScrollTrace(3, HOT_SET / COLUMNS)) {
+            inUse.remove(key);
+            inUse.addLast(key);
+            if (inUse.size() > CELLS_IN_USE) {
+                inUse.removeFirst();
+            }
+            if (cache.get(key) == null) {
+                cache.put(key, value);
+            }
+        }
+        assertTrue("rejected while in use: " + rejectedInUse, rejectedInUse.isEmpty());
+    }
+
+    private static MemoryCache<String, Integer> newLru() {
+        return new LruMemoryCache<String, Integer>(CACHE_ENTRIES);
+    }
+
+    private static MemoryCache<String, Integer> newTinyLfu() {
+        return new TinyLfuCache<String, Integer>(CACHE_ENTRIES, CACHE_ENTRIES);
+    }
+
+    /**
+     * Gets each key, putting it on a miss as ImageWorker does after loading the image.
+     *
+     * @return the hit ratio
+     */
+    private static double replay(MemoryCache<String, Integer> cache, String[] trace) {
+        final Integer value = 1;
+        for (String key : trace) {
+            if (cache.get(key) == null) {
+                cache.put(key, value);
+            }
+        }
+        return (double) cache.hitCount() / (cache.hitCount() + cache.missCount());
+    }
+
+    /**
+     * @param rounds    how many times browsing is followed by a scan
+     * @param browsing  accesses per round to the hot set, Zipf distributed
+     * @param scan      distinct cold keys per round, each accessed once
+     */
+    private static String[] buildTrace(Random random, int rounds, int browsing, int scan) {
+        final double[] cumulative = zipfCumulative(HOT_SET, ZIPF_SKEW);
+        final String[] trace = new String[rounds * (browsing + scan)];
+        int next = 0;
+        int coldKey = 0;
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < browsing; i++) {
+                trace[next++] = "hot" + sample(cumulative, random.nextDouble());
+            }
+            for (int i = 0; i < scan; i++) {
+                trace[next++] = "cold" + coldKey++;
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * @param passes how many times to scroll down through all rows and back up
+     * @param rows   rows of {@link #COLUMNS} cells
+     */
+    private static List<String> buildScrollTrace(int passes, int rows) {
+        final List<String> trace = new ArrayList<String>();
+        for (int pass = 0; pass < passes; pass++) {
+            for (int row = 0; row < rows; row++) {
+                addRow(trace, row);
+            }
+            for (int row = rows - 1; row >= 0; row--) {
+                addRow(trace, row);
+            }
+        }
+        return trace;
+    }
+
+    private static void addRow(List<String> trace, int row) {
+        for (int column = 0; column < COLUMNS; column++) {
+            trace.add("cell" + (row * COLUMNS + column));
+        }
+    }
+
+    private static double[] zipfCumulative(int n, double skew) {
+        final double[] cumulative = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < n; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, double u) {
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (cumulative[mid] < u) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void log(String name, double lru, double tinyLfu) {
+        Log.i(TAG, String.format("%s: LRU %.1f%%, TinyLFU %.1f%%", name, lru * 100,
+                tinyLfu * 100));
+    }
+}
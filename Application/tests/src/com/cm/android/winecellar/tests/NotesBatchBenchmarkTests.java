@@ -0,0 +1,120 @@
+package com.cm.android.winecellar.tests;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.cm.android.winecellar.db.DatabaseManager;
+import com.cm.android.winecellar.db.Note;
+import com.cm.android.winecellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Imports 10k notes with the batch API and one at a time, and checks the batch methods write
+ * what the single-note methods would. Rows per second are logged under the
+ * "NotesBatchBenchmark" tag.
+ */
+public class NotesBatchBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "NotesBatchBenchmark";
+    private static final String PREFIX = "batch_";
+    private static final int IMPORT_SIZE = 10000;
+    // One commit each, so far fewer, to keep the run short
+    private static final int SINGLE_SIZE = 500;
+
+    private Context mContext;
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), PREFIX);
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        mAdapter = new NotesDbAdapter(new DatabaseManager(mContext)).open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.close();
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testImport10k() {
+        final List<Note> notes = createNotes(1, IMPORT_SIZE, "Import");
+
+        long start = System.nanoTime();
+        assertEquals(IMPORT_SIZE, mAdapter.createNotes(notes));
+        log("createNotes", IMPORT_SIZE, start);
+        assertEquals(IMPORT_SIZE, mAdapter.countNotes());
+
+        final List<Note> updates = createNotes(1, IMPORT_SIZE, "Update");
+        start = System.nanoTime();
+        assertEquals(IMPORT_SIZE, mAdapter.updateNotes(updates));
+        log("updateNotes", IMPORT_SIZE, start);
+
+        // A re-sync: half already there, half new
+        final List<Note> sync = createNotes(IMPORT_SIZE / 2 + 1, IMPORT_SIZE, "Sync");
+        start = System.nanoTime();
+        assertEquals(IMPORT_SIZE / 2, mAdapter.upsertNotes(sync));
+        log("upsertNotes", IMPORT_SIZE, start);
+        assertEquals(IMPORT_SIZE * 3 / 2, mAdapter.countNotes());
+
+        final List<Note> single = createNotes(IMPORT_SIZE * 2, SINGLE_SIZE, "Single");
+        start = System.nanoTime();
+        for (Note note : single) {
+            assertTrue(mAdapter.createNote(note) != -1);
+        }
+        log("createNote", SINGLE_SIZE, start);
+    }
+
+    public void testBatchMatchesSingle() {
+        final Note note = createNotes(1, 1, "Merlot").get(0);
+        assertEquals(1, mAdapter.createNotes(Collections.singletonList(note)));
+        // Taken row ids are skipped, as createNote fails for them
+        assertEquals(0, mAdapter.createNotes(createNotes(1, 1, "Syrah")));
+
+        // Blank fields and a 0.0 rating keep what is stored
+        final Note update = new Note();
+        update.id = note.id;
+        update.notes = "Plum";
+        assertEquals(1, mAdapter.updateNotes(Collections.singletonList(update)));
+        final Note stored = mAdapter.fetchNote(note.id);
+        assertEquals("Merlot 1", stored.wine);
+        assertEquals("Plum", stored.notes);
+        assertEquals(note.rating, stored.rating);
+        assertTrue(stored.updated >= stored.created);
+
+        final Note missing = new Note();
+        missing.id = 99;
+        assertEquals(0, mAdapter.updateNotes(Collections.singletonList(missing)));
+    }
+
+    /**
+     * @return notes with consecutive row ids from firstId
+     */
+    private static List<Note> createNotes(long firstId, int count, String wine) {
+        final List<Note> notes = new ArrayList<Note>(count);
+        for (int i = 0; i < count; i++) {
+            final Note note = new Note();
+            note.id = firstId + i;
+            note.wine = wine + " " + note.id;
+            note.rating = String.valueOf((i % 10) / 2f + 0.5f);
+            note.textExtract = "Winery " + (i % 300) + " " + (1990 + i % 30);
+            note.notes = "Tasting note " + i;
+            note.picture = note.id + ".jpg";
+            note.share = "Y";
+            notes.add(note);
+        }
+        return notes;
+    }
+
+    private static void log(String method, int rows, long startNanos) {
+        final double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Log.i(TAG, String.format("%s: %d rows in %.2fs, %.0f rows/s", method, rows, seconds,
+                rows / seconds));
+    }
+}
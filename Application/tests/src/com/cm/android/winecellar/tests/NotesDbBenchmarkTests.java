@@ -0,0 +1,207 @@
+package com.cm.android.winecellar.tests;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+import android.util.Log;
+
+import com.cm.android.winecellar.db.DatabaseManager;
+import com.cm.android.winecellar.db.Note;
+import com.cm.android.winecellar.db.NotesDbAdapter;
+
+import java.util.Random;
+
+/**
+ * Times the grid's sorted queries on the typed, indexed notes table against the version 1 text
+ * table at 10k and 100k rows, and checks that version 1 notes survive the upgrade. Timings are
+ * logged under the "NotesDbBenchmark" tag.
+ */
+public class NotesDbBenchmarkTests extends AndroidTestCase {
+    private static final String TAG = "NotesDbBenchmark";
+    private static final String PREFIX = "bench_";
+    private static final int PAGE_SIZE = 60;
+    private static final int RUNS = 5;
+
+    // The version 1 schema, and its orderings, which cast every row before sorting
+    private static final String V1_TABLE = "wine_list_1";
+    private static final String V1_CREATE = "create table " + V1_TABLE + " (_id integer primary key,"
+            + " wine text default null, rating text default null, textextract text default null,"
+            + " notes text default null, picture text default null, share text default null,"
+            + " uri text default null, created text default null, updated text default null);";
+    private static final String V1_ORDER_BY_UPDATED = "CAST(updated AS INTEGER) DESC, _id DESC";
+    private static final String V1_ORDER_BY_RATING = "CAST(rating AS REAL) DESC, "
+            + V1_ORDER_BY_UPDATED;
+
+    private Context mContext;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), PREFIX);
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testSortedQueries10k() {
+        benchmark(10000);
+    }
+
+    public void testSortedQueries100k() {
+        benchmark(100000);
+    }
+
+    /**
+     * Both grid orderings are read off an index, without sorting the table.
+     */
+    public void testOrderingsUseIndexes() {
+        // getDatabase() opens the adapter
+        final NotesDbAdapter adapter = new NotesDbAdapter(new DatabaseManager(mContext));
+        try {
+            final SQLiteDatabase db = adapter.getDatabase();
+            for (String orderBy : new String[]{NotesDbAdapter.ORDER_BY_UPDATED,
+                    NotesDbAdapter.ORDER_BY_RATING}) {
+                final String plan = explain(db, NotesDbAdapter.DATABASE_TABLE, orderBy);
+                Log.i(TAG, orderBy + ": " + plan);
+                assertFalse(orderBy + " sorts: " + plan, plan.contains("TEMP B-TREE"));
+            }
+        } finally {
+            adapter.close();
+        }
+    }
+
+    public void testUpgradeFromV1() {
+        final SQLiteDatabase v1 = mContext.openOrCreateDatabase(NotesDbAdapter.DATABASE_NAME,
+                Context.MODE_PRIVATE, null);
+        v1.execSQL(V1_CREATE);
+        v1.execSQL("insert into " + V1_TABLE + " (_id, wine, rating, notes, created, updated)"
+                + " values (7, 'Merlot', '4.5', 'Plum', '1400000000000', '1400000001000')");
+        v1.execSQL("insert into " + V1_TABLE + " (_id, wine, rating, created, updated)"
+                + " values (8, 'Syrah', '', '1400000002000', '1400000003000')");
+        v1.setVersion(1);
+        v1.close();
+
+        final NotesDbAdapter adapter = new NotesDbAdapter(new DatabaseManager(mContext)).open();
+        try {
+            final Note merlot = adapter.fetchNote(7);
+            assertEquals("Merlot", merlot.wine);
+            assertEquals(4.5f, Float.parseFloat(merlot.rating));
+            assertEquals("Plum", merlot.notes);
+            assertEquals(1400000000000L, merlot.created);
+            assertEquals(1400000001000L, merlot.updated);
+            assertNull(adapter.fetchNote(8).rating);
+            assertEquals(2, adapter.countNotes());
+            // Newest first, by number rather than by string
+            assertEquals(8, adapter.fetchGridPage(NotesDbAdapter.ORDER_BY_UPDATED, 0, 1)
+                    .get(0).id);
+        } finally {
+            adapter.close();
+        }
+    }
+
+    private void benchmark(int rows) {
+        // getDatabase() opens the adapter
+        final NotesDbAdapter adapter = new NotesDbAdapter(new DatabaseManager(mContext));
+        try {
+            final SQLiteDatabase db = adapter.getDatabase();
+            db.execSQL(V1_CREATE);
+            insertRows(db, rows);
+
+            final String typed = NotesDbAdapter.DATABASE_TABLE;
+            log(rows, "updated, first page",
+                    time(db, V1_TABLE, V1_ORDER_BY_UPDATED, 0),
+                    time(db, typed, NotesDbAdapter.ORDER_BY_UPDATED, 0));
+            log(rows, "rating, first page",
+                    time(db, V1_TABLE, V1_ORDER_BY_RATING, 0),
+                    time(db, typed, NotesDbAdapter.ORDER_BY_RATING, 0));
+            log(rows, "rating, middle page",
+                    time(db, V1_TABLE, V1_ORDER_BY_RATING, rows / 2),
+                    time(db, typed, NotesDbAdapter.ORDER_BY_RATING, rows / 2));
+        } finally {
+            adapter.close();
+        }
+    }
+
+    /**
+     * Inserts the same random notes into both tables, as text into version 1 and typed into the
+     * current table.
+     */
+    private static void insertRows(SQLiteDatabase db, int rows) {
+        final Random random = new Random(42);
+        final long now = System.currentTimeMillis();
+        final ContentValues v1 = new ContentValues();
+        final ContentValues typed = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 1; i <= rows; i++) {
+                final String wine = "Wine " + random.nextInt(500);
+                final float rating = random.nextInt(11) / 2f;
+                // Up to about three years ago
+                final long updated = now - (long) random.nextInt(100000000) * 1000;
+                v1.put("_id", i);
+                v1.put("wine", wine);
+                v1.put("rating", String.valueOf(rating));
+                v1.put("created", String.valueOf(updated));
+                v1.put("updated", String.valueOf(updated));
+                db.insert(V1_TABLE, null, v1);
+                typed.put(NotesDbAdapter.KEY_ROWID, i);
+                typed.put(NotesDbAdapter.KEY_WINE, wine);
+                typed.put(NotesDbAdapter.KEY_RATING, rating);
+                typed.put(NotesDbAdapter.KEY_CREATED, updated);
+                typed.put(NotesDbAdapter.KEY_UPDATED, updated);
+                db.insert(NotesDbAdapter.DATABASE_TABLE, null, typed);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return the fastest of {@link #RUNS} page queries, in microseconds
+     */
+    private static long time(SQLiteDatabase db, String table, String orderBy, int offset) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            final Cursor cursor = db.query(table, NotesDbAdapter.GRID_PROJECTION, null, null,
+                    null, null, orderBy, offset + "," + PAGE_SIZE);
+            try {
+                while (cursor.moveToNext()) {
+                    cursor.getLong(0);
+                }
+            } finally {
+                cursor.close();
+            }
+            best = Math.min(best, (System.nanoTime() - start) / 1000);
+        }
+        return best;
+    }
+
+    private static String explain(SQLiteDatabase db, String table, String orderBy) {
+        final Cursor cursor = db.rawQuery("explain query plan select * from " + table
+                + " order by " + orderBy + " limit " + PAGE_SIZE, null);
+        try {
+            final StringBuilder plan = new StringBuilder();
+            final int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.append(cursor.getString(detailColumn)).append("; ");
+            }
+            return plan.toString();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static void log(int rows, String query, long v1Micros, long typedMicros) {
+        Log.i(TAG, String.format("%d rows, %s: text %dus, typed %dus", rows, query, v1Micros,
+                typedMicros));
+    }
+}
@@ -0,0 +1,149 @@
+package com.cm.android.winecellar.tests;
+
+import android.content.Context;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import com.cm.android.winecellar.db.DatabaseManager;
+import com.cm.android.winecellar.db.Note;
+import com.cm.android.winecellar.db.NotesDbAdapter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks that the search index follows the notes table, and that search matches word prefixes
+ * whatever their case and accents, and ranks the best match first.
+ */
+public class NotesSearchTests extends AndroidTestCase {
+    private static final String PREFIX = "search_";
+
+    private Context mContext;
+    private NotesDbAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), PREFIX);
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        mAdapter = new NotesDbAdapter(new DatabaseManager(mContext)).open();
+        insert(1, "Cabernet Sauvignon", "Kenwood Vineyards 2004 Sonoma County", "Raspberry");
+        insert(2, "Pinot Noir", "Domaine Drouhin 2011 Oregon", "Cherry, like the Kenwood");
+        insert(3, "Merlot", "Duckhorn 2004 Napa Valley", "Plum and cocoa");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.close();
+        mContext.deleteDatabase(NotesDbAdapter.DATABASE_NAME);
+        super.tearDown();
+    }
+
+    public void testToMatchQuery() {
+        assertEquals("kenw* 200*", NotesDbAdapter.toMatchQuery("  Kenw, 200 "));
+        // Operators and quotes are only words or separators
+        assertEquals("pinot* or* noir*", NotesDbAdapter.toMatchQuery("\"Pinot\" OR -noir*"));
+        assertNull(NotesDbAdapter.toMatchQuery(" *\"- "));
+        assertNull(NotesDbAdapter.toMatchQuery(null));
+    }
+
+    public void testFoldForSearch() {
+        assertEquals("cotes du rhone", NotesDbAdapter.foldForSearch("CÔTES DU RHÔNE"));
+        assertEquals("chateau", NotesDbAdapter.foldForSearch("CHÂTEAU"));
+        assertEquals("gewurztraminer", NotesDbAdapter.foldForSearch("Gewürztraminer"));
+        assertEquals("chateau* cotes*", NotesDbAdapter.toMatchQuery("Château, côtes"));
+    }
+
+    /**
+     * Label text read by OCR is mostly upper case with accents; it is found whichever way the
+     * words are typed.
+     */
+    public void testAccentedUpperCase() {
+        insert(4, "Syrah", "CHÂTEAU DE SAINT COSME CÔTES DU RHÔNE 2015", null);
+        assertIds(mAdapter.search("château", 10, 0), 4);
+        assertIds(mAdapter.search("côtes rhône", 10, 0), 4);
+        assertIds(mAdapter.search("CHATEAU", 10, 0), 4);
+        assertIds(mAdapter.search("Cotes", 10, 0), 4);
+
+        final Note note = new Note();
+        note.id = 4;
+        note.notes = "Pétillant";
+        mAdapter.updateNote(note);
+        assertIds(mAdapter.search("petillant chateau", 10, 0), 4);
+    }
+
+    public void testSearchIds() {
+        final long[] rowIds = mAdapter.searchIds("kenwood");
+        assertEquals(2, rowIds.length);
+        assertEquals(1, rowIds[0]);
+        assertEquals(2, rowIds[1]);
+        assertIds(mAdapter.fetchGridNotes(rowIds, 1, 10), 2);
+        // Deleted since the search
+        mAdapter.deleteNote(1);
+        assertIds(mAdapter.fetchGridNotes(rowIds, 0, 10), 2);
+    }
+
+    /**
+     * More matches than one statement can bind row ids for are read in several queries.
+     */
+    public void testManyMatches() {
+        final int count = 1500;
+        final List<Note> notes = new ArrayList<Note>(count);
+        for (int i = 0; i < count; i++) {
+            final Note note = new Note();
+            note.id = 100 + i;
+            note.wine = "Zinfandel";
+            notes.add(note);
+        }
+        assertEquals(count, mAdapter.createNotes(notes));
+        assertEquals(count, mAdapter.search("zin", Integer.MAX_VALUE, 0).size());
+        assertEquals(count - 10, mAdapter.search("zin", count, 10).size());
+    }
+
+    public void testPrefixMatching() {
+        assertIds(mAdapter.search("dom", 10, 0), 2);
+        assertIds(mAdapter.search("Kenwood 2004", 10, 0), 1);
+        assertEquals(2, mAdapter.countSearch("200"));
+        assertEquals(0, mAdapter.countSearch("zinfandel"));
+    }
+
+    /**
+     * A match in the label beats a passing mention in the notes.
+     */
+    public void testRanking() {
+        final List<Note> notes = mAdapter.search("kenwood", 10, 0);
+        assertIds(notes, 1, 2);
+        assertEquals("Cabernet Sauvignon", notes.get(0).wine);
+        assertIds(mAdapter.search("kenwood", 10, 1), 2);
+        assertIds(mAdapter.search("kenwood", 10, 2));
+    }
+
+    public void testIndexFollowsTable() {
+        Note note = new Note();
+        note.id = 3;
+        note.textExtract = "Duckhorn 2005 Napa Valley";
+        mAdapter.updateNote(note);
+        assertIds(mAdapter.search("2005", 10, 0), 3);
+        assertEquals(1, mAdapter.countSearch("2004"));
+
+        mAdapter.deleteNote(1);
+        assertEquals(0, mAdapter.countSearch("sonoma"));
+        assertIds(mAdapter.search("kenwood", 10, 0), 2);
+    }
+
+    private void insert(long id, String wine, String textExtract, String notes) {
+        final Note note = new Note();
+        note.id = id;
+        note.wine = wine;
+        note.textExtract = textExtract;
+        note.notes = notes;
+        assertEquals(id, mAdapter.createNote(note));
+    }
+
+    private static void assertIds(List<Note> notes, long... ids) {
+        assertEquals(ids.length, notes.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(ids[i], notes.get(i).id);
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.cm.android.winecellar.tests;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.cm.android.winecellar.util.DerivativeSet;
+import com.cm.android.winecellar.util.EncodingPolicy;
+import com.cm.android.winecellar.util.ThumbnailGenerator;
+import com.cm.android.winecellar.util.Utils;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Checks that thumbnail creation keeps to its peak memory bound whatever the size of the photo,
+ * that it makes correctly sized thumbnails, and that viewers are given the right derivative. Peak
+ * memory is measured while real JPEGs are thumbnailed, and logged under the "ThumbnailGenerator"
+ * tag. The large photos are plain grey, written a block at a time, so making them takes no
+ * memory either.
+ */
+public class ThumbnailGeneratorTests extends AndroidTestCase {
+    private static final String TAG = "ThumbnailGenerator";
+    private static final int SIZE = Utils.THUMBNAIL_SIZE;
+    // The sampled crop and the thumbnail, as ARGB_8888
+    private static final long BITMAP_BOUND = 3L * SIZE * SIZE * 4;
+    // The region decoder's index, buffers and the rest of what a decode allocates
+    private static final long DECODER_BOUND = 16 * 1024 * 1024;
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "thumbnail_tests");
+        new File(mDir, "images").mkdirs();
+        new File(mDir, "thumbs").mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File dir : mDir.listFiles()) {
+            if (dir.isDirectory()) {
+                for (File file : dir.listFiles()) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+        mDir.delete();
+        super.tearDown();
+    }
+
+    /**
+     * A 48 MP photo, 8000x6000, in both orientations. Decoding it whole would take 192MB.
+     */
+    public void test48MegapixelPeakMemory() throws Exception {
+        for (int[] size : new int[][]{{8000, 6000}, {6000, 8000}}) {
+            final long peak = measurePeak(size[0], size[1]);
+            assertTrue(size[0] + "x" + size[1] + " peaks at " + peak,
+                    peak <= BITMAP_BOUND + DECODER_BOUND);
+            // Way under what the whole image would take
+            assertTrue(peak < 8000L * 6000 * 4 / 10);
+        }
+    }
+
+    /**
+     * The bound does not depend on the resolution or the shape of the photo.
+     */
+    public void testPeakMemoryIndependentOfResolution() throws Exception {
+        final int[][] sizes = {
+                {SIZE, SIZE}, {640, 480}, {1600, 1200}, {3264, 2448}, {4000, 3000},
+                {12000, 9000}, {16000, 2000}, {2000, 16000}, {641, 641}, {SIZE * 2 - 1, SIZE}
+        };
+        for (int[] size : sizes) {
+            final long peak = measurePeak(size[0], size[1]);
+            assertTrue(size[0] + "x" + size[1] + " peaks at " + peak,
+                    peak <= BITMAP_BOUND + DECODER_BOUND);
+        }
+    }
+
+    public void testCreateThumbnail() throws IOException {
+        final File image = new File(new File(mDir, "images"), "1.jpg");
+        writePhoto(image, 1200, 900);
+
+        final File thumbnailFile = new File(new File(mDir, "thumbs"), "1.jpg");
+        final Bitmap thumbnail = ThumbnailGenerator.createThumbnail(image.getAbsolutePath(),
+                thumbnailFile.getAbsolutePath(), SIZE, SIZE, EncodingPolicy.getDefault());
+        assertNotNull(thumbnail);
+        assertEquals(SIZE, thumbnail.getWidth());
+        assertEquals(SIZE, thumbnail.getHeight());
+
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(thumbnailFile.getAbsolutePath(), options);
+        assertEquals(SIZE, options.outWidth);
+        assertEquals(SIZE, options.outHeight);
+        // Only the thumbnail is left in the thumbnail directory
+        assertEquals(1, thumbnailFile.getParentFile().list().length);
+    }
+
+    /**
+     * The grid asks for the thumbnail and gets it, although the thumbnail has its photo's name;
+     * the photo itself is replaced by its smallest uncropped derivative that is big enough.
+     */
+    public void testPickDerivative() throws IOException {
+        final File image = new File(new File(mDir, "images"), "2.jpg");
+        writePhoto(image, 2000, 1500);
+        final File thumbnailFile = new File(new File(mDir, "thumbs"), "2.jpg");
+        assertNotNull(ThumbnailGenerator.createDerivatives(image.getAbsolutePath(),
+                thumbnailFile.getAbsolutePath(), SIZE, SIZE, EncodingPolicy.getDefault()));
+
+        assertEquals(thumbnailFile.getAbsolutePath(),
+                DerivativeSet.pick(thumbnailFile.getAbsolutePath(), SIZE, SIZE));
+        assertEquals(DerivativeSet.getDerivativeFile(image.getAbsolutePath(), DerivativeSet.OCR)
+                .getAbsolutePath(), DerivativeSet.pick(image.getAbsolutePath(), SIZE, SIZE));
+    }
+
+    private static void writePhoto(File file, int width, int height) throws IOException {
+        final Bitmap photo = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        photo.eraseColor(Color.RED);
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            photo.compress(Bitmap.CompressFormat.JPEG, 90, out);
+        } finally {
+            out.close();
+        }
+        photo.recycle();
+    }
+
+    /**
+     * Writes a grey JPEG of the given size, thumbnails it and returns the most memory, Java and
+     * native, in use above what was in use before.
+     */
+    private long measurePeak(int width, int height) throws IOException, InterruptedException {
+        final File image = new File(new File(mDir, "images"), width + "x" + height + ".jpg");
+        writeGreyJpeg(image, width, height);
+        final File thumbnailFile = new File(new File(mDir, "thumbs"), image.getName());
+
+        final HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        final Bitmap thumbnail;
+        final long peak;
+        try {
+            thumbnail = ThumbnailGenerator.createThumbnail(image.getAbsolutePath(),
+                    thumbnailFile.getAbsolutePath(), SIZE, SIZE, EncodingPolicy.getDefault());
+        } finally {
+            peak = sampler.finish();
+        }
+        assertNotNull(width + "x" + height, thumbnail);
+        assertEquals(SIZE, thumbnail.getWidth());
+        assertEquals(SIZE, thumbnail.getHeight());
+        thumbnail.recycle();
+        image.delete();
+        thumbnailFile.delete();
+
+        Log.i(TAG, String.format("%dx%d: peak %dKB, bound %dKB", width, height, peak / 1024,
+                (BITMAP_BOUND + DECODER_BOUND) / 1024));
+        return peak;
+    }
+
+    /**
+     * Writes a baseline, single component JPEG in which every 8x8 block is mid grey. With one
+     * code per Huffman table, for a DC difference of 0 and for end of block, each block takes two
+     * zero bits, so the scan is streamed as zero bytes.
+     */
+    private static void writeGreyJpeg(File file, int width, int height) throws IOException {
+        final long blocks = (long) ((width + 7) / 8) * ((height + 7) / 8);
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+        try {
+            // Start of image
+            out.write(new byte[]{(byte) 0xff, (byte) 0xd8});
+            // Quantization table 0, all ones
+            out.write(new byte[]{(byte) 0xff, (byte) 0xdb, 0, 67, 0});
+            final byte[] ones = new byte[64];
+            Arrays.fill(ones, (byte) 1);
+            out.write(ones);
+            // Baseline frame, 8 bit, one component using table 0
+            out.write(new byte[]{(byte) 0xff, (byte) 0xc0, 0, 11, 8,
+                    (byte) (height >> 8), (byte) height, (byte) (width >> 8), (byte) width,
+                    1, 1, 0x11, 0});
+            // DC table 0 and AC table 0, each with the single one bit code 0 for symbol 0
+            for (int tableClass = 0; tableClass < 2; tableClass++) {
+                out.write(new byte[]{(byte) 0xff, (byte) 0xc4, 0, 20, (byte) (tableClass << 4)});
+                final byte[] counts = new byte[16];
+                counts[0] = 1;
+                out.write(counts);
+                out.write(0);
+            }
+            // Start of scan, the one component with both tables 0
+            out.write(new byte[]{(byte) 0xff, (byte) 0xda, 0, 8, 1, 1, 0, 0, 63, 0});
+            final byte[] zeros = new byte[8192];
+            for (long bytes = (blocks * 2 + 7) / 8; bytes > 0; bytes -= zeros.length) {
+                out.write(zeros, 0, (int) Math.min(zeros.length, bytes));
+            }
+            // End of image
+            out.write(new byte[]{(byte) 0xff, (byte) 0xd9});
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Samples the memory in use every millisecond, from before the work starts until
+     * {@link #finish()}.
+     */
+    private static class HeapSampler extends Thread {
+        private final long mBaseline;
+        private volatile boolean mDone;
+        private long mPeak;
+
+        HeapSampler() {
+            Runtime.getRuntime().gc();
+            mBaseline = getUsed();
+        }
+
+        @Override
+        public void run() {
+            while (!mDone) {
+                mPeak = Math.max(mPeak, getUsed() - mBaseline);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * @return the most bytes in use above the baseline
+         */
+        long finish() throws InterruptedException {
+            final long last = getUsed() - mBaseline;
+            mDone = true;
+            join();
+            return Math.max(mPeak, last);
+        }
+
+        private static long getUsed() {
+            final Runtime runtime = Runtime.getRuntime();
+            return Debug.getNativeHeapAllocatedSize() + runtime.totalMemory()
+                    - runtime.freeMemory();
+        }
+    }
+}
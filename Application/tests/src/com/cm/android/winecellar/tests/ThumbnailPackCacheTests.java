@@ -0,0 +1,298 @@
+package com.cm.android.winecellar.tests;
+
+import android.test.AndroidTestCase;
+
+import com.cm.android.winecellar.util.DiskLruCache;
+import com.cm.android.winecellar.util.ThumbnailPackCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Checks that the pack file cache keeps the {@link DiskLruCache} contract for get and edit, that
+ * eviction keeps it to its size and its segment files few, and that it reopens to the same
+ * entries, up to the first damaged record.
+ */
+public class ThumbnailPackCacheTests extends AndroidTestCase {
+    private static final int SEGMENT_SIZE = 4096;
+    private static final long MAX_SIZE = 8192;
+    private static final int VALUE_SIZE = 500;
+    // magic, type, key length, data length, data CRC, header CRC
+    private static final int RECORD_HEADER_SIZE = 4 + 1 + 2 + 4 + 4 + 4;
+
+    private File mDir;
+    private ThumbnailPackCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDir = new File(getContext().getCacheDir(), "pack_tests");
+        mDir.mkdirs();
+        DiskLruCache.deleteContents(mDir);
+        open();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.close();
+        DiskLruCache.deleteContents(mDir);
+        mDir.delete();
+        super.tearDown();
+    }
+
+    public void testEditContract() throws IOException {
+        assertNull(mCache.get("a"));
+
+        final ThumbnailPackCache.Editor editor = mCache.edit("a");
+        assertNotNull(editor);
+        // One edit per key at a time
+        assertNull(mCache.edit("a"));
+        write(editor, value(1));
+        // Not visible before the commit
+        assertNull(mCache.get("a"));
+        editor.commit();
+        assertValue("a", value(1));
+        assertEquals(VALUE_SIZE, mCache.size());
+
+        // An aborted edit leaves the old value
+        final ThumbnailPackCache.Editor aborted = mCache.edit("a");
+        write(aborted, value(2));
+        aborted.abort();
+        assertValue("a", value(1));
+
+        // A snapshot keeps its value after the entry is replaced
+        final ThumbnailPackCache.Snapshot snapshot = mCache.get("a");
+        set("a", value(3));
+        assertTrue(Arrays.equals(value(1), read(snapshot)));
+        assertValue("a", value(3));
+        assertEquals(VALUE_SIZE, mCache.size());
+
+        try {
+            snapshot.getInputStream(1);
+            fail("only index 0 exists");
+        } catch (IndexOutOfBoundsException expected) {
+        }
+
+        assertTrue(mCache.remove("a"));
+        assertFalse(mCache.remove("a"));
+        assertNull(mCache.get("a"));
+        assertEquals(0, mCache.size());
+    }
+
+    /**
+     * Inserting many times the size of the cache evicts the least recently used entries, and
+     * compaction copies the survivors forward so only a few segments remain.
+     */
+    public void testCompactionUnderEviction() throws IOException {
+        set("hot", value(255));
+        final int count = 100;
+        for (int i = 0; i < count; i++) {
+            assertNotNull(mCache.get("hot"));
+            set("k" + i, value(i));
+            assertTrue(mCache.size() <= MAX_SIZE);
+        }
+        // The records of the live values fill at most about twice as many segments
+        final long liveBytes = (MAX_SIZE / VALUE_SIZE) * (RECORD_HEADER_SIZE + 3 + VALUE_SIZE);
+        assertTrue(segmentCount() <= 2 * liveBytes / SEGMENT_SIZE + 2);
+
+        final int live = (int) (MAX_SIZE / VALUE_SIZE);
+        assertEquals(live * VALUE_SIZE, mCache.size());
+        assertEvicted(count, live - 1);
+
+        // Evictions and moved values survive a restart
+        mCache.close();
+        open();
+        assertEquals(live * VALUE_SIZE, mCache.size());
+        assertEvicted(count, live - 1);
+    }
+
+    public void testReopen() throws IOException {
+        set("a", value(1));
+        set("b", value(2));
+        set("c", value(3));
+        set("b", value(4));
+        mCache.remove("c");
+        mCache.close();
+
+        open();
+        assertValue("a", value(1));
+        assertValue("b", value(4));
+        assertNull(mCache.get("c"));
+        assertEquals(2 * VALUE_SIZE, mCache.size());
+    }
+
+    /**
+     * A damaged record, as after a crash while writing it, ends the segment: it and the records
+     * after it are dropped, and new values are written over them.
+     */
+    public void testReopenAfterDamagedRecord() throws IOException {
+        set("a", value(1));
+        set("b", value(2));
+        set("c", value(3));
+        mCache.close();
+
+        final RandomAccessFile segment = new RandomAccessFile(segments()[0], "rw");
+        try {
+            // The magic of "b"
+            segment.seek(RECORD_HEADER_SIZE + 1 + VALUE_SIZE);
+            segment.write(0);
+        } finally {
+            segment.close();
+        }
+
+        open();
+        assertValue("a", value(1));
+        assertNull(mCache.get("b"));
+        assertNull(mCache.get("c"));
+        assertEquals(VALUE_SIZE, mCache.size());
+
+        set("d", value(4));
+        mCache.close();
+        open();
+        assertValue("a", value(1));
+        assertValue("d", value(4));
+        assertNull(mCache.get("c"));
+    }
+
+    /**
+     * After a power loss the header of a record can be on disk without all of its data; the
+     * value is dropped rather than served corrupt.
+     */
+    public void testReopenAfterTornValue() throws IOException {
+        set("a", value(1));
+        set("b", value(2));
+        mCache.close();
+
+        final RandomAccessFile segment = new RandomAccessFile(segments()[0], "rw");
+        try {
+            // The last byte of the value of "b"
+            segment.seek(2 * (RECORD_HEADER_SIZE + 1 + VALUE_SIZE) - 1);
+            segment.write(0);
+        } finally {
+            segment.close();
+        }
+
+        open();
+        assertValue("a", value(1));
+        assertNull(mCache.get("b"));
+        assertEquals(VALUE_SIZE, mCache.size());
+    }
+
+    /**
+     * Values in segments whose mapping was dropped are mapped again when read.
+     */
+    public void testManySegments() throws IOException {
+        mCache.close();
+        mCache = ThumbnailPackCache.open(mDir, 64 * VALUE_SIZE, SEGMENT_SIZE);
+        final int count = 64;
+        for (int i = 0; i < count; i++) {
+            set("k" + i, value(i));
+        }
+        assertTrue(segmentCount() > 8);
+        for (int i = 0; i < count; i++) {
+            assertValue("k" + i, value(i));
+        }
+        mCache.close();
+
+        mCache = ThumbnailPackCache.open(mDir, 64 * VALUE_SIZE, SEGMENT_SIZE);
+        for (int i = count - 1; i >= 0; i--) {
+            assertValue("k" + i, value(i));
+        }
+    }
+
+    public void testDeleteSegments() throws IOException {
+        set("a", value(1));
+        mCache.close();
+        final File other = new File(mDir, "journal");
+        assertTrue(other.createNewFile());
+
+        ThumbnailPackCache.deleteSegments(mDir);
+        assertEquals(0, segmentCount());
+        assertTrue(other.exists());
+
+        // Files that are not segments are deleted on open
+        open();
+        assertFalse(other.exists());
+        assertNull(mCache.get("a"));
+    }
+
+    /**
+     * Checks that "hot" and the newest {@code newest} of {@code count} values are left.
+     */
+    private void assertEvicted(int count, int newest) throws IOException {
+        assertValue("hot", value(255));
+        for (int i = 0; i < count; i++) {
+            if (i < count - newest) {
+                assertNull("k" + i, mCache.get("k" + i));
+            } else {
+                assertValue("k" + i, value(i));
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        mCache = ThumbnailPackCache.open(mDir, MAX_SIZE, SEGMENT_SIZE);
+    }
+
+    private void set(String key, byte[] value) throws IOException {
+        final ThumbnailPackCache.Editor editor = mCache.edit(key);
+        write(editor, value);
+        editor.commit();
+    }
+
+    private void assertValue(String key, byte[] expected) throws IOException {
+        final ThumbnailPackCache.Snapshot snapshot = mCache.get(key);
+        assertNotNull(key, snapshot);
+        assertEquals(expected.length, snapshot.getLength());
+        assertTrue(key, Arrays.equals(expected, read(snapshot)));
+        final ByteBuffer buffer = snapshot.getBuffer();
+        assertEquals(expected[0], buffer.get(0));
+        snapshot.close();
+    }
+
+    private File[] segments() {
+        final File[] files = mDir.listFiles();
+        int count = 0;
+        for (File file : files) {
+            if (file.getName().startsWith("pack.")) {
+                files[count++] = file;
+            }
+        }
+        return Arrays.copyOf(files, count);
+    }
+
+    private int segmentCount() {
+        return segments().length;
+    }
+
+    private static void write(ThumbnailPackCache.Editor editor, byte[] value) throws IOException {
+        final OutputStream out = editor.newOutputStream(0);
+        out.write(value);
+        out.close();
+    }
+
+    private static byte[] read(ThumbnailPackCache.Snapshot snapshot) throws IOException {
+        final InputStream in = snapshot.getInputStream(0);
+        final byte[] bytes = new byte[(int) snapshot.getLength()];
+        int read = 0;
+        while (read < bytes.length) {
+            final int n = in.read(bytes, read, bytes.length - read);
+            assertTrue(n > 0);
+            read += n;
+        }
+        assertEquals(-1, in.read());
+        return bytes;
+    }
+
+    private static byte[] value(int seed) {
+        final byte[] value = new byte[VALUE_SIZE];
+        Arrays.fill(value, (byte) seed);
+        value[VALUE_SIZE - 1] = (byte) (seed * 31);
+        return value;
+    }
+}